@@ -0,0 +1,63 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Classifies every line of the sample export. Scores are passes over the sample
+ * per second.
+ *
+ * @author Branden
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ClassifierBenchmark {
+
+	private String[] lines;
+
+	@Setup
+	public void setup() throws IOException {
+		lines = new String(Corpus.sample(), StandardCharsets.UTF_8).split("\r?\n");
+	}
+
+	@Benchmark
+	public void containsKey(Blackhole blackhole) {
+		for (String line : lines) {
+			blackhole.consume(EnpassFileParser.containsKey("^(Username : )", line));
+		}
+	}
+
+	@Benchmark
+	public void getCustomField(Blackhole blackhole) {
+		for (String line : lines) {
+			blackhole.consume(EnpassFileParser.getCustomField(line));
+		}
+	}
+
+	@Benchmark
+	public void classify(Blackhole blackhole) {
+		for (String line : lines) {
+			int separator = EnpassFieldClassifier.separatorIndex(line);
+			blackhole.consume(EnpassFieldClassifier.classify(line, separator));
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brandenfung.enpass2keepassxml.Enpass2KeePass.Enpass2KeePassInputException;
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+
+/**
+ * Converts exports of increasing size end to end with
+ * {@link Enpass2KeePass#enpass2KeePassXml(File, File)}. Scores are whole files per second.
+ *
+ * @author Branden
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConversionBenchmark {
+
+	@Param({ "1", "100", "1000" })
+	public int copies;
+
+	private File input;
+	private File outputDir;
+
+	@Setup
+	public void setup() throws IOException {
+		input = Corpus.write(copies).toFile();
+		outputDir = Files.createTempDirectory("enpass2keepass_").toFile();
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteOutputs() throws IOException {
+		File[] outputs = outputDir.listFiles();
+		if (outputs != null) {
+			for (File output : outputs) {
+				Files.deleteIfExists(output.toPath());
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(input.toPath());
+		Files.deleteIfExists(outputDir.toPath());
+	}
+
+	@Benchmark
+	public String enpass2KeePassXml() 
+			throws Enpass2KeePassInputException, EnpassFileParserException, IOException {
+		return Enpass2KeePass.enpass2KeePassXml(input, outputDir);
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Benchmark corpora built by repeating resource/sample_enpass_export.txt, which holds
+ * {@link #ENTRIES_PER_COPY} entries of every Enpass category.
+ *
+ * @author Branden
+ *
+ */
+final class Corpus {
+
+	static final String SAMPLE_RESOURCE = "/sample_enpass_export.txt";
+	static final int ENTRIES_PER_COPY = 60;
+
+	private Corpus() {
+	}
+
+	static byte[] sample() throws IOException {
+		try (InputStream in = Corpus.class.getResourceAsStream(SAMPLE_RESOURCE)) {
+			if (in == null) {
+				throw new IOException("Missing benchmark resource " + SAMPLE_RESOURCE);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			in.transferTo(out);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * Writes a temporary export holding the sample a number of times.
+	 *
+	 * @param copies Number of times to repeat the sample
+	 * @return Path of the export, deleted on exit
+	 */
+	static Path write(int copies) throws IOException {
+		byte[] sample = sample();
+		Path path = Files.createTempFile("enpass_corpus_" + copies + "_", ".txt");
+		path.toFile().deleteOnExit();
+		try (OutputStream out = Files.newOutputStream(path)) {
+			for (int i = 0; i < copies; i++) {
+				out.write(sample);
+			}
+		}
+		return path;
+	}
+
+}
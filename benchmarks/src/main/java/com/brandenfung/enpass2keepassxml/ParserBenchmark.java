@@ -0,0 +1,76 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * Parses exports of increasing size. Scores are whole files per second, multiply by
+ * {@code copies * 60} for entries per second.
+ *
+ * @author Branden
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParserBenchmark {
+
+	@Param({ "1", "100", "1000" })
+	public int copies;
+
+	private String filepath;
+
+	@Setup
+	public void setup() throws IOException {
+		filepath = Corpus.write(copies).toString();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(Path.of(filepath));
+	}
+
+	@Benchmark
+	public ArrayList<EnpassEntry> parseEnpassFile() throws EnpassFileParserException {
+		return EnpassFileParser.parseEnpassFile(filepath);
+	}
+
+	@Benchmark
+	public ArrayList<EnpassEntry> parseEnpassFileParallel() throws EnpassFileParserException {
+		return EnpassFileParser.parseEnpassFileParallel(filepath);
+	}
+
+	@Benchmark
+	public void readEntries(Blackhole blackhole) throws IOException, EnpassFileParserException {
+		try (EnpassEntryReader reader = EnpassFileParser.openEnpassFile(filepath)) {
+			EnpassEntry entry;
+			while ((entry = reader.readEntry()) != null) {
+				blackhole.consume(entry);
+			}
+		}
+	}
+
+}
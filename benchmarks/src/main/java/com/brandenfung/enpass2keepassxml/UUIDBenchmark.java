@@ -0,0 +1,60 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * Generates entry UUIDs, random single threaded and contended, and content derived.
+ *
+ * @author Branden
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UUIDBenchmark {
+
+	@Benchmark
+	public String generateStringUUID() {
+		return KeePassXMLWriter.generateStringUUID();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String generateStringUUIDContended() {
+		return KeePassXMLWriter.generateStringUUID();
+	}
+
+	@Benchmark
+	public String contentUUID(SampleEntry sample) {
+		return ContentUUIDGenerator.INSTANCE.entryUUID(sample.entry);
+	}
+
+	@State(Scope.Benchmark)
+	public static class SampleEntry {
+		EnpassEntry entry;
+
+		@Setup
+		public void setup() throws IOException, EnpassFileParserException {
+			entry = EnpassFileParser.parseEnpassFile(Corpus.write(1).toString()).get(1);
+		}
+	}
+
+}
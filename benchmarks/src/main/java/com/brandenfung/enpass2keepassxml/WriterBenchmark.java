@@ -0,0 +1,84 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
+
+/**
+ * Writes already parsed exports of increasing size. Scores are whole files per second.
+ *
+ * @author Branden
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WriterBenchmark {
+
+	@Param({ "1", "100", "1000" })
+	public int copies;
+
+	private ArrayList<EnpassEntry> entries;
+	private EnpassEntryStore store;
+	private String outputPath;
+
+	@Setup
+	public void setup() throws IOException, EnpassFileParserException {
+		Path input = Corpus.write(copies);
+		entries = EnpassFileParser.parseEnpassFile(input.toString());
+		store = EnpassFileParser.parseEnpassFileToStore(input.toString());
+		Files.delete(input);
+
+		Path output = Files.createTempFile("keepass_", ".xml");
+		output.toFile().deleteOnExit();
+		outputPath = output.toString();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(Path.of(outputPath));
+	}
+
+	@Benchmark
+	public void writeKeePassXml2() {
+		KeePassXMLWriter.writeKeePassXml2(entries, outputPath);
+	}
+
+	@Benchmark
+	public void streamKeePassXml2() {
+		KeePassXMLWriter.streamKeePassXml2(entries, outputPath);
+	}
+
+	@Benchmark
+	public void streamKeePassXml2FromStore() {
+		KeePassXMLWriter.streamKeePassXml2(store, outputPath);
+	}
+
+	@Benchmark
+	public void streamKeePassXml2Parallel() {
+		KeePassXMLWriter.streamKeePassXml2Parallel(entries, outputPath);
+	}
+
+}
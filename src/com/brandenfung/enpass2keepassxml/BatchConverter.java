@@ -0,0 +1,176 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts many exported Enpass txt files in one process. Files are converted
+ * concurrently, one file per thread, on a fixed size pool, so the JVM is started and
+ * warmed up once for the whole set. Each conversion streams its file like
+ * {@link Enpass2KeePass#enpass2KeePassXml(File, File, ConversionOptions)}, so memory
+ * use is bounded by the number of threads rather than the size of the files.
+ *
+ * A file that fails to convert does not stop the others, its error is kept in its
+ * {@link Result}.
+ *
+ * @author Branden
+ *
+ */
+public final class BatchConverter {
+
+	private final File outputDir;
+	private final ConversionOptions options;
+	private final int threads;
+
+	/**
+	 * Outcome of converting one file.
+	 */
+	public static class Result {
+		public final File inputPath;
+		/** Output xml, null if the conversion failed */
+		public final File outputPath;
+		public final long entries;
+		public final long millis;
+		/** Metrics of the conversion, null if it failed */
+		public final ConversionMetrics metrics;
+		/** Why the conversion failed, null if it succeeded */
+		public final Exception error;
+
+		private Result(File inputPath, File outputPath, ConversionMetrics metrics, long millis, Exception error) {
+			this.inputPath = inputPath;
+			this.outputPath = outputPath;
+			this.entries = metrics != null ? metrics.entries() : 0;
+			this.millis = millis;
+			this.metrics = metrics;
+			this.error = error;
+		}
+
+		@Override
+		public String toString() {
+			if (error != null) {
+				return inputPath + ": failed, " + error.getMessage();
+			}
+			return inputPath + " -> " + outputPath + ": " + entries + " entries in " + millis + " ms";
+		}
+	}
+
+	/**
+	 * @param outputDir Directory to write the xml files to
+	 * @param options Options of every conversion
+	 * @param threads Number of files converted at once
+	 */
+	public BatchConverter(File outputDir, ConversionOptions options, int threads)
+			throws Enpass2KeePass.Enpass2KeePassInputException {
+		if (outputDir == null || !outputDir.isDirectory()) {
+			throw new Enpass2KeePass.Enpass2KeePassInputException("Must specify a valid output directory");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		this.outputDir = outputDir;
+		this.options = options;
+		this.threads = threads;
+	}
+
+	/**
+	 * Finds the exports to convert.
+	 *
+	 * @param dirOrGlob A directory, whose .txt files are returned, or a glob such as
+	 * 			"exports/team-*.txt" matched against the files of its parent directory
+	 * @return Matching files, sorted by name
+	 * @throws IOException If the directory could not be listed
+	 */
+	public static List<File> findExports(String dirOrGlob) throws IOException {
+		Path path = Paths.get(dirOrGlob);
+		Path dir;
+		String glob;
+		if (Files.isDirectory(path)) {
+			dir = path;
+			glob = "*.txt";
+		} else {
+			dir = path.getParent() != null ? path.getParent() : Paths.get(".");
+			glob = path.getFileName().toString();
+		}
+
+		ArrayList<File> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+			for (Path file : stream) {
+				if (Files.isRegularFile(file)) {
+					files.add(file.toFile());
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Converts the files, blocking until all of them are done.
+	 *
+	 * @return Result of each file, in the order the files were given
+	 * @throws InterruptedException If interrupted while waiting, remaining conversions
+	 * 			are cancelled
+	 */
+	public List<Result> convertAll(List<File> inputs) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, inputs.size())));
+		try {
+			ArrayList<Future<Result>> futures = new ArrayList<>(inputs.size());
+			HashSet<String> baseNames = new HashSet<>();
+			for (File input : inputs) {
+				File output = new File(outputDir, Enpass2KeePass.generateFileName(
+						uniqueBaseName(input, baseNames), options.fileExtension()));
+				futures.add(executor.submit(() -> convert(input, output)));
+			}
+
+			ArrayList<Result> results = new ArrayList<>(inputs.size());
+			for (Future<Result> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause()); // convert catches everything
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Result convert(File input, File output) {
+		long start = System.nanoTime();
+		try {
+			ConversionMetrics metrics = Enpass2KeePass.convert(input, output, options);
+			return new Result(input, output, metrics, (System.nanoTime() - start) / 1000000, null);
+		} catch (Exception e) {
+			output.delete();
+			return new Result(input, null, null, (System.nanoTime() - start) / 1000000, e);
+		}
+	}
+
+	/**
+	 * Exports in different directories can have the same name, number the repeats.
+	 */
+	private static String uniqueBaseName(File input, HashSet<String> used) {
+		String name = input.getName();
+		int dot = name.lastIndexOf('.');
+		String baseName = dot > 0 ? name.substring(0, dot) : name;
+		String unique = baseName;
+		for (int i = 2; !used.add(unique); i++) {
+			unique = baseName + "-" + i;
+		}
+		return unique;
+	}
+
+}
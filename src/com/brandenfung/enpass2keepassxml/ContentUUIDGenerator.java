@@ -0,0 +1,226 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import com.brandenfung.enpass2keepassxml.model.CustomFieldMap;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
+
+/**
+ * Deterministic, name based (version 5) UUIDs derived from the content of each entry.
+ * Converting the same export twice gives identical output, so conversions can be
+ * diffed.
+ *
+ * The hash covers the title, username, password, url, note and custom fields. Custom
+ * fields are hashed in key order so their order in the export does not matter.
+ *
+ * Entries with exactly the same content hash the same, so the writers use a generator
+ * of their own, see {@link #forConversion()}, which gives each repeat of an entry in a
+ * conversion a UUID derived from the hash and the number of earlier repeats, as
+ * {@link IncrementalConverter} does for repeated titles.
+ *
+ * @author Branden
+ *
+ */
+public final class ContentUUIDGenerator implements UUIDGenerator {
+
+	/** Shared instance, safe to use from any thread */
+	public static final ContentUUIDGenerator INSTANCE = new ContentUUIDGenerator();
+
+	// Namespace of the name based UUIDs, fixed so output is stable between versions
+	private static final byte[] NAMESPACE = "Enpass2KeePass".getBytes(StandardCharsets.US_ASCII);
+	private static final byte GROUP = 0;
+	private static final byte ENTRY = 1;
+
+	private static final Base64.Encoder ENCODER = Base64.getEncoder();
+
+	private final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(Hasher::new);
+
+	private ContentUUIDGenerator() {
+	}
+
+	@Override
+	public String groupUUID(String groupName) {
+		Hasher hasher = start(GROUP);
+		update(hasher, groupName);
+		return encode(finish(hasher));
+	}
+
+	/**
+	 * @return Generator for one conversion, which gives repeats of an entry UUIDs of
+	 * 			their own. Safe to use from any thread.
+	 */
+	@Override
+	public UUIDGenerator forConversion() {
+		return new Occurrences();
+	}
+
+	@Override
+	public String entryUUID(EnpassEntry entry) {
+		return encode(entryHash(entry));
+	}
+
+	@Override
+	public String entryUUID(EnpassEntryStore.View entry) {
+		return encode(entryHash(entry));
+	}
+
+	private byte[] entryHash(EnpassEntry entry) {
+		Hasher hasher = start(ENTRY);
+		update(hasher, entry.title);
+		update(hasher, entry.username);
+		update(hasher, entry.passwordChars());
+		update(hasher, entry.url);
+		update(hasher, entry.note);
+
+		// By position, so values held off heap are hashed too
+		CustomFieldMap fields = entry.customFieldMap();
+		for (int i : fields.keyOrder()) {
+			update(hasher, fields.key(i));
+			update(hasher, fields.chars(i));
+		}
+		return finish(hasher);
+	}
+
+	private byte[] entryHash(EnpassEntryStore.View entry) {
+		CharSequence text = entry.store().text();
+		Hasher hasher = start(ENTRY);
+		update(hasher, text, entry.fieldStart(EnpassEntryStore.TITLE), entry.fieldEnd(EnpassEntryStore.TITLE));
+		update(hasher, text, entry.fieldStart(EnpassEntryStore.USERNAME), entry.fieldEnd(EnpassEntryStore.USERNAME));
+		update(hasher, text, entry.fieldStart(EnpassEntryStore.PASSWORD), entry.fieldEnd(EnpassEntryStore.PASSWORD));
+		update(hasher, text, entry.fieldStart(EnpassEntryStore.URL), entry.fieldEnd(EnpassEntryStore.URL));
+		update(hasher, text, entry.fieldStart(EnpassEntryStore.NOTE), entry.fieldEnd(EnpassEntryStore.NOTE));
+
+		for (int i : keyOrder(entry)) {
+			update(hasher, entry.customFieldKey(i));
+			update(hasher, text, entry.customFieldStart(i), entry.customFieldEnd(i));
+		}
+		return finish(hasher);
+	}
+
+	/**
+	 * @return Positions of the custom fields in order of key, like
+	 * 			{@link CustomFieldMap#keyOrder()}
+	 */
+	private static int[] keyOrder(EnpassEntryStore.View entry) {
+		int[] order = new int[entry.customFieldCount()];
+		for (int i = 0; i < order.length; i++) {
+			String key = entry.customFieldKey(i);
+			int j = i;
+			for (; j > 0 && entry.customFieldKey(order[j - 1]).compareTo(key) > 0; j--) {
+				order[j] = order[j - 1];
+			}
+			order[j] = i;
+		}
+		return order;
+	}
+
+	private Hasher start(byte kind) {
+		Hasher hasher = hashers.get();
+		hasher.digest.reset();
+		hasher.digest.update(NAMESPACE);
+		hasher.digest.update(kind);
+		return hasher;
+	}
+
+	private static void update(Hasher hasher, CharSequence value) {
+		update(hasher, value, 0, value.length());
+	}
+
+	// Length prefixed UTF-16 so field boundaries can not be shifted between fields
+	private static void update(Hasher hasher, CharSequence value, int start, int end) {
+		byte[] buf = hasher.buf;
+		int length = end - start;
+		buf[0] = (byte) (length >>> 24);
+		buf[1] = (byte) (length >>> 16);
+		buf[2] = (byte) (length >>> 8);
+		buf[3] = (byte) length;
+		int count = 4;
+		for (int i = start; i < end; i++) {
+			if (count == buf.length) {
+				hasher.digest.update(buf, 0, count);
+				count = 0;
+			}
+			char c = value.charAt(i);
+			buf[count++] = (byte) (c >>> 8);
+			buf[count++] = (byte) c;
+		}
+		hasher.digest.update(buf, 0, count);
+	}
+
+	private static byte[] finish(Hasher hasher) {
+		byte[] uuid = Arrays.copyOf(hasher.digest.digest(), 16);
+		uuid[6] = (byte) ((uuid[6] & 0x0f) | 0x50); // version 5
+		uuid[8] = (byte) ((uuid[8] & 0x3f) | 0x80); // IETF variant
+		return uuid;
+	}
+
+	private static String encode(byte[] uuid) {
+		return ENCODER.encodeToString(uuid);
+	}
+
+	/**
+	 * Counts the entries of a conversion by UUID, and derives a UUID for every repeat.
+	 */
+	private final class Occurrences implements UUIDGenerator {
+
+		// Entries seen with each UUID, by its two halves combined
+		private final LongIntHashMap counts = new LongIntHashMap();
+
+		@Override
+		public String groupUUID(String groupName) {
+			return ContentUUIDGenerator.this.groupUUID(groupName);
+		}
+
+		@Override
+		public String entryUUID(EnpassEntry entry) {
+			return encode(occurrence(entryHash(entry)));
+		}
+
+		@Override
+		public String entryUUID(EnpassEntryStore.View entry) {
+			return encode(occurrence(entryHash(entry)));
+		}
+
+		@Override
+		public UUIDGenerator forConversion() {
+			return new Occurrences();
+		}
+
+		private byte[] occurrence(byte[] uuid) {
+			ByteBuffer halves = ByteBuffer.wrap(uuid);
+			long key = halves.getLong(0) ^ halves.getLong(8);
+			int previous;
+			synchronized (counts) {
+				previous = counts.getAndIncrement(key);
+			}
+			if (previous == 0) {
+				return uuid;
+			}
+
+			Hasher hasher = start(ENTRY);
+			hasher.digest.update(uuid);
+			hasher.digest.update(ByteBuffer.allocate(4).putInt(previous).array());
+			return finish(hasher);
+		}
+	}
+
+	private static final class Hasher {
+		private final MessageDigest digest;
+		private final byte[] buf = new byte[1024];
+
+		Hasher() {
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-1 is required by every Java platform", e);
+			}
+		}
+	}
+
+}
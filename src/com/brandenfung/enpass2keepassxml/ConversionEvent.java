@@ -0,0 +1,48 @@
+package com.brandenfung.enpass2keepassxml;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of one conversion, lasting from opening the export to closing the output.
+ *
+ * @author Branden
+ *
+ */
+@Name("com.brandenfung.enpass2keepass.Conversion")
+@Label("Enpass Conversion")
+@Category("Enpass2KeePass")
+@Description("Conversion of an exported Enpass txt file")
+class ConversionEvent extends jdk.jfr.Event {
+
+	@Label("Input")
+	String inputPath;
+
+	@Label("Output")
+	String outputPath;
+
+	@Label("Entries")
+	long entries;
+
+	@Label("Custom Fields")
+	long customFields;
+
+	@Label("Multi-line Notes")
+	long multiLineNotes;
+
+	@Label("Input Size")
+	@DataAmount
+	long inputBytes;
+
+	@Label("Output Size")
+	@DataAmount
+	long outputBytes;
+
+	@Label("Peak Heap")
+	@DataAmount
+	long peakHeapBytes;
+
+}
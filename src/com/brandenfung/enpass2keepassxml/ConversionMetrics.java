@@ -0,0 +1,315 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Measurements of one conversion: where the time went, how fast entries and bytes
+ * went through, the peak heap and the shape of the entries. Available as a JSON report
+ * with {@link #toJson()} and, while a JFR recording is running, as the
+ * {@link ConversionEvent} and {@link ConversionStageEvent} events. The events are only
+ * created when JFR was started before the conversion, since registering an event class
+ * loads much of JFR and adds a noticeable part to the startup of a single conversion.
+ *
+ * Counts are always collected. Stage times are only collected when the conversion is
+ * timed, since timing adds a few {@link System#nanoTime()} calls per line. The peak heap
+ * is only measured when the conversion is timed or recorded by JFR, since the memory
+ * pool beans take about as long to load as a small conversion takes to run.
+ *
+ * The stages of a streaming conversion interleave entry by entry:
+ * 	- read: reading lines from the export, including decoding
+ * 	- classify: finding the key and separator of each line
+ * 	- build: the rest of assembling entries
+ * 	- serialize: encoding entries as XML
+ * 	- write: handing the XML to the output, including compression or encryption
+ * 	  back pressure
+ *
+ * The peak heap is that of the whole JVM, so conversions running at the same time
+ * see each other's memory.
+ *
+ * @author Branden
+ *
+ */
+public final class ConversionMetrics {
+
+	public enum Stage {
+		READ, CLASSIFY, BUILD, SERIALIZE, WRITE;
+
+		String jsonName() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private final boolean timed;
+	private final long[] stageNanos = new long[Stage.values().length];
+	private long readEntryNanos;
+	private long writeEntryNanos;
+
+	private String inputPath;
+	private String outputPath;
+	private long entries;
+	private long customFields;
+	private long multiLineNotes;
+	private long inputBytes;
+	private long xmlBytes;
+	private long outputBytes;
+	private long elapsedNanos;
+	private long peakHeapBytes;
+
+	// Null unless JFR was started before the conversion
+	private ConversionEvent event;
+
+	/**
+	 * @param timed Whether to time the stages
+	 */
+	ConversionMetrics(boolean timed) {
+		this.timed = timed;
+	}
+
+	boolean timed() {
+		return timed;
+	}
+
+	void start(File input) {
+		start(input.getAbsolutePath());
+		inputBytes = input.length();
+	}
+
+	/**
+	 * @param inputPath Description of the input, null if there is none
+	 */
+	void start(String inputPath) {
+		this.inputPath = inputPath;
+		if (FlightRecorder.isInitialized()) {
+			event = new ConversionEvent();
+			event.begin();
+		}
+		if (measuresHeap()) {
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+					pool.resetPeakUsage();
+				}
+			}
+		}
+		elapsedNanos = System.nanoTime();
+	}
+
+	void addStageNanos(Stage stage, long nanos) {
+		stageNanos[stage.ordinal()] += nanos;
+	}
+
+	/**
+	 * @param nanos Time spent in {@link EnpassEntryReader#readEntry()}, made of reading,
+	 * 			classifying and building
+	 */
+	void addReadEntryNanos(long nanos) {
+		readEntryNanos += nanos;
+	}
+
+	/**
+	 * @param nanos Time spent writing an entry, made of serializing and writing
+	 */
+	void addWriteEntryNanos(long nanos) {
+		writeEntryNanos += nanos;
+	}
+
+	void addXmlBytes(long bytes) {
+		xmlBytes += bytes;
+	}
+
+	void recordEntry(EnpassEntry entry) {
+		entries++;
+		customFields += entry.customFields.size();
+		if (entry.note.indexOf('\n') >= 0) {
+			multiLineNotes++;
+		}
+	}
+
+	void setInputBytes(long inputBytes) {
+		this.inputBytes = inputBytes;
+	}
+
+	void finish(File output) {
+		finish(output.getAbsolutePath(), output.length());
+	}
+
+	void finish(String outputPath, long outputBytes) {
+		elapsedNanos = System.nanoTime() - elapsedNanos;
+		this.outputPath = outputPath;
+		this.outputBytes = outputBytes;
+		if (timed) {
+			stageNanos[Stage.BUILD.ordinal()] = Math.max(0, readEntryNanos -
+					stageNanos[Stage.READ.ordinal()] - stageNanos[Stage.CLASSIFY.ordinal()]);
+			stageNanos[Stage.SERIALIZE.ordinal()] = Math.max(0, writeEntryNanos -
+					stageNanos[Stage.WRITE.ordinal()]);
+		}
+
+		if (measuresHeap()) {
+			long peak = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null) {
+					peak += pool.getPeakUsage().getUsed();
+				}
+			}
+			peakHeapBytes = peak;
+		}
+
+		commitEvents();
+	}
+
+	private boolean measuresHeap() {
+		return timed || event != null;
+	}
+
+	private void commitEvents() {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.inputPath = inputPath;
+			event.outputPath = outputPath;
+			event.entries = entries;
+			event.customFields = customFields;
+			event.multiLineNotes = multiLineNotes;
+			event.inputBytes = inputBytes;
+			event.outputBytes = outputBytes;
+			event.peakHeapBytes = peakHeapBytes;
+			event.commit();
+		}
+		if (timed) {
+			for (Stage stage : Stage.values()) {
+				ConversionStageEvent stageEvent = new ConversionStageEvent();
+				if (stageEvent.shouldCommit()) {
+					stageEvent.inputPath = inputPath;
+					stageEvent.stage = stage.jsonName();
+					stageEvent.time = stageNanos[stage.ordinal()];
+					stageEvent.commit();
+				}
+			}
+		}
+	}
+
+	public String inputPath() {
+		return inputPath;
+	}
+
+	public String outputPath() {
+		return outputPath;
+	}
+
+	public long entries() {
+		return entries;
+	}
+
+	public long customFields() {
+		return customFields;
+	}
+
+	public long multiLineNotes() {
+		return multiLineNotes;
+	}
+
+	public long inputBytes() {
+		return inputBytes;
+	}
+
+	/**
+	 * @return Size of the XML before any compression or encryption
+	 */
+	public long xmlBytes() {
+		return xmlBytes;
+	}
+
+	public long outputBytes() {
+		return outputBytes;
+	}
+
+	public long elapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return Time spent in a stage, 0 if the conversion was not timed
+	 */
+	public long stageNanos(Stage stage) {
+		return stageNanos[stage.ordinal()];
+	}
+
+	/**
+	 * @return Peak heap of the JVM, 0 if the conversion was neither timed nor recorded
+	 * 			by JFR
+	 */
+	public long peakHeapBytes() {
+		return peakHeapBytes;
+	}
+
+	public double entriesPerSecond() {
+		return elapsedNanos > 0 ? entries * 1e9 / elapsedNanos : 0;
+	}
+
+	/**
+	 * @return Input bytes converted per second
+	 */
+	public double bytesPerSecond() {
+		return elapsedNanos > 0 ? inputBytes * 1e9 / elapsedNanos : 0;
+	}
+
+	/**
+	 * @return The metrics as a JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder(512);
+		json.append('{');
+		appendString(json, "input", inputPath).append(',');
+		appendString(json, "output", outputPath).append(',');
+		json.append("\"entries\":").append(entries).append(',');
+		json.append("\"customFields\":").append(customFields).append(',');
+		json.append("\"multiLineNotes\":").append(multiLineNotes).append(',');
+		json.append("\"inputBytes\":").append(inputBytes).append(',');
+		json.append("\"xmlBytes\":").append(xmlBytes).append(',');
+		json.append("\"outputBytes\":").append(outputBytes).append(',');
+		json.append("\"elapsedNanos\":").append(elapsedNanos).append(',');
+		json.append("\"entriesPerSecond\":").append(String.format(Locale.ROOT, "%.1f", entriesPerSecond())).append(',');
+		json.append("\"bytesPerSecond\":").append(String.format(Locale.ROOT, "%.1f", bytesPerSecond())).append(',');
+		json.append("\"peakHeapBytes\":").append(peakHeapBytes);
+		if (timed) {
+			json.append(",\"stageNanos\":{");
+			for (Stage stage : Stage.values()) {
+				if (stage.ordinal() > 0) {
+					json.append(',');
+				}
+				json.append('"').append(stage.jsonName()).append("\":").append(stageNanos[stage.ordinal()]);
+			}
+			json.append('}');
+		}
+		return json.append('}').toString();
+	}
+
+	private static StringBuilder appendString(StringBuilder json, String name, String value) {
+		json.append('"').append(name).append("\":");
+		if (value == null) {
+			return json.append("null");
+		}
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"');
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.brandenfung.enpass2keepassxml;
+
+/**
+ * Immutable options of a conversion made by {@link Enpass2KeePass}.
+ * 
+ * @author Branden
+ *
+ */
+public class ConversionOptions {
+
+	/** Options used when none are given */
+	public static final ConversionOptions DEFAULT = new Builder().build();
+
+	public final UUIDGenerator uuids;
+	/** Master key of the KDBX database to write, null to write KeePass 2.x XML */
+	public final KdbxKey kdbxKey;
+	/** Whether to gzip the XML on several threads */
+	public final boolean gzip;
+	/** Whether to time each stage into the {@link ConversionMetrics} */
+	public final boolean timeStages;
+	/** Escaper of values, decides what happens to characters XML 1.0 does not allow */
+	public final XmlEscaper escaper;
+	/** Whether to write KeePass 1.x XML instead of 2.x */
+	public final boolean keePass1;
+	/** Whether to read, parse and write on separate threads */
+	public final boolean pipelined;
+	/** Key to sort entries by, null to keep the order of the export */
+	public final SortedEntryWriter.SortKey sortKey;
+	/** Estimated heap size of the entries held while sorting before they are spilled to disk */
+	public final long sortMemoryBytes;
+	/** Whether to hold passwords and secret custom fields off heap until they are written */
+	public final boolean protectSecrets;
+
+	public static class Builder {
+		private UUIDGenerator uuids = RandomUUIDGenerator.INSTANCE;
+		private KdbxKey kdbxKey;
+		private boolean gzip;
+		private boolean timeStages;
+		private XmlEscaper.InvalidCharPolicy invalidChars = XmlEscaper.InvalidCharPolicy.REPLACE;
+		private boolean keePass1;
+		private boolean pipelined;
+		private SortedEntryWriter.SortKey sortKey;
+		private long sortMemoryBytes = Runtime.getRuntime().maxMemory() / 4;
+		private boolean protectSecrets;
+
+		/**
+		 * @param uuids Generator of group and entry UUIDs, random by default. Use 
+		 * 			{@link ContentUUIDGenerator} for output that is identical between runs.
+		 */
+		public void setUUIDGenerator(UUIDGenerator uuids) {
+			this.uuids = uuids;
+		}
+
+		/**
+		 * @param kdbxKey Master key to write an encrypted KDBX 4 database with instead of
+		 * 			plaintext XML, null for XML
+		 */
+		public void setKdbxKey(KdbxKey kdbxKey) {
+			this.kdbxKey = kdbxKey;
+		}
+
+		/**
+		 * @param gzip Whether to write the XML gzip compressed, see {@link ParallelGzipOutputStream}.
+		 * 			Ignored when writing KDBX, which is compressed already.
+		 */
+		public void setGzip(boolean gzip) {
+			this.gzip = gzip;
+		}
+
+		/**
+		 * @param timeStages Whether to time each stage of the conversion, which costs a
+		 * 			few clock reads per line
+		 */
+		public void setTimeStages(boolean timeStages) {
+			this.timeStages = timeStages;
+		}
+
+		/**
+		 * @param invalidChars What to write in place of characters that XML 1.0 does 
+		 * 			not allow, replaced with U+FFFD by default
+		 */
+		public void setInvalidCharPolicy(XmlEscaper.InvalidCharPolicy invalidChars) {
+			this.invalidChars = invalidChars;
+		}
+
+		/**
+		 * @param keePass1 Whether to write KeePass 1.x XML, see {@link KeePassXML1StreamWriter}.
+		 * 			Ignored when writing KDBX, which holds KeePass 2.x XML.
+		 */
+		public void setKeePass1(boolean keePass1) {
+			this.keePass1 = keePass1;
+		}
+
+		/**
+		 * @param pipelined Whether to overlap reading, parsing and writing on three 
+		 * 			threads, see {@link PipelinedConverter}. Stage times are not recorded.
+		 */
+		public void setPipelined(boolean pipelined) {
+			this.pipelined = pipelined;
+		}
+
+		/**
+		 * @param sortKey Key to sort entries by, with custom fields in order of key, or
+		 * 			null to keep the order of the export. See {@link SortedEntryWriter}.
+		 */
+		public void setSortKey(SortedEntryWriter.SortKey sortKey) {
+			this.sortKey = sortKey;
+		}
+
+		/**
+		 * @param sortMemoryBytes Estimated heap size of the entries held while sorting,
+		 * 			a quarter of the maximum heap by default. Larger exports are sorted in
+		 * 			runs spilled to temporary files.
+		 */
+		public void setSortMemoryBytes(long sortMemoryBytes) {
+			this.sortMemoryBytes = sortMemoryBytes;
+		}
+
+		/**
+		 * @param protectSecrets Whether to copy passwords and custom fields named like
+		 * 			secrets, eg. PIN or CVC, from each line into off heap 
+		 * 			{@link com.brandenfung.enpass2keepassxml.model.SecretValue}s that are 
+		 * 			wiped once the entry is written, instead of keeping them in Strings.
+		 * 			Can not be used with sorting, which keeps entries after they are written.
+		 */
+		public void setProtectSecrets(boolean protectSecrets) {
+			this.protectSecrets = protectSecrets;
+		}
+
+		/**
+		 * @throws IllegalStateException If secrets are protected and entries sorted, or a
+		 * 			KDBX database is sorted, since sorting may spill passwords to disk
+		 */
+		public ConversionOptions build() {
+			if (protectSecrets && sortKey != null) {
+				throw new IllegalStateException("Secrets can not be protected when sorting entries");
+			}
+			if (kdbxKey != null && sortKey != null) {
+				throw new IllegalStateException("KDBX databases can not be sorted");
+			}
+			return new ConversionOptions(this);
+		}
+	}
+
+	private ConversionOptions(Builder builder) {
+		this.uuids = builder.uuids;
+		this.kdbxKey = builder.kdbxKey;
+		this.gzip = builder.gzip && builder.kdbxKey == null;
+		this.timeStages = builder.timeStages;
+		this.escaper = builder.invalidChars == XmlEscaper.InvalidCharPolicy.REPLACE ? XmlEscaper.DEFAULT 
+				: new XmlEscaper(builder.invalidChars);
+		this.keePass1 = builder.keePass1 && builder.kdbxKey == null;
+		this.pipelined = builder.pipelined;
+		this.sortKey = builder.sortKey;
+		this.sortMemoryBytes = builder.sortMemoryBytes;
+		this.protectSecrets = builder.protectSecrets;
+	}
+
+	/**
+	 * @return Extension of the files written with these options
+	 */
+	String fileExtension() {
+		if (kdbxKey != null) {
+			return ".kdbx";
+		}
+		return gzip ? ".xml.gz" : ".xml";
+	}
+
+}
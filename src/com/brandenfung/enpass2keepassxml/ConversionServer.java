@@ -0,0 +1,337 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Converts exports sent over HTTP on the loopback interface, so scripts that convert
+ * many times a day pay for starting and warming up the JVM once instead of on every
+ * call.
+ *
+ * POST the exported Enpass text to / and the response is the KeePass XML, or gzip or
+ * KDBX, as the {@link ConversionOptions} of the server ask. Requests are converted
+ * concurrently, one per thread of a fixed size pool. Further requests wait for a free
+ * thread.
+ *
+ * Every request is limited to a number of bytes of memory. The export is streamed
+ * into the parser and never held whole. The output is collected in a buffer of the
+ * worker thread, reused from request to request, so a failure part way through can
+ * still be answered with an error status instead of a truncated document. An export
+ * or output larger than the limit is answered with 413. Parse errors, and a malformed
+ * Content-Length, are answered with 400. The buffer is zeroed after every response,
+ * since it holds passwords in plain text, and a buffer grown past 1 MB is dropped
+ * rather than kept for the next request.
+ *
+ * What stays warm between requests is the compiled code and the shared tables, such
+ * as the custom field keys. Each request gets a new reader and writer, which are
+ * cheap to create and hold the state of one conversion.
+ *
+ * @author Branden
+ *
+ */
+public final class ConversionServer implements Closeable {
+
+	private static final int OK = 200;
+	private static final int BAD_REQUEST = 400;
+	private static final int NOT_FOUND = 404;
+	private static final int METHOD_NOT_ALLOWED = 405;
+	private static final int PAYLOAD_TOO_LARGE = 413;
+	private static final int INTERNAL_ERROR = 500;
+
+	private final ConversionOptions options;
+	private final long maxRequestBytes;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final ThreadLocal<ResponseBuffer> buffers;
+
+	/**
+	 * Binds to the loopback interface, call {@link #start()} to accept requests.
+	 *
+	 * @param port Port to listen on, 0 for any free port
+	 * @param options Options of every conversion
+	 * @param threads Number of requests converted at once
+	 * @param maxRequestBytes Largest export, and largest output, of a request
+	 * @throws IOException If the port could not be bound
+	 */
+	public ConversionServer(int port, ConversionOptions options, int threads, long maxRequestBytes)
+			throws IOException {
+		if (threads < 1 || maxRequestBytes < 1 || maxRequestBytes > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Invalid number of threads or request limit");
+		}
+		this.options = options;
+		this.maxRequestBytes = maxRequestBytes;
+		this.buffers = ThreadLocal.withInitial(() -> new ResponseBuffer((int) maxRequestBytes));
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "enpass-server");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * @return Port the server listens on
+	 */
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stops accepting requests and waits a moment for the ones being converted.
+	 */
+	@Override
+	public void close() {
+		server.stop(1);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestURI().getPath().equals("/")) {
+				sendText(exchange, NOT_FOUND, "Not found");
+			} else if (!exchange.getRequestMethod().equals("POST")) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				sendText(exchange, METHOD_NOT_ALLOWED, "Only POST is supported");
+			} else {
+				convert(exchange);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void convert(HttpExchange exchange) throws IOException {
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (length != null) {
+			long contentLength;
+			try {
+				contentLength = Long.parseLong(length.trim());
+			} catch (NumberFormatException e) {
+				sendText(exchange, BAD_REQUEST, "Invalid Content-Length: " + length);
+				return;
+			}
+			if (contentLength > maxRequestBytes) {
+				sendText(exchange, PAYLOAD_TOO_LARGE, "Export is larger than " + maxRequestBytes + " bytes");
+				return;
+			}
+		}
+
+		ResponseBuffer buffer = buffers.get();
+		try {
+			try (EnpassEntryReader reader = new EnpassEntryReader(new EnpassTextDecoder(
+					new LimitedInputStream(exchange.getRequestBody(), maxRequestBytes)));
+					KeePassEntryWriter writer = Enpass2KeePass.openWriter(
+							Enpass2KeePass.wrapOutput(buffer, options), options)) {
+				reader.setProtectSecrets(options.protectSecrets);
+				EnpassEntry entry;
+				while ((entry = reader.readEntry()) != null) {
+					writer.writeEntry(entry);
+				}
+			} catch (RequestTooLargeException e) {
+				sendText(exchange, PAYLOAD_TOO_LARGE, e.getMessage());
+				return;
+			} catch (EnpassFileParserException e) {
+				sendText(exchange, BAD_REQUEST, e.getMessage());
+				return;
+			} catch (IOException | RuntimeException e) {
+				// The KDBX output is written from its pipeline thread, which wraps the error
+				RequestTooLargeException tooLarge = tooLarge(e);
+				if (tooLarge != null) {
+					sendText(exchange, PAYLOAD_TOO_LARGE, tooLarge.getMessage());
+				} else {
+					sendText(exchange, INTERNAL_ERROR, "Could not convert: " + e.getMessage());
+				}
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", contentType());
+			exchange.sendResponseHeaders(OK, buffer.size());
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(buffer.bytes(), 0, buffer.size());
+			}
+		} finally {
+			buffer.wipe();
+		}
+	}
+
+	/**
+	 * @return The {@link RequestTooLargeException} that caused an error, or null if
+	 * 			there is none
+	 */
+	private static RequestTooLargeException tooLarge(Throwable t) {
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause instanceof RequestTooLargeException) {
+				return (RequestTooLargeException) cause;
+			}
+		}
+		return null;
+	}
+
+	private String contentType() {
+		if (options.kdbxKey != null) {
+			return "application/octet-stream";
+		} else if (options.gzip) {
+			return "application/gzip";
+		}
+		return "application/xml; charset=utf-8";
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Thrown when the export or output of a request passes the limit.
+	 */
+	private static final class RequestTooLargeException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		RequestTooLargeException(String what, long limit) {
+			super(what + " is larger than " + limit + " bytes");
+		}
+	}
+
+	/**
+	 * Request body that fails once more than the limit was read, for exports sent
+	 * without a Content-Length.
+	 */
+	private static final class LimitedInputStream extends FilterInputStream {
+
+		private final long limit;
+		private long read;
+
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		private void count(int n) throws RequestTooLargeException {
+			read += n;
+			if (read > limit) {
+				throw new RequestTooLargeException("Export", limit);
+			}
+		}
+	}
+
+	/**
+	 * Output of a request, grown as needed up to the limit and kept for the next
+	 * request of the same thread. Closing it, as the writers do, only marks the end of
+	 * the output.
+	 */
+	private static final class ResponseBuffer extends OutputStream {
+
+		private static final int INITIAL_BYTES = 8192;
+		// Largest buffer kept for the next request, larger ones are dropped after use
+		private static final int RETAINED_BYTES = 1 << 20;
+
+		private final int limit;
+		private byte[] bytes = new byte[INITIAL_BYTES];
+		private int size;
+
+		ResponseBuffer(int limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			ensureCapacity(1);
+			bytes[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ensureCapacity(len);
+			System.arraycopy(b, off, bytes, size, len);
+			size += len;
+		}
+
+		private void ensureCapacity(int len) throws RequestTooLargeException {
+			if (len > limit - size) {
+				throw new RequestTooLargeException("Output", limit);
+			}
+			if (size + len > bytes.length) {
+				byte[] grown = Arrays.copyOf(bytes, (int) Math.min(limit,
+						Math.max((long) bytes.length * 2, size + len)));
+				// The old array holds passwords too, and is left to the GC
+				Arrays.fill(bytes, 0, size, (byte) 0);
+				bytes = grown;
+			}
+		}
+
+		byte[] bytes() {
+			return bytes;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Zeroes what was written and empties the buffer for the next request. A buffer
+		 * grown past {@link #RETAINED_BYTES} is replaced by a small one, so every pool
+		 * thread does not hold on to its largest response.
+		 */
+		void wipe() {
+			Arrays.fill(bytes, 0, size, (byte) 0);
+			size = 0;
+			if (bytes.length > RETAINED_BYTES) {
+				bytes = new byte[INITIAL_BYTES];
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+package com.brandenfung.enpass2keepassxml;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event with the total time a conversion spent in one of its
+ * {@link ConversionMetrics.Stage}s. Committed once per stage when a timed conversion ends.
+ *
+ * @author Branden
+ *
+ */
+@Name("com.brandenfung.enpass2keepass.ConversionStage")
+@Label("Enpass Conversion Stage")
+@Category("Enpass2KeePass")
+@Description("Time a conversion spent in one stage, summed over all entries")
+class ConversionStageEvent extends jdk.jfr.Event {
+
+	@Label("Input")
+	String inputPath;
+
+	@Label("Stage")
+	String stage;
+
+	@Label("Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long time;
+
+}
@@ -1,97 +1,707 @@
-package com.brandenfung.enpass2keepassxml;
-
-import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-
-import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
-import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
-
-public class Enpass2KeePass {
-
-	private static final String ROOT_FILENAME = "Enpass2KeePass";
-
-	/**
-	 * @param args args[0] is the input txt file, args[1] is the output 
-	 * 			   file directory
-	 */
-	public static void main(String[] args) {
-
-		if (args.length < 2) {
-			System.out.println("Must specify a valid input " + 
-					"Enpass exported .txt file and " + 
-					"a valid output directory as arg1 and arg2.");		
-			return;
-		}
-
-		File inputPath = new File(args[0]);
-		File outputDir = new File(args[1]);
-
-		try {
-			enpass2KeePassXml(inputPath, outputDir);
-		} catch (Enpass2KeePassInputException e) {
-			System.out.println(e.getMessage());
-		} catch (EnpassFileParserException e) {
-			System.out.println(e.getMessage());
-		}
-	}
-
-	/**
-	 * Create a KeePass 2.x xml file given an exported Enpass txt file.
-	 * 
-	 * @param inputPath Path of the exported Enpass txt file
-	 * @param outputDir Output directory to store the output xml
-	 * @return
-	 * @throws Enpass2KeePassInputException
-	 */
-	public static String enpass2KeePassXml(File inputPath, File outputDir) 
-			throws Enpass2KeePassInputException, EnpassFileParserException {	
-
-		if (inputPath == null && outputDir == null) {
-			throw new Enpass2KeePassInputException("Must specify a valid input Enpass " + 
-					"exported .txt file and valid output directory");			
-		} else if (inputPath == null) {
-			throw new Enpass2KeePassInputException("Must specify a valid input Enpass exported .txt file");			
-		} else if (outputDir == null) {
-			throw new Enpass2KeePassInputException("Must specify a valid output directory");			
-		} else {
-
-			// Generate the output file path
-			File outputPath = new File(outputDir, generateFileName());
-
-			if (!inputPath.isFile()) {
-				throw new Enpass2KeePassInputException("Must specify a valid input Enpass exported .txt file");
-			}
-
-			if (!outputDir.isDirectory()) {
-				throw new Enpass2KeePassInputException("Must specify a valid output directory");
-			} 	
-
-			ArrayList<EnpassEntry> enpassEntries = EnpassFileParser.parseEnpassFile(inputPath.getAbsolutePath());
-			
-
-			KeePassXMLWriter.writeKeePassXml2(enpassEntries, outputPath.getAbsolutePath());
-
-			return outputPath.getAbsolutePath();
-		}
-	}
-
-	private static String generateFileName() {
-		String date = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
-		return ROOT_FILENAME.concat("_").concat(date).concat(".xml");
-	}
-
-	public static class Enpass2KeePassInputException extends Exception {
-
-		/**
-		 * 
-		 */
-		private static final long serialVersionUID = -7014266058400513867L;
-
-		public Enpass2KeePassInputException(String msg) {
-			super(msg);
-		}
-	}
-
-}
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+public class Enpass2KeePass {
+
+	private static final String ROOT_FILENAME = "Enpass2KeePass";
+
+	private static final String DETERMINISTIC_UUIDS_OPTION = "--deterministic-uuids";
+	private static final String INCREMENTAL_OPTION = "--incremental";
+	private static final String BATCH_OPTION = "--batch";
+	private static final String THREADS_OPTION = "--threads";
+	private static final String KDBX_OPTION = "--kdbx";
+	private static final String GZIP_OPTION = "--gzip";
+	private static final String METRICS_OPTION = "--metrics";
+	private static final String KEY_FILE_OPTION = "--keyfile";
+	private static final String MERGE_OPTION = "--merge";
+	private static final String MATCH_PASSWORD_OPTION = "--match-password";
+	private static final String INVALID_CHARS_OPTION = "--invalid-chars";
+	private static final String KEEPASS1_OPTION = "--keepass1";
+	private static final String PIPELINE_OPTION = "--pipeline";
+	private static final String SORT_OPTION = "--sort";
+	private static final String PROTECT_SECRETS_OPTION = "--protect-secrets";
+	private static final String SERVE_OPTION = "--serve";
+	private static final String REQUEST_LIMIT_OPTION = "--request-limit";
+
+	private static final long DEFAULT_REQUEST_LIMIT = 64L << 20;
+
+	/**
+	 * @param args args[0] is the input txt file, args[1] is the output 
+	 * 			   file directory. Options may follow:
+	 * 			   --deterministic-uuids derives UUIDs from entry content so 
+	 * 			   converting the same export twice gives identical output
+	 * 			   --incremental &lt;state file&gt; only writes entries that changed
+	 * 			   since the run that wrote the state file
+	 * 			   --batch converts every file matched by args[0], a directory or
+	 * 			   a glob, concurrently into args[1]
+	 * 			   --threads &lt;n&gt; number of files converted at once in batch mode,
+	 * 			   the number of processors by default
+	 * 			   --kdbx writes an encrypted KDBX 4 database instead of xml, the
+	 * 			   password is read from the console
+	 * 			   --keyfile &lt;key file&gt; key file of the KDBX database
+	 * 			   --gzip writes the xml gzip compressed on several threads
+	 * 			   --metrics &lt;json file&gt; times each stage of the conversion and
+	 * 			   writes a JSON report, - prints it
+	 * 			   --merge merges every txt file given into one xml, leaving out
+	 * 			   entries with the same title, username and url as an earlier one.
+	 * 			   The last path is the output directory
+	 * 			   --match-password only treats merged entries with the same
+	 * 			   password as duplicates
+	 * 			   --invalid-chars &lt;replace|remove|encode&gt; what to write in place
+	 * 			   of characters XML does not allow, eg. control characters in notes.
+	 * 			   They are replaced with U+FFFD by default
+	 * 			   --keepass1 writes KeePass 1.x xml, custom fields are added to the
+	 * 			   notes
+	 * 			   --pipeline reads, parses and writes on separate threads, which
+	 * 			   is faster on large exports
+	 * 			   --sort &lt;title|url|username&gt; writes entries sorted by the field
+	 * 			   and custom fields sorted by key, so outputs diff cleanly
+	 * 			   --protect-secrets holds passwords and secret custom fields such as
+	 * 			   PINs off heap and wipes them once written
+	 * 			   --serve &lt;port&gt; converts exports POSTed to localhost:port
+	 * 			   instead of files, no paths are given. --threads sets how many
+	 * 			   requests are converted at once
+	 * 			   --request-limit &lt;bytes&gt; largest export and output of a
+	 * 			   request in server mode, 64 MB by default
+	 */
+	public static void main(String[] args) {
+
+		ArrayList<String> paths = new ArrayList<>();
+		ConversionOptions.Builder options = new ConversionOptions.Builder();
+		File stateFile = null;
+		boolean batch = false;
+		boolean merge = false;
+		boolean matchPasswords = false;
+		boolean kdbx = false;
+		boolean keePass1 = false;
+		boolean gzip = false;
+		boolean sort = false;
+		boolean protectSecrets = false;
+		boolean pipelined = false;
+		int servePort = -1;
+		long requestLimit = DEFAULT_REQUEST_LIMIT;
+		File keyFile = null;
+		String metricsPath = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals(DETERMINISTIC_UUIDS_OPTION)) {
+				options.setUUIDGenerator(ContentUUIDGenerator.INSTANCE);
+			} else if (arg.equals(INCREMENTAL_OPTION) && i + 1 < args.length) {
+				stateFile = new File(args[++i]);
+			} else if (arg.equals(METRICS_OPTION) && i + 1 < args.length) {
+				metricsPath = args[++i];
+				options.setTimeStages(true);
+			} else if (arg.equals(GZIP_OPTION)) {
+				gzip = true;
+				options.setGzip(true);
+			} else if (arg.equals(KDBX_OPTION)) {
+				kdbx = true;
+			} else if (arg.equals(KEY_FILE_OPTION) && i + 1 < args.length) {
+				keyFile = new File(args[++i]);
+			} else if (arg.equals(BATCH_OPTION)) {
+				batch = true;
+			} else if (arg.equals(MERGE_OPTION)) {
+				merge = true;
+			} else if (arg.equals(MATCH_PASSWORD_OPTION)) {
+				matchPasswords = true;
+			} else if (arg.equals(SORT_OPTION) && i + 1 < args.length) {
+				sort = true;
+				try {
+					options.setSortKey(SortedEntryWriter.SortKey.valueOf(args[++i].toUpperCase(Locale.ROOT)));
+				} catch (IllegalArgumentException e) {
+					System.out.println("Sort key must be title, url or username");
+					return;
+				}
+			} else if (arg.equals(PROTECT_SECRETS_OPTION)) {
+				protectSecrets = true;
+				options.setProtectSecrets(true);
+			} else if (arg.equals(PIPELINE_OPTION)) {
+				pipelined = true;
+				options.setPipelined(true);
+			} else if (arg.equals(SERVE_OPTION) && i + 1 < args.length) {
+				try {
+					servePort = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid port " + args[i]);
+					return;
+				}
+			} else if (arg.equals(REQUEST_LIMIT_OPTION) && i + 1 < args.length) {
+				try {
+					requestLimit = Long.parseLong(args[++i]);
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid request limit " + args[i]);
+					return;
+				}
+			} else if (arg.equals(KEEPASS1_OPTION)) {
+				keePass1 = true;
+				options.setKeePass1(true);
+			} else if (arg.equals(INVALID_CHARS_OPTION) && i + 1 < args.length) {
+				try {
+					options.setInvalidCharPolicy(XmlEscaper.InvalidCharPolicy.valueOf(
+							args[++i].toUpperCase(Locale.ROOT)));
+				} catch (IllegalArgumentException e) {
+					System.out.println("Invalid character policy must be replace, remove or encode");
+					return;
+				}
+			} else if (arg.equals(THREADS_OPTION) && i + 1 < args.length) {
+				try {
+					threads = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid number of threads " + args[i]);
+					return;
+				}
+				if (threads < 1) {
+					System.out.println("Invalid number of threads " + args[i]);
+					return;
+				}
+			} else if (arg.startsWith("--")) {
+				System.out.println("Unknown option " + arg);
+				return;
+			} else {
+				paths.add(arg);
+			}
+		}
+
+		if (servePort < 0 && paths.size() < 2) {
+			System.out.println("Must specify a valid input " + 
+					"Enpass exported .txt file and " + 
+					"a valid output directory as arg1 and arg2.");		
+			return;
+		}
+
+		if (protectSecrets && sort) {
+			System.out.println(PROTECT_SECRETS_OPTION + " can not be used with " + SORT_OPTION);
+			return;
+		}
+
+		// Sorting can spill plaintext passwords to temporary files
+		if (kdbx && sort) {
+			System.out.println(KDBX_OPTION + " can not be used with " + SORT_OPTION);
+			return;
+		}
+
+		if (keePass1 && (kdbx || stateFile != null)) {
+			System.out.println(KEEPASS1_OPTION + " can not be used with " + 
+					(kdbx ? KDBX_OPTION : INCREMENTAL_OPTION));
+			return;
+		}
+
+		if (kdbx) {
+			if (stateFile != null) {
+				System.out.println(INCREMENTAL_OPTION + " can not be used with " + KDBX_OPTION);
+				return;
+			}
+			// KDBX compresses its own payload
+			if (gzip) {
+				System.out.println(GZIP_OPTION + " can not be used with " + KDBX_OPTION);
+				return;
+			}
+			try {
+				options.setKdbxKey(readKdbxKey(keyFile));
+			} catch (IOException e) {
+				System.out.println("Could not read key: " + e.getMessage());
+				return;
+			} catch (IllegalStateException e) {
+				System.out.println(e.getMessage());
+				return;
+			}
+		}
+
+		if (stateFile != null && (gzip || sort || metricsPath != null || pipelined || protectSecrets)) {
+			System.out.println(INCREMENTAL_OPTION + " can not be used with " + GZIP_OPTION + ", " + 
+					SORT_OPTION + ", " + METRICS_OPTION + ", " + PIPELINE_OPTION + " or " + PROTECT_SECRETS_OPTION);
+			return;
+		}
+
+		if (servePort >= 0) {
+			if (stateFile != null || batch || merge || pipelined || metricsPath != null) {
+				System.out.println(SERVE_OPTION + " can not be used with " + INCREMENTAL_OPTION + ", " + 
+						BATCH_OPTION + ", " + MERGE_OPTION + ", " + PIPELINE_OPTION + " or " + METRICS_OPTION);
+				return;
+			}
+			// Entries held while sorting count towards the memory of a request
+			options.setSortMemoryBytes(requestLimit);
+			serve(servePort, options.build(), threads, requestLimit);
+			return;
+		}
+
+		if (merge && (stateFile != null || pipelined || metricsPath != null || batch)) {
+			System.out.println(MERGE_OPTION + " can not be used with " + INCREMENTAL_OPTION + ", " + 
+					PIPELINE_OPTION + ", " + METRICS_OPTION + " or " + BATCH_OPTION);
+			return;
+		}
+
+		if (batch) {
+			if (stateFile != null) {
+				System.out.println(INCREMENTAL_OPTION + " can not be used with " + BATCH_OPTION);
+				return;
+			}
+			convertBatch(paths.get(0), new File(paths.get(1)), options.build(), threads, metricsPath);
+			return;
+		}
+
+		if (merge) {
+			List<File> inputs = new ArrayList<>();
+			for (String path : paths.subList(0, paths.size() - 1)) {
+				inputs.add(new File(path));
+			}
+			try {
+				VaultMerger.Result result = mergeKeePassXml(inputs, new File(paths.get(paths.size() - 1)), 
+						matchPasswords, options.build());
+				System.out.println(result.outputPath + ": " + result);
+			} catch (Enpass2KeePassInputException e) {
+				System.out.println(e.getMessage());
+			} catch (EnpassFileParserException e) {
+				System.out.println(e.getMessage());
+			} catch (IOException e) {
+				System.out.println("Could not merge files: " + e.getMessage());
+			}
+			return;
+		}
+
+		File inputPath = new File(paths.get(0));
+		File outputDir = new File(paths.get(1));
+
+		try {
+			if (stateFile != null) {
+				IncrementalConverter.Result result = incrementalKeePassXml(inputPath, outputDir, 
+						stateFile, options.build());
+				System.out.println(result.outputPath + ": " + result);
+			} else {
+				ConversionOptions conversionOptions = options.build();
+				ConversionMetrics metrics = convert(inputPath, 
+						validate(inputPath, outputDir, conversionOptions.fileExtension()), conversionOptions);
+				if (metricsPath != null) {
+					writeReport(metricsPath, metrics.toJson());
+				}
+			}
+		} catch (Enpass2KeePassInputException e) {
+			System.out.println(e.getMessage());
+		} catch (EnpassFileParserException e) {
+			System.out.println(e.getMessage());
+		} catch (IOException e) {
+			System.out.println("Could not convert file: " + e.getMessage());
+		}
+	}
+
+	private static void serve(int port, ConversionOptions options, int threads, long requestLimit) {
+		ConversionServer server;
+		try {
+			server = new ConversionServer(port, options, threads, requestLimit);
+		} catch (IOException e) {
+			System.out.println("Could not listen on port " + port + ": " + e.getMessage());
+			return;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+		server.start();
+		// The server's dispatcher thread keeps the JVM running until it is stopped
+		System.out.println("Converting exports POSTed to http://localhost:" + server.port() + "/");
+	}
+
+	private static KdbxKey readKdbxKey(File keyFile) throws IOException {
+		KdbxKey.Builder key = new KdbxKey.Builder();
+		char[] password;
+		Console console = System.console();
+		if (console != null) {
+			password = console.readPassword("Database password: ");
+		} else {
+			String line = new BufferedReader(new InputStreamReader(System.in)).readLine();
+			password = line != null ? line.toCharArray() : new char[0];
+		}
+		key.setPassword(password != null ? password : new char[0]);
+		if (keyFile != null) {
+			key.setKeyFile(keyFile);
+		}
+		return key.build();
+	}
+
+	private static void writeReport(String path, String json) throws IOException {
+		if (path.equals("-")) {
+			System.out.println(json);
+		} else {
+			Files.write(Paths.get(path), json.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void convertBatch(String dirOrGlob, File outputDir, ConversionOptions options, int threads, 
+			String metricsPath) {
+		try {
+			List<File> inputs = BatchConverter.findExports(dirOrGlob);
+			if (inputs.isEmpty()) {
+				System.out.println("No exported Enpass .txt files match " + dirOrGlob);
+				return;
+			}
+
+			long start = System.nanoTime();
+			List<BatchConverter.Result> results = new BatchConverter(outputDir, options, threads).convertAll(inputs);
+			int failed = 0;
+			long entries = 0;
+			StringBuilder report = new StringBuilder("[");
+			for (BatchConverter.Result result : results) {
+				System.out.println(result);
+				if (result.error != null) {
+					failed++;
+				} else {
+					report.append(report.length() > 1 ? "," : "").append(result.metrics.toJson());
+				}
+				entries += result.entries;
+			}
+			System.out.println("Converted " + (results.size() - failed) + " of " + results.size() + 
+					" files, " + entries + " entries in " + (System.nanoTime() - start) / 1000000 + " ms");
+			if (metricsPath != null) {
+				writeReport(metricsPath, report.append(']').toString());
+			}
+		} catch (Enpass2KeePassInputException e) {
+			System.out.println(e.getMessage());
+		} catch (IOException e) {
+			System.out.println("Could not list files or write report: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Create a KeePass 2.x xml file given an exported Enpass txt file. Entries are
+	 * streamed from the parser into the writer one at a time.
+	 * 
+	 * @param inputPath Path of the exported Enpass txt file
+	 * @param outputDir Output directory to store the output xml
+	 * @return
+	 * @throws Enpass2KeePassInputException
+	 * @throws IOException If the input could not be read or the output written
+	 */
+	public static String enpass2KeePassXml(File inputPath, File outputDir) 
+			throws Enpass2KeePassInputException, EnpassFileParserException, IOException {
+		return enpass2KeePassXml(inputPath, outputDir, ConversionOptions.DEFAULT);
+	}
+
+	/**
+	 * Create a KeePass 2.x xml file, or 1.x as the options ask, given an exported Enpass 
+	 * txt file. Entries are streamed from the parser into the writer one at a time.
+	 * 
+	 * @param inputPath Path of the exported Enpass txt file
+	 * @param outputDir Output directory to store the output xml
+	 * @param options Options of the conversion
+	 * @return Path of the output xml
+	 * @throws Enpass2KeePassInputException
+	 * @throws IOException If the input could not be read or the output written
+	 */
+	public static String enpass2KeePassXml(File inputPath, File outputDir, ConversionOptions options) 
+			throws Enpass2KeePassInputException, EnpassFileParserException, IOException {	
+
+		File outputPath = validate(inputPath, outputDir, options.fileExtension());
+		convert(inputPath, outputPath, options);
+		return outputPath.getAbsolutePath();
+	}
+
+	/**
+	 * Streams the entries of an exported Enpass txt file into a KeePass xml file of the version the options ask for.
+	 * The output is deleted if the conversion fails, since closing the writers still completes the file, and a
+	 * partial KDBX file would even open.
+	 * 
+	 * @return Metrics of the conversion
+	 */
+	static ConversionMetrics convert(File inputPath, File outputPath, ConversionOptions options) 
+			throws EnpassFileParserException, IOException {
+		ConversionMetrics metrics = new ConversionMetrics(options.timeStages && !options.pipelined);
+		metrics.start(inputPath);
+		boolean converted = false;
+		try {
+			if (options.pipelined) {
+				try (FileChannel in = FileChannel.open(inputPath.toPath());
+						KeePassEntryWriter writer = openWriter(outputPath, options, metrics)) {
+					PipelinedConverter.DEFAULT.convert(in, writer, metrics, options.protectSecrets);
+				}
+			} else {
+				convertEntries(inputPath, outputPath, options, metrics);
+			}
+			converted = true;
+		} finally {
+			if (!converted) {
+				outputPath.delete();
+			}
+		}
+		metrics.finish(outputPath);
+		return metrics;
+	}
+
+	private static void convertEntries(File inputPath, File outputPath, ConversionOptions options, 
+			ConversionMetrics metrics) throws EnpassFileParserException, IOException {
+		long closing = 0;
+		try (EnpassEntryReader reader = EnpassFileParser.openEnpassFile(inputPath.getAbsolutePath());
+				KeePassEntryWriter writer = openWriter(outputPath, options, metrics)) {
+			reader.setProtectSecrets(options.protectSecrets);
+			EnpassEntry entry;
+			if (metrics.timed()) {
+				reader.setMetrics(metrics);
+				long start = System.nanoTime();
+				while ((entry = reader.readEntry()) != null) {
+					long read = System.nanoTime();
+					writer.writeEntry(entry);
+					long written = System.nanoTime();
+					metrics.addReadEntryNanos(read - start);
+					metrics.addWriteEntryNanos(written - read);
+					metrics.recordEntry(entry);
+					start = written;
+				}
+				closing = System.nanoTime();
+				metrics.addReadEntryNanos(closing - start);
+			} else {
+				while ((entry = reader.readEntry()) != null) {
+					writer.writeEntry(entry);
+					metrics.recordEntry(entry);
+				}
+			}
+		}
+		if (metrics.timed()) { // Closing writes the end of the file
+			metrics.addWriteEntryNanos(System.nanoTime() - closing);
+		}
+	}
+
+	/**
+	 * @return Writer of the KeePass XML version the options ask for, sorting the
+	 * 			entries if they ask for it
+	 */
+	static KeePassEntryWriter openWriter(OutputStream out, ConversionOptions options) throws IOException {
+		KeePassEntryWriter writer;
+		if (options.keePass1) {
+			writer = new KeePassXML1StreamWriter(out, options.uuids, options.escaper);
+		} else {
+			writer = new KeePassXML2StreamWriter(out, options.uuids, options.escaper);
+		}
+		if (options.sortKey != null) {
+			writer = new SortedEntryWriter(writer, options.sortKey, options.sortMemoryBytes, null);
+		}
+		return writer;
+	}
+
+	/**
+	 * @return Writer of the output file, which is closed again if the writer could not
+	 * 			be opened
+	 */
+	private static KeePassEntryWriter openWriter(File outputPath, ConversionOptions options,
+			ConversionMetrics metrics) throws IOException {
+		OutputStream out = openOutput(outputPath, options);
+		try {
+			return openWriter(new MeteredOutputStream(out, metrics), options);
+		} catch (IOException | RuntimeException e) {
+			abortOutput(out);
+			throw e;
+		}
+	}
+
+	private static OutputStream openOutput(File outputPath, ConversionOptions options) throws IOException {
+		FileOutputStream out = new FileOutputStream(outputPath);
+		try {
+			return wrapOutput(out, options);
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Stream that compresses or encrypts into the output as the options ask
+	 */
+	static OutputStream wrapOutput(OutputStream out, ConversionOptions options) throws IOException {
+		if (options.kdbxKey != null) {
+			return new KdbxOutputStream(out, options.kdbxKey);
+		} else if (options.gzip) {
+			return new ParallelGzipOutputStream(out);
+		}
+		return out;
+	}
+
+	/**
+	 * Closes a stream from {@link #wrapOutput} without completing it, so the output of a
+	 * failed conversion is not mistaken for a complete file.
+	 */
+	static void abortOutput(OutputStream out) throws IOException {
+		if (out instanceof KdbxOutputStream) {
+			((KdbxOutputStream) out).abort();
+		} else if (out instanceof ParallelGzipOutputStream) {
+			((ParallelGzipOutputStream) out).abort();
+		} else {
+			out.close();
+		}
+	}
+
+	/**
+	 * Create a KeePass 2.x xml file holding only the entries that were added, changed 
+	 * or removed since the previous run, and update the state file for the next run. 
+	 * The first run, without a state file, writes every entry.
+	 * 
+	 * @param inputPath Path of the exported Enpass txt file
+	 * @param outputDir Output directory to store the output xml
+	 * @param stateFile Fingerprints of the previous run, replaced on success
+	 * @param options Options of the conversion, only the invalid character policy
+	 * 			applies. UUIDs are always derived from the entries and the output is
+	 * 			always plain xml
+	 * @return Path of the output xml and the number of changed entries
+	 * @throws Enpass2KeePassInputException
+	 * @throws IOException If the input or state could not be read or the output written
+	 * @see IncrementalConverter
+	 */
+	public static IncrementalConverter.Result incrementalKeePassXml(File inputPath, File outputDir, 
+			File stateFile, ConversionOptions options) 
+			throws Enpass2KeePassInputException, EnpassFileParserException, IOException {
+
+		File outputPath = validate(inputPath, outputDir, ".xml");
+		if (stateFile == null) {
+			throw new Enpass2KeePassInputException("Must specify a state file");
+		}
+
+		IncrementalConverter converter = new IncrementalConverter(stateFile);
+		boolean converted = false;
+		try (EnpassEntryReader reader = EnpassFileParser.openEnpassFile(inputPath.getAbsolutePath());
+				FileOutputStream out = new FileOutputStream(outputPath)) {
+			// Groups need the same UUIDs in every run too
+			KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(
+					out, ContentUUIDGenerator.INSTANCE, options.escaper);
+			IncrementalConverter.Result result = converter.convert(reader, writer, outputPath.getAbsolutePath());
+			converted = true;
+			return result;
+		} finally {
+			if (!converted) {
+				outputPath.delete();
+			}
+		}
+	}
+
+	/**
+	 * Create one KeePass 2.x xml file, or KDBX or gzip as the options ask, from several 
+	 * Enpass exports, leaving out entries that were already written from an earlier 
+	 * export.
+	 * 
+	 * @param inputPaths Paths of the exported Enpass txt files, earlier exports win
+	 * @param outputDir Output directory to store the output
+	 * @param matchPasswords Whether duplicates must also have the same password
+	 * @param options Options of the conversion
+	 * @return Path of the output and the number of entries written and left out
+	 * @throws Enpass2KeePassInputException
+	 * @throws IOException If an input could not be read or the output written
+	 * @see VaultMerger
+	 */
+	public static VaultMerger.Result mergeKeePassXml(List<File> inputPaths, File outputDir, 
+			boolean matchPasswords, ConversionOptions options) 
+			throws Enpass2KeePassInputException, EnpassFileParserException, IOException {
+
+		if (inputPaths == null || inputPaths.isEmpty()) {
+			throw new Enpass2KeePassInputException("Must specify at least one input Enpass exported .txt file");
+		}
+		File outputPath = null;
+		for (File inputPath : inputPaths) {
+			outputPath = validate(inputPath, outputDir, options.fileExtension());
+		}
+
+		OutputStream out = openOutput(outputPath, options);
+		boolean merged = false;
+		try {
+			VaultMerger.Result result = new VaultMerger(matchPasswords, options.protectSecrets).merge(
+					inputPaths, openWriter(out, options), outputPath.getAbsolutePath());
+			merged = true;
+			return result;
+		} finally {
+			if (!merged) {
+				try {
+					abortOutput(out);
+				} finally {
+					outputPath.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks the input and output paths.
+	 * 
+	 * @return Path of the output xml in the output directory
+	 */
+	private static File validate(File inputPath, File outputDir, String extension) throws Enpass2KeePassInputException {
+		if (inputPath == null && outputDir == null) {
+			throw new Enpass2KeePassInputException("Must specify a valid input Enpass " + 
+					"exported .txt file and valid output directory");			
+		} else if (inputPath == null) {
+			throw new Enpass2KeePassInputException("Must specify a valid input Enpass exported .txt file");			
+		} else if (outputDir == null) {
+			throw new Enpass2KeePassInputException("Must specify a valid output directory");			
+		}
+
+		if (!inputPath.isFile()) {
+			throw new Enpass2KeePassInputException("Must specify a valid input Enpass exported .txt file");
+		}
+
+		if (!outputDir.isDirectory()) {
+			throw new Enpass2KeePassInputException("Must specify a valid output directory");
+		} 	
+
+		// Generate the output file path
+		return new File(outputDir, generateFileName(extension));
+	}
+
+	private static String generateFileName(String extension) {
+		return ROOT_FILENAME.concat("_").concat(fileNameDate()).concat(extension);
+	}
+
+	/**
+	 * @param baseName Name of the input file without its extension, keeps the names of
+	 * 			files converted in the same second apart
+	 */
+	static String generateFileName(String baseName, String extension) {
+		return ROOT_FILENAME.concat("_").concat(baseName).concat("_").concat(fileNameDate()).concat(extension);
+	}
+
+	/**
+	 * @return The current local time as yyyy-MM-dd_HH-mm-ss, put together by hand since
+	 * 			a date format loads locale data that takes longer than a small conversion
+	 */
+	private static String fileNameDate() {
+		LocalDateTime now = LocalDateTime.now();
+		StringBuilder date = new StringBuilder(19);
+		date.append(now.getYear()).append('-');
+		appendTwoDigits(date, now.getMonthValue()).append('-');
+		appendTwoDigits(date, now.getDayOfMonth()).append('_');
+		appendTwoDigits(date, now.getHour()).append('-');
+		appendTwoDigits(date, now.getMinute()).append('-');
+		return appendTwoDigits(date, now.getSecond()).toString();
+	}
+
+	private static StringBuilder appendTwoDigits(StringBuilder s, int value) {
+		return s.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+	}
+
+	public static class Enpass2KeePassInputException extends Exception {
+
+		/**
+		 * 
+		 */
+		private static final long serialVersionUID = -7014266058400513867L;
+
+		public Enpass2KeePassInputException(String msg) {
+			super(msg);
+		}
+	}
+
+}
@@ -0,0 +1,436 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * Asynchronous converter for embedding in services. A conversion reads an exported
+ * Enpass txt stream and writes KeePass 2.x XML, or 1.x, KDBX or gzip as the
+ * {@link ConversionOptions} ask, to an output stream, and returns at once with a
+ * {@link Conversion} to wait on, watch or cancel.
+ *
+ * Parsing and writing are separate tasks on the executor, connected by a small
+ * bounded queue of entry batches. When the queue is full the parser task ends and
+ * is resubmitted once the writer has caught up, and the writer does the same when the
+ * queue is empty. No task ever blocks waiting for the other, so any number of
+ * conversions can share a small pool without deadlocking, and a slow output holds at
+ * most a few batches in memory.
+ *
+ * The input and output streams are closed when the conversion completes, fails or is
+ * cancelled. A failed or cancelled conversion leaves the output incomplete, without the
+ * closing tags or the end of a KDBX or gzip stream, so it is not mistaken for a
+ * complete file. The charset of the input is detected by {@link EnpassTextDecoder}.
+ *
+ * @author Branden
+ *
+ */
+public final class EnpassConverter {
+
+	private static final int BATCH_SIZE = 128;
+	private static final int MAX_BATCHES_IN_FLIGHT = 4;
+
+	private final Executor executor;
+	private final ConversionOptions options;
+
+	/**
+	 * Converts with the default options on the common fork-join pool.
+	 */
+	public EnpassConverter() {
+		this(ForkJoinPool.commonPool(), ConversionOptions.DEFAULT);
+	}
+
+	/**
+	 * @param executor Executor to run parsing, writing and progress delivery on
+	 * @param options Options of every conversion
+	 */
+	public EnpassConverter(Executor executor, ConversionOptions options) {
+		this.executor = executor;
+		this.options = options;
+	}
+
+	/**
+	 * Starts converting.
+	 *
+	 * @param in Exported Enpass text
+	 * @param out Destination of the output
+	 * @return The running conversion
+	 */
+	public Conversion convert(InputStream in, OutputStream out) {
+		Conversion conversion = new Conversion(in, out);
+		conversion.start();
+		return conversion;
+	}
+
+	/**
+	 * Starts converting between channels.
+	 *
+	 * @param in Exported Enpass text
+	 * @param out Destination of the output
+	 * @return The running conversion
+	 */
+	public Conversion convert(ReadableByteChannel in, WritableByteChannel out) {
+		return convert(Channels.newInputStream(in), Channels.newOutputStream(out));
+	}
+
+	/**
+	 * Progress of a conversion, published after each batch of entries is written.
+	 */
+	public static final class Progress {
+		/** Entries written so far */
+		public final long entries;
+		/** Bytes of the input read so far */
+		public final long bytesRead;
+
+		private Progress(long entries, long bytesRead) {
+			this.entries = entries;
+			this.bytesRead = bytesRead;
+		}
+
+		@Override
+		public String toString() {
+			return entries + " entries, " + bytesRead + " bytes read";
+		}
+	}
+
+	/**
+	 * A running conversion.
+	 */
+	public final class Conversion {
+
+		private final CompletableFuture<ConversionMetrics> result = new CompletableFuture<>();
+		private final SubmissionPublisher<Progress> progress = new SubmissionPublisher<>(executor,
+				Flow.defaultBufferSize());
+		private final ConversionMetrics metrics = new ConversionMetrics(options.timeStages);
+
+		private final CountingInputStream in;
+		private final CountingOutputStream out;
+		private final EnpassEntryReader reader;
+		private OutputStream output;
+		private KeePassEntryWriter writer;
+
+		// Guarded by lock
+		private final Object lock = new Object();
+		private final ArrayDeque<ArrayList<EnpassEntry>> batches = new ArrayDeque<>();
+		private boolean parserScheduled;
+		private boolean parserStopped;
+		private boolean writerScheduled;
+		private boolean writerStopped;
+		private boolean parsed;
+
+		private Conversion(InputStream in, OutputStream out) {
+			this.in = new CountingInputStream(in);
+			this.out = new CountingOutputStream(out);
+			this.reader = new EnpassEntryReader(new EnpassTextDecoder(this.in));
+			reader.setProtectSecrets(options.protectSecrets);
+		}
+
+		/**
+		 * @return Completes with the metrics of the conversion once the output is closed,
+		 * 			or exceptionally with the error that stopped it
+		 */
+		public CompletableFuture<ConversionMetrics> result() {
+			return result;
+		}
+
+		/**
+		 * @return Publisher of progress. Completes with the conversion. Subscribers that
+		 * 			fall behind miss updates rather than slow the conversion.
+		 */
+		public Flow.Publisher<Progress> progress() {
+			return progress;
+		}
+
+		/**
+		 * Stops the conversion after the batch in progress. The output is closed but
+		 * incomplete.
+		 *
+		 * @return Whether the conversion was still running
+		 */
+		public boolean cancel() {
+			boolean cancelled = result.cancel(false);
+			if (cancelled) {
+				progress.close();
+				wakeStopped();
+			}
+			return cancelled;
+		}
+
+		private void start() {
+			metrics.start((String) null);
+			reader.setMetrics(metrics);
+			synchronized (lock) {
+				parserScheduled = true;
+			}
+			executor.execute(this::parse);
+		}
+
+		/**
+		 * Reads batches until the queue is full or the input ends.
+		 */
+		private void parse() {
+			try {
+				while (true) {
+					if (result.isDone()) {
+						stopParser();
+						return;
+					}
+
+					ArrayList<EnpassEntry> batch = new ArrayList<>(BATCH_SIZE);
+					boolean end = false;
+					long start = metrics.timed() ? System.nanoTime() : 0;
+					while (batch.size() < BATCH_SIZE) {
+						EnpassEntry entry = reader.readEntry();
+						if (entry == null) {
+							end = true;
+							break;
+						}
+						batch.add(entry);
+					}
+					if (metrics.timed()) {
+						metrics.addReadEntryNanos(System.nanoTime() - start);
+					}
+
+					boolean stopped;
+					boolean wakeWriter = false;
+					boolean park = false;
+					synchronized (lock) {
+						// Checked under the lock, so a failure or cancel after this sees the
+						// parser unscheduled and wakes it to close the input
+						stopped = result.isDone();
+						if (!stopped) {
+							if (!batch.isEmpty()) {
+								batches.add(batch);
+							}
+							parsed = end;
+							park = end || batches.size() >= MAX_BATCHES_IN_FLIGHT;
+							parserScheduled = !park;
+							wakeWriter = !writerScheduled && !writerStopped;
+							writerScheduled |= wakeWriter;
+						}
+					}
+					if (stopped) {
+						stopParser();
+						return;
+					}
+					if (wakeWriter) {
+						executor.execute(this::write);
+					}
+					if (end) {
+						stopParser();
+						return;
+					}
+					if (park) {
+						return;
+					}
+				}
+			} catch (Throwable t) {
+				fail(t);
+				stopParser();
+			}
+		}
+
+		/**
+		 * Writes batches until the queue is empty or everything is written.
+		 */
+		private void write() {
+			try {
+				while (true) {
+					if (result.isDone()) {
+						stopWriter();
+						return;
+					}
+					if (writer == null) {
+						output = Enpass2KeePass.wrapOutput(out, options);
+						writer = Enpass2KeePass.openWriter(new MeteredOutputStream(output, metrics), options);
+					}
+
+					ArrayList<EnpassEntry> batch;
+					boolean wakeParser = false;
+					boolean stopped;
+					synchronized (lock) {
+						// Checked under the lock like in parse()
+						stopped = result.isDone();
+						batch = stopped ? null : batches.poll();
+						if (!stopped) {
+							if (batch == null && !parsed) {
+								writerScheduled = false;
+								return;
+							}
+							if (!parserScheduled && !parserStopped && !parsed) {
+								parserScheduled = wakeParser = true;
+							}
+						}
+					}
+					if (stopped) {
+						stopWriter();
+						return;
+					}
+					if (wakeParser) {
+						executor.execute(this::parse);
+					}
+					if (batch == null) {
+						finish();
+						return;
+					}
+
+					long start = metrics.timed() ? System.nanoTime() : 0;
+					for (EnpassEntry entry : batch) {
+						writer.writeEntry(entry);
+						metrics.recordEntry(entry);
+					}
+					if (metrics.timed()) {
+						metrics.addWriteEntryNanos(System.nanoTime() - start);
+					}
+					progress.offer(new Progress(metrics.entries(), in.count), null);
+				}
+			} catch (Throwable t) {
+				fail(t);
+				stopWriter();
+			}
+		}
+
+		private void finish() throws IOException {
+			long start = metrics.timed() ? System.nanoTime() : 0;
+			writer.close();
+			if (metrics.timed()) {
+				metrics.addWriteEntryNanos(System.nanoTime() - start);
+			}
+			synchronized (lock) {
+				writerStopped = true;
+			}
+			metrics.setInputBytes(in.count);
+			metrics.finish(null, out.count);
+			if (result.complete(metrics)) {
+				progress.close();
+			}
+		}
+
+		private void fail(Throwable t) {
+			if (result.completeExceptionally(t)) {
+				progress.closeExceptionally(t);
+			}
+			wakeStopped();
+		}
+
+		/**
+		 * Schedules the parser and writer if they are waiting, so they see the result is
+		 * done and close their streams.
+		 */
+		private void wakeStopped() {
+			boolean wakeParser;
+			boolean wakeWriter;
+			synchronized (lock) {
+				wakeParser = !parserScheduled && !parserStopped;
+				parserScheduled |= wakeParser;
+				wakeWriter = !writerScheduled && !writerStopped;
+				writerScheduled |= wakeWriter;
+			}
+			if (wakeParser) {
+				executor.execute(this::parse);
+			}
+			if (wakeWriter) {
+				executor.execute(this::write);
+			}
+		}
+
+		private void stopParser() {
+			synchronized (lock) {
+				parserScheduled = false;
+				parserStopped = true;
+			}
+			try {
+				reader.close();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void stopWriter() {
+			synchronized (lock) {
+				writerScheduled = false;
+				writerStopped = true;
+				batches.clear();
+			}
+			try {
+				if (writer != null) {
+					writer.abort();
+				}
+			} catch (IOException | RuntimeException e) {
+				// Already failed or cancelled
+			}
+			try {
+				Enpass2KeePass.abortOutput(output != null ? output : out);
+			} catch (IOException e) {
+				// Already failed or cancelled
+			}
+		}
+	}
+
+	/**
+	 * Counts bytes read, for progress. Read by other threads, written by the parser.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		volatile long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Counts bytes written after compression or encryption.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+		volatile long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+}
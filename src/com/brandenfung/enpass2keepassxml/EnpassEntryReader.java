@@ -0,0 +1,184 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.BitSet;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.FieldKeys;
+import com.brandenfung.enpass2keepassxml.model.SecretValue;
+
+/**
+ * Pull based reader of an exported Enpass txt file. Each call to {@link #readEntry()}
+ * reads just enough lines to complete the next {@link EnpassEntry}, so only one entry
+ * is held in memory at a time.
+ *
+ * Entries are split using the same rules as {@link EnpassFileParser}. Lines are
+ * classified with {@link EnpassFieldClassifier}. Custom field keys are turned into
+ * {@link FieldKeys} ids straight from the line, so repeated keys are not copied.
+ *
+ * With {@link #setProtectSecrets(boolean)} passwords and custom fields whose key names
+ * a secret are copied from the line into {@link SecretValue}s, never into a String of
+ * their own.
+ *
+ * @author Branden
+ *
+ */
+public class EnpassEntryReader implements Closeable {
+
+	private static final String DEBUG_TAG = "EnpassEntryReader";
+
+	private final BufferedReader reader;
+	private final EnpassEntry.Builder builder = new EnpassEntry.Builder();
+	private final FieldKeys.Lookup keys = new FieldKeys.Lookup();
+	private int lastKey = EnpassFieldClassifier.CUSTOM;
+	private boolean finished;
+	private ConversionMetrics metrics;
+	// Null unless secrets are protected
+	private SecretValue.Allocator secrets;
+	private final BitSet checkedKeys = new BitSet();
+	private final BitSet secretKeys = new BitSet();
+
+	/**
+	 * @param reader Source of the exported Enpass text, closed when this reader is closed
+	 */
+	public EnpassEntryReader(Reader reader) {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+	}
+
+	/**
+	 * Times the read and classify stages of each line into the metrics.
+	 */
+	void setMetrics(ConversionMetrics metrics) {
+		this.metrics = metrics != null && metrics.timed() ? metrics : null;
+	}
+
+	/**
+	 * @param protectSecrets Whether to hold passwords and secret custom fields off heap
+	 */
+	void setProtectSecrets(boolean protectSecrets) {
+		this.secrets = protectSecrets ? new SecretValue.Allocator() : null;
+	}
+
+	/**
+	 * Reads the next entry.
+	 *
+	 * @return The next {@link EnpassEntry}, or null if the end of the file has been reached
+	 * @throws IOException
+	 * @throws EnpassFileParserException If a line could not be parsed
+	 */
+	public EnpassEntry readEntry() throws IOException, EnpassFileParserException {
+		if (finished) {
+			return null;
+		}
+
+		String line;
+		while ((line = readLine()) != null) {
+			EnpassEntry completed = parseLine(line);
+			if (completed != null) {
+				return completed;
+			}
+		}
+
+		finished = true;
+		return builder.build(); // the last item is not followed by a title
+	}
+
+	private String readLine() throws IOException {
+		if (metrics == null) {
+			return reader.readLine();
+		}
+		long start = System.nanoTime();
+		String line = reader.readLine();
+		metrics.addStageNanos(ConversionMetrics.Stage.READ, System.nanoTime() - start);
+		return line;
+	}
+
+	/**
+	 * Adds a line to the entry being built.
+	 *
+	 * @return The previous entry if this line starts a new one, otherwise null
+	 */
+	private EnpassEntry parseLine(String line) throws EnpassFileParserException {
+		EnpassEntry completed = null;
+
+		long start = metrics != null ? System.nanoTime() : 0;
+		int separator = EnpassFieldClassifier.separatorIndex(line);
+		int key = EnpassFieldClassifier.classify(line, separator);
+		if (metrics != null) {
+			metrics.addStageNanos(ConversionMetrics.Stage.CLASSIFY, System.nanoTime() - start);
+		}
+
+		switch (key) {
+		case EnpassFieldClassifier.TITLE: // Title is used as delimiter for each enpass item
+			if (builder.hasTitle()) {
+				completed = builder.build();
+			}
+			builder.setTitle(EnpassFieldClassifier.value(line, separator));
+			break;
+		case EnpassFieldClassifier.USERNAME:
+			builder.setUsername(EnpassFieldClassifier.value(line, separator));
+			break;
+		case EnpassFieldClassifier.PASSWORD:
+			if (secrets != null) {
+				builder.setSecurePassword(secrets.copyOf(line, separator + EnpassFieldClassifier.SEPARATOR_LENGTH, 
+						line.length()));
+			} else {
+				builder.setPassword(EnpassFieldClassifier.value(line, separator));
+			}
+			break;
+		case EnpassFieldClassifier.URL:
+			builder.setUrl(EnpassFieldClassifier.value(line, separator));
+			break;
+		case EnpassFieldClassifier.NOTE:
+			builder.setNote(EnpassFieldClassifier.value(line, separator));
+			break;
+		default:
+			if (lastKey == EnpassFieldClassifier.NOTE) { // Check for continuation of a note (ie. multi-line note)
+				builder.appendNote(line);
+				return null;
+			} else if (separator >= 0) { // Custom field
+				int keyId = keys.id(line, 0, separator);
+				if (keyId == FieldKeys.NO_ID) { // Key the table does not hold
+					String customKey = EnpassFieldClassifier.key(line, separator);
+					if (secrets != null && EnpassFieldClassifier.isSecretKey(customKey)) {
+						builder.addSecretField(customKey, secrets.copyOf(line,
+								separator + EnpassFieldClassifier.SEPARATOR_LENGTH, line.length()));
+					} else {
+						builder.addCustomField(customKey, EnpassFieldClassifier.value(line, separator));
+					}
+				} else if (secrets != null && isSecretKey(keyId)) {
+					builder.addSecretField(keyId, secrets.copyOf(line, 
+							separator + EnpassFieldClassifier.SEPARATOR_LENGTH, line.length()));
+				} else {
+					builder.addCustomField(keyId, EnpassFieldClassifier.value(line, separator));
+				}
+			} else {
+				// The line may hold a secret, and in server mode stdout is the server log
+				System.out.println(DEBUG_TAG + ": Something went wrong reading custom fields!");
+				throw new EnpassFileParserException("Could not parse Enpass text file. " +
+						"Please check the exported Enpass text file.");
+			}
+		}
+
+		lastKey = key;
+		return completed;
+	}
+
+	private boolean isSecretKey(int keyId) {
+		if (!checkedKeys.get(keyId)) {
+			checkedKeys.set(keyId);
+			secretKeys.set(keyId, EnpassFieldClassifier.isSecretKey(FieldKeys.key(keyId)));
+		}
+		return secretKeys.get(keyId);
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
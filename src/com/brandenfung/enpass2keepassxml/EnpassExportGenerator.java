@@ -0,0 +1,290 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic exported Enpass txt files for scale and stress testing, so large
+ * conversions can be tested without real vault data.
+ *
+ * Entries are drawn from a weighted mix of the categories in
+ * resource/sample_enpass_export.txt. The quirks documented in {@link EnpassFileParser}
+ * are reproduced:
+ * 	- entries without a note are not followed by a new line and are "clumped" together
+ * 	- notes can span many lines, including blank lines and lines that look like fields
+ * 	- "Identity Card" entries contain a second "Title" field
+ *
+ * The same seed and options always produce the same bytes.
+ *
+ * @author Branden
+ *
+ */
+public final class EnpassExportGenerator {
+
+	private static final String ALPHANUMERIC =
+			"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+	private static final String PASSWORD_CHARS = ALPHANUMERIC + "!@#$%^&*()-_=+[]{};:,.<>/?~";
+	private static final String[] WORDS = { "account", "bank", "home", "work", "backup", "old",
+			"shared", "family", "travel", "cloud", "server", "personal", "café", "naïve", "日本" };
+
+	/**
+	 * Field keys of each category, in the order Enpass exports them. Username, Password
+	 * and Url are written where Enpass writes them.
+	 */
+	private static final Map<String, String[]> CATEGORIES = new LinkedHashMap<>();
+	static {
+		CATEGORIES.put("login", new String[] { "Username", "Email", "Password", "Phone", "Url",
+				"Security question", "Security answer" });
+		CATEGORIES.put("card", new String[] { "Cardholder", "Type", "Number", "CVC", "PIN",
+				"Expiry date", "Valid from", "Credit limit", "Issuing bank", "Website", "Username",
+				"Login password", "Transaction password" });
+		CATEGORIES.put("bank", new String[] { "Bank name", "Account holder", "Type", "Account number",
+				"Customer ID", "Routing number", "Branch name", "SWIFT", "IBAN", "Debit Card number",
+				"Type", "PIN", "CVV", "Website", "Username", "Login password", "Helpline" });
+		CATEGORIES.put("email", new String[] { "Email", "Username", "Password", "POP3 server",
+				"IMAP server", "Port", "SMTP server", "Port", "Username", "Password", "Website" });
+		CATEGORIES.put("server", new String[] { "Hostname", "Username", "Password", "Url",
+				"Admin console URL", "Admin username", "Admin password", "Name servers" });
+		CATEGORIES.put("wifi", new String[] { "Base station name", "Base station password",
+				"Server/IP address", "Network name", "Wireless security", "Wireless password" });
+		CATEGORIES.put("password", new String[] { "Username", "Password", "Url" });
+		CATEGORIES.put("note", new String[] {});
+		CATEGORIES.put("passport", new String[] { "Type", "Issuing country", "Number", "Full name",
+				"Sex", "Nationality", "Date of birth", "Place of birth", "Issued on", "Expiry date" });
+		CATEGORIES.put("identity", new String[] { "Title", "First name", "Last name", "Gender",
+				"Birthday", "Email", "Phone", "Address", "City", "Country" });
+	}
+
+	private final Random random;
+	private final long targetBytes;
+	private final String[] categories;
+	private final int[] cumulativeWeights;
+	private final int maxNoteLines;
+	private final String lineSeparator;
+
+	public static class Builder {
+		private long seed = 0;
+		private long targetBytes = 1 << 20;
+		private final LinkedHashMap<String, Integer> weights = new LinkedHashMap<>();
+		private int maxNoteLines = 20;
+		private String lineSeparator = "\n";
+
+		public Builder() {
+			for (String category : CATEGORIES.keySet()) {
+				weights.put(category, 1);
+			}
+			weights.put("login", 10);
+		}
+
+		public void setSeed(long seed) {
+			this.seed = seed;
+		}
+
+		/**
+		 * @param targetBytes Size of the export to generate, the last entry may go past it
+		 */
+		public void setTargetBytes(long targetBytes) {
+			this.targetBytes = targetBytes;
+		}
+
+		/**
+		 * @param category One of {@link EnpassExportGenerator#categories()}
+		 * @param weight Relative weight of the category in the mix, 0 to leave it out
+		 */
+		public void setWeight(String category, int weight) {
+			if (!CATEGORIES.containsKey(category)) {
+				throw new IllegalArgumentException("Unknown category " + category);
+			}
+			if (weight < 0) {
+				throw new IllegalArgumentException("Weight must not be negative");
+			}
+			weights.put(category, weight);
+		}
+
+		/**
+		 * Sets several weights from a comma separated list, eg. "login=5,card=2,identity=1".
+		 * Categories that are not listed are left out.
+		 */
+		public void setMix(String mix) {
+			for (String category : CATEGORIES.keySet()) {
+				weights.put(category, 0);
+			}
+			for (String part : mix.split(",")) {
+				String[] kv = part.trim().split("=", 2);
+				setWeight(kv[0].trim(), kv.length == 2 ? Integer.parseInt(kv[1].trim()) : 1);
+			}
+		}
+
+		public void setMaxNoteLines(int maxNoteLines) {
+			this.maxNoteLines = Math.max(1, maxNoteLines);
+		}
+
+		/**
+		 * @param lineSeparator "\n", or "\r\n" like exports made on Windows
+		 */
+		public void setLineSeparator(String lineSeparator) {
+			this.lineSeparator = lineSeparator;
+		}
+
+		public EnpassExportGenerator build() {
+			return new EnpassExportGenerator(this);
+		}
+	}
+
+	private EnpassExportGenerator(Builder builder) {
+		this.random = new Random(builder.seed);
+		this.targetBytes = builder.targetBytes;
+		this.maxNoteLines = builder.maxNoteLines;
+		this.lineSeparator = builder.lineSeparator;
+
+		this.categories = builder.weights.keySet().toArray(new String[0]);
+		this.cumulativeWeights = new int[categories.length];
+		int total = 0;
+		for (int i = 0; i < categories.length; i++) {
+			total += builder.weights.get(categories[i]);
+			cumulativeWeights[i] = total;
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("At least one category must have a weight");
+		}
+	}
+
+	/**
+	 * @return Names of the categories that can be generated
+	 */
+	public static String[] categories() {
+		return CATEGORIES.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Writes entries until the target size is reached.
+	 *
+	 * @param out Destination of the export, not closed
+	 * @return Number of entries {@link EnpassFileParser} will read from the export. Identity
+	 * 			cards count twice since their second Title starts another entry.
+	 * @throws IOException
+	 */
+	public long generate(OutputStream out) throws IOException {
+		StringBuilder sb = new StringBuilder(1024);
+		long bytes = 0;
+		long entries = 0;
+		long serial = 0;
+
+		while (bytes < targetBytes) {
+			sb.setLength(0);
+			String category = nextCategory();
+			entries += appendEntry(sb, category, ++serial);
+
+			byte[] encoded = sb.toString().getBytes(StandardCharsets.UTF_8);
+			out.write(encoded);
+			bytes += encoded.length;
+		}
+		return entries;
+	}
+
+	private String nextCategory() {
+		int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (pick < cumulativeWeights[i]) {
+				return categories[i];
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	private int appendEntry(StringBuilder sb, String category, long serial) {
+		int entries = 1;
+		appendField(sb, "Title", category.substring(0, 1).toUpperCase(Locale.ROOT) + category.substring(1) +
+				" " + randomWord() + " " + serial);
+
+		for (String key : CATEGORIES.get(category)) {
+			if (key.equals("Title")) {
+				entries++; // Identity card, the parser starts a new entry here
+				appendField(sb, key, random.nextBoolean() ? "Mr." : "Ms.");
+			} else if (key.toLowerCase(Locale.ROOT).contains("password") || key.equals("PIN") ||
+					key.equals("CVC") || key.equals("CVV")) {
+				appendField(sb, key, randomString(PASSWORD_CHARS, 8 + random.nextInt(24)));
+			} else if (random.nextInt(8) == 0) {
+				appendField(sb, key, ""); // unused fields are exported with no value
+			} else {
+				appendField(sb, key, randomValue());
+			}
+		}
+
+		// Entries with an empty note are exported without a trailing new line,
+		// so the next entry is clumped straight after them
+		if (category.equals("note") || random.nextInt(3) == 0) {
+			sb.append("Note : ").append(randomValue());
+			int lines = random.nextInt(maxNoteLines);
+			for (int i = 0; i < lines; i++) {
+				sb.append(lineSeparator);
+				switch (random.nextInt(6)) {
+				case 0:
+					break; // blank line within the note
+				case 1:
+					sb.append(randomWord()).append(" : ").append(randomValue()); // looks like a field
+					break;
+				default:
+					sb.append(randomValue()).append(' ').append(randomValue());
+				}
+			}
+			sb.append(lineSeparator).append(lineSeparator);
+		}
+		return entries;
+	}
+
+	private void appendField(StringBuilder sb, String key, String value) {
+		sb.append(key).append(" : ").append(value).append(lineSeparator);
+	}
+
+	private String randomValue() {
+		return random.nextInt(4) == 0 ? randomWord() : randomString(ALPHANUMERIC, 4 + random.nextInt(16));
+	}
+
+	private String randomWord() {
+		return WORDS[random.nextInt(WORDS.length)];
+	}
+
+	private String randomString(String chars, int length) {
+		char[] value = new char[length];
+		for (int i = 0; i < length; i++) {
+			value[i] = chars.charAt(random.nextInt(chars.length()));
+		}
+		return new String(value);
+	}
+
+	/**
+	 * @param args args[0] is the output txt file, args[1] the target size in bytes,
+	 * 			   args[2] the optional seed and args[3] an optional mix such as
+	 * 			   "login=5,card=2,identity=1"
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: EnpassExportGenerator <output .txt> <target bytes> [seed] [mix]");
+			System.out.println("Categories: " + String.join(", ", categories()));
+			return;
+		}
+
+		Builder builder = new Builder();
+		builder.setTargetBytes(Long.parseLong(args[1]));
+		if (args.length > 2) {
+			builder.setSeed(Long.parseLong(args[2]));
+		}
+		if (args.length > 3) {
+			builder.setMix(args[3]);
+		}
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[0]))) {
+			long entries = builder.build().generate(out);
+			System.out.println("Wrote " + entries + " entries to " + args[0]);
+		}
+	}
+
+}
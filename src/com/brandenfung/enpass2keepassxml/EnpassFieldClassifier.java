@@ -0,0 +1,129 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Classifies lines of an exported Enpass txt file in a single pass without regex or
+ * temporary arrays.
+ *
+ * A field key is everything before the first whitespace-colon-whitespace separator
+ * (the same split as {@link EnpassFileParser#getCustomField(String)}). The known keys
+ * Title, Username, Password, Url and Note are told apart by key length and first char,
+ * which is a perfect hash for that set, and then confirmed with a single region compare.
+ * Known keys must use the exact " : " separator that Enpass writes.
+ *
+ * @author Branden
+ *
+ */
+final class EnpassFieldClassifier {
+
+	static final int CUSTOM = 0;
+	static final int TITLE = 1;
+	static final int USERNAME = 2;
+	static final int PASSWORD = 3;
+	static final int URL = 4;
+	static final int NOTE = 5;
+
+	static final int SEPARATOR_LENGTH = 3;
+
+	// Words of custom field keys whose values are secrets, eg. "PIN" or "Security answer"
+	private static final Set<String> SECRET_WORDS = new HashSet<>(Arrays.asList(
+			"password", "passcode", "passphrase", "pin", "puk", "cvc", "cvv", "cvv2", "secret",
+			"answer", "otp", "totp", "seed"));
+
+	private EnpassFieldClassifier() {
+	}
+
+	/**
+	 * Finds the field key separator.
+	 *
+	 * @param line Line of the exported file
+	 * @return Index of the whitespace before the first separator colon, or -1 if the
+	 * 			line does not contain a field key
+	 */
+	static int separatorIndex(String line) {
+		int colon = line.indexOf(':', 1);
+		while (colon > 0 && colon + 1 < line.length()) {
+			if (isWhitespace(line.charAt(colon - 1)) && isWhitespace(line.charAt(colon + 1))) {
+				return colon - 1;
+			}
+			colon = line.indexOf(':', colon + 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Classifies the key of a line.
+	 *
+	 * @param line Line of the exported file
+	 * @param separator Result of {@link #separatorIndex(String)} for the line
+	 * @return One of the known key constants, or {@link #CUSTOM} for any other key.
+	 * 			Lines without a separator are also reported as {@link #CUSTOM}.
+	 */
+	static int classify(String line, int separator) {
+		if (separator < 0 || line.charAt(separator) != ' ' || line.charAt(separator + 2) != ' ') {
+			return CUSTOM;
+		}
+
+		switch (separator) {
+		case 3:
+			return line.startsWith("Url") ? URL : CUSTOM;
+		case 4:
+			return line.startsWith("Note") ? NOTE : CUSTOM;
+		case 5:
+			return line.startsWith("Title") ? TITLE : CUSTOM;
+		case 8:
+			switch (line.charAt(0)) {
+			case 'U':
+				return line.startsWith("Username") ? USERNAME : CUSTOM;
+			case 'P':
+				return line.startsWith("Password") ? PASSWORD : CUSTOM;
+			default:
+				return CUSTOM;
+			}
+		default:
+			return CUSTOM;
+		}
+	}
+
+	/**
+	 * @return Value of the field, ie. everything after the separator
+	 */
+	static String value(String line, int separator) {
+		return line.substring(separator + SEPARATOR_LENGTH);
+	}
+
+	/**
+	 * @return Key of the field, ie. everything before the separator
+	 */
+	static String key(String line, int separator) {
+		return line.substring(0, separator);
+	}
+
+	/**
+	 * @return Whether a custom field key names a secret, ie. one of its words is a
+	 * 			word like password, PIN, CVC or answer, or it contains "security code"
+	 * 			or "private key"
+	 */
+	static boolean isSecretKey(String key) {
+		String lower = key.toLowerCase(Locale.ROOT);
+		if (lower.contains("security code") || lower.contains("private key")) {
+			return true;
+		}
+		for (String word : lower.split("[^\\p{Alnum}]+")) {
+			if (SECRET_WORDS.contains(word)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Same set of characters as \s in java.util.regex
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+}
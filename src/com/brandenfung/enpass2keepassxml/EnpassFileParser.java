@@ -1,12 +1,15 @@
 package com.brandenfung.enpass2keepassxml;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
 
 /**
  * Parses an exported Enpass txt file. 
@@ -36,11 +39,11 @@ public final class EnpassFileParser {
 	private static final String DEBUG_TAG = "EnpassFileParser";
 
 	// Delimiter for field values
-	private static final String TITLE_DELIM = "Title : ";
-	private static final String USERNAME_DELIM = "Username : ";
-	private static final String PASSWORD_DELIM = "Password : ";
-	private static final String URL_DELIM = "Url : ";
-	private static final String NOTE_DELIM = "Note : ";
+	static final String TITLE_DELIM = "Title : ";
+	static final String USERNAME_DELIM = "Username : ";
+	static final String PASSWORD_DELIM = "Password : ";
+	static final String URL_DELIM = "Url : ";
+	static final String NOTE_DELIM = "Note : ";
 
 	// Regex for finding field keys
 	private static final String TITLE_REGEX = "^(Title : )";
@@ -63,58 +66,44 @@ public final class EnpassFileParser {
 
 		ArrayList<EnpassEntry> items = new ArrayList<>();
 
-		try {
+		try (EnpassEntryReader reader = openEnpassFile(filepath)) {
+			EnpassEntry entry;
+			while ((entry = reader.readEntry()) != null) {
+				items.add(entry);
+			}
+
+		} catch (FileNotFoundException e) {
+			if (DEBUG) {
+				System.out.println(DEBUG_TAG + ": Input File Not Found");
+			}
 
-			// Read txt file
-			FileReader fr = new FileReader(filepath);
-
-			// Wrap in buffer
-			BufferedReader br = new BufferedReader(fr);
-
-			EnpassEntry.Builder builder = new EnpassEntry.Builder();
-			String line = "";
-			String lastDelim = "";
-			while ((line = br.readLine()) != null) {
-
-				if (line.contains(TITLE_DELIM)) { // Title  is used as delimiter for each enpass item
-					lastDelim = TITLE_DELIM;
-					if (builder.hasTitle()) {
-						items.add(builder.build());
-					} 
-					builder.setTitle(parseTitle(line));		
-				} else if (containsUsername(line)) {
-					lastDelim = USERNAME_DELIM;
-					builder.setUsername(parseUsername(line));
-				} else if (line.contains(PASSWORD_DELIM)) {
-					lastDelim = PASSWORD_DELIM;
-					builder.setPassword(parsePassword(line));					
-				} else if (line.contains(URL_DELIM)) {
-					lastDelim = URL_DELIM;
-					builder.setUrl(parseUrl(line));					
-				} else if (line.contains(NOTE_DELIM)) { 
-					lastDelim = NOTE_DELIM;
-					builder.setNote(parseNote(line));
-				} else if (lastDelim.equals(NOTE_DELIM)) { // Check for continuation of a note (ie. multi-line note)
-					builder.appendNote(line);
-				} else {
-					// Check for custom field
-					String[] kvPair = getCustomField(line);
-					if (kvPair.length == 2) { // assume field keys have this regex format
-						String key = kvPair[0].substring(0, kvPair[0].length()-3); // remove colon
-						String val = kvPair[1];
-						builder.addCustomField(key, val);							
-					} else {
-						System.out.println(DEBUG_TAG + ": Something went wrong reading custom fields! Field = " +
-								kvPair[0] );	
-						throw new EnpassFileParserException("Could not parse Enpass text file. " + 
-								"Please check the exported Enpass text file.");
-					}
-
-				}
+		} catch (IOException e) {
+			if (DEBUG) {
+				System.out.println(DEBUG_TAG + ": Error reading file");				
 			}
-			items.add(builder.build()); // add the last item here or we will miss it
+		}
+
+		return items;
+	}
+
+	/**
+	 *  Parse an exported Enpass .txt file into a compact {@link EnpassEntryStore}. 
+	 *  Entries are streamed from the file into the store, so only the store's 
+	 *  arrays stay resident rather than an object graph per entry.
+	 *  
+	 * @param filepath Path of the .txt file.
+	 * @return Store of the entries in file order.
+	 */
+	public static EnpassEntryStore parseEnpassFileToStore(String filepath) 
+			throws EnpassFileParserException {
+
+		EnpassEntryStore store = new EnpassEntryStore();
 
-			br.close();
+		try (EnpassEntryReader reader = openEnpassFile(filepath)) {
+			EnpassEntry entry;
+			while ((entry = reader.readEntry()) != null) {
+				store.add(entry);
+			}
 
 		} catch (FileNotFoundException e) {
 			if (DEBUG) {
@@ -127,7 +116,52 @@ public final class EnpassFileParser {
 			}
 		}
 
-		return items;
+		return store;
+	}
+
+	/**
+	 *  Parse an exported Enpass .txt file into {@link EnpassEntry} 
+	 *  items using all cores. The file is memory mapped and split into chunks 
+	 *  on "Title : " lines which are parsed on the common fork-join pool. 
+	 *  Gives the same result as {@link #parseEnpassFile(String)}, use it for 
+	 *  exports of many megabytes.
+	 *  
+	 * @param filepath Path of the .txt file.
+	 * @return List of {@link EnpassEntry} populated with data from
+	 * 			the text file, in file order.
+	 */
+	public static ArrayList<EnpassEntry> parseEnpassFileParallel(String filepath) 
+			throws EnpassFileParserException {
+
+		try {
+			return MappedEnpassFileParser.parse(Paths.get(filepath), ForkJoinPool.commonPool());
+
+		} catch (NoSuchFileException e) {
+			if (DEBUG) {
+				System.out.println(DEBUG_TAG + ": Input File Not Found");
+			}
+
+		} catch (IOException e) {
+			if (DEBUG) {
+				System.out.println(DEBUG_TAG + ": Error reading file");				
+			}
+		}
+
+		return new ArrayList<>();
+	}
+
+	/**
+	 * Opens an exported Enpass .txt file for reading one {@link EnpassEntry} 
+	 * at a time. Prefer this over {@link #parseEnpassFile(String)} for large 
+	 * exports as only the entry being read is kept in memory. The file may be 
+	 * UTF-8 or UTF-16, see {@link EnpassTextDecoder}.
+	 * 
+	 * @param filepath Path of the .txt file.
+	 * @return Reader of {@link EnpassEntry} items, must be closed by the caller
+	 * @throws FileNotFoundException
+	 */
+	public static EnpassEntryReader openEnpassFile(String filepath) throws FileNotFoundException {
+		return new EnpassEntryReader(new EnpassTextDecoder(new FileInputStream(filepath)));
 	}
 
 	protected static boolean containsTitle(String line) {
@@ -0,0 +1,302 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Decodes exported Enpass text. The charset is taken from the byte order mark, UTF-8,
+ * UTF-16LE or UTF-16BE, which is skipped. Exports without one are read as UTF-16 when
+ * the first char is ASCII encoded in two bytes, as Windows versions of Enpass write,
+ * and as UTF-8 otherwise, whatever the platform default charset is.
+ *
+ * Bytes are read in 64 KB blocks. In UTF-8 input, runs of ASCII bytes, which are most
+ * of an export, are widened straight into chars, and only the runs in between go
+ * through a {@link CharsetDecoder}. Malformed input is replaced with U+FFFD.
+ *
+ * @author Branden
+ *
+ */
+final class EnpassTextDecoder extends Reader {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final ReadableByteChannel in;
+	// In read mode between calls
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private CharsetDecoder decoder;
+	private boolean utf8;
+	private boolean eof;
+	private boolean flushed;
+	// Second char of a surrogate pair read one char at a time, -1 if none
+	private int leftover = -1;
+
+	/**
+	 * @param in Exported Enpass text, closed when this reader is closed
+	 */
+	EnpassTextDecoder(InputStream in) {
+		this(Channels.newChannel(in), null);
+	}
+
+	/**
+	 * @param in Exported Enpass text, closed when this reader is closed
+	 * @param charset Charset of the text, or null to detect it
+	 */
+	EnpassTextDecoder(ReadableByteChannel in, Charset charset) {
+		this.in = in;
+		bytes.flip();
+		if (charset != null) {
+			setCharset(charset);
+		}
+	}
+
+	/**
+	 * Decodes a whole buffer, eg. a memory mapped chunk of an export.
+	 *
+	 * @param buffer Bytes to decode from its position to its limit
+	 * @param charset Charset of the bytes
+	 */
+	static CharBuffer decode(ByteBuffer buffer, Charset charset) throws IOException {
+		char[] chars = new char[buffer.remaining()];
+		int count = 0;
+		try (EnpassTextDecoder decoder = new EnpassTextDecoder(new ByteBufferChannel(buffer), charset)) {
+			int n;
+			while (count < chars.length && (n = decoder.read(chars, count, chars.length - count)) > 0) {
+				count += n;
+			}
+		}
+		return CharBuffer.wrap(chars, 0, count);
+	}
+
+	/**
+	 * Detects the charset of the start of an export and moves the buffer past the byte
+	 * order mark if there is one.
+	 *
+	 * @param head At least the first 3 bytes of the export, unless it is shorter
+	 */
+	static Charset detectCharset(ByteBuffer head) {
+		int p = head.position();
+		int b0 = head.remaining() > 0 ? head.get(p) & 0xFF : -1;
+		int b1 = head.remaining() > 1 ? head.get(p + 1) & 0xFF : -1;
+		int b2 = head.remaining() > 2 ? head.get(p + 2) & 0xFF : -1;
+
+		if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+			head.position(p + 3);
+			return StandardCharsets.UTF_8;
+		} else if (b0 == 0xFF && b1 == 0xFE) {
+			head.position(p + 2);
+			return StandardCharsets.UTF_16LE;
+		} else if (b0 == 0xFE && b1 == 0xFF) {
+			head.position(p + 2);
+			return StandardCharsets.UTF_16BE;
+		} else if (b0 > 0 && b0 < 0x80 && b1 == 0) {
+			return StandardCharsets.UTF_16LE;
+		} else if (b0 == 0 && b1 > 0 && b1 < 0x80) {
+			return StandardCharsets.UTF_16BE;
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	/**
+	 * @return Charset of the text, detecting it if needed
+	 */
+	Charset charset() throws IOException {
+		detect();
+		return decoder.charset();
+	}
+
+	private void detect() throws IOException {
+		if (decoder != null) {
+			return;
+		}
+		while (bytes.remaining() < 3 && fill()) {
+			// Enough for any byte order mark
+		}
+		setCharset(detectCharset(bytes));
+	}
+
+	private void setCharset(Charset charset) {
+		decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		utf8 = charset.equals(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads more bytes after the unread ones.
+	 *
+	 * @return False at the end of the input
+	 */
+	private boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		bytes.compact();
+		int n;
+		try {
+			n = in.read(bytes);
+		} finally {
+			bytes.flip();
+		}
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, cbuf.length);
+		if (len == 0) {
+			return 0;
+		}
+		if (leftover >= 0) {
+			cbuf[off] = (char) leftover;
+			leftover = -1;
+			return 1;
+		}
+		if (len == 1) {
+			// A surrogate pair does not fit, decode both and keep the second
+			char[] pair = new char[2];
+			int n = read(pair, 0, 2);
+			if (n <= 0) {
+				return n;
+			}
+			if (n == 2) {
+				leftover = pair[1];
+			}
+			cbuf[off] = pair[0];
+			return 1;
+		}
+		detect();
+
+		// Fills as much of cbuf as the bytes already read allow, so line readers
+		// on top see few short reads
+		int count = 0;
+		while (count < len) {
+			if (utf8) {
+				count += readAscii(cbuf, off + count, len - count);
+				if (count == len) {
+					break;
+				}
+			}
+			if (!bytes.hasRemaining()) {
+				if (count > 0) {
+					break;
+				} else if (fill()) {
+					continue;
+				} else if (flushed) {
+					return -1;
+				}
+			}
+
+			CharBuffer out = CharBuffer.wrap(cbuf, off + count, len - count);
+			int limit = bytes.limit();
+			boolean endOfInput = eof;
+			if (utf8) {
+				// Decode only up to the next ASCII byte. A sequence cut short by one is
+				// malformed, so the run is complete unless it reaches the end of the buffer.
+				int runEnd = nonAsciiRunEnd();
+				endOfInput |= runEnd < limit;
+				bytes.limit(runEnd);
+			}
+			CoderResult result = decoder.decode(bytes, out, endOfInput);
+			boolean runDone = !bytes.hasRemaining();
+			bytes.limit(limit);
+			if (eof && !bytes.hasRemaining()) {
+				if (decoder.flush(out).isUnderflow()) {
+					flushed = true;
+				}
+			} else if (utf8 && endOfInput && runDone) {
+				decoder.reset();
+			}
+
+			int n = out.position() - off - count;
+			count += n;
+			if (result.isOverflow() || flushed) {
+				break;
+			} else if (n == 0 && bytes.hasRemaining()) {
+				// Start of a sequence at the end of the buffer
+				if (count > 0) {
+					break;
+				}
+				fill();
+			}
+		}
+		return count > 0 ? count : -1;
+	}
+
+	private int readAscii(char[] cbuf, int off, int len) {
+		byte[] b = bytes.array();
+		int start = bytes.arrayOffset() + bytes.position();
+		int end = start + Math.min(len, bytes.remaining());
+		int p = start;
+		while (p < end && b[p] >= 0) {
+			cbuf[off++] = (char) b[p++];
+		}
+		bytes.position(bytes.position() + p - start);
+		return p - start;
+	}
+
+	private int nonAsciiRunEnd() {
+		byte[] b = bytes.array();
+		int p = bytes.position();
+		while (p < bytes.limit() && b[bytes.arrayOffset() + p] < 0) {
+			p++;
+		}
+		return p;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads a buffer as a channel.
+	 */
+	private static final class ByteBufferChannel implements ReadableByteChannel {
+
+		private final ByteBuffer buffer;
+		private boolean open = true;
+
+		ByteBufferChannel(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(dst.remaining(), buffer.remaining());
+			ByteBuffer slice = buffer.slice();
+			slice.limit(n);
+			dst.put(slice);
+			buffer.position(buffer.position() + n);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.brandenfung.enpass2keepassxml;
+
+import com.brandenfung.enpass2keepassxml.model.CustomFieldMap;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * 64 bit hashes of entry fields, used to fingerprint and compare entries without
+ * keeping them in memory. Fields are hashed with FNV-1a over their chars, separated
+ * by their length, and finished with the MurmurHash3 mix so every bit of the result
+ * depends on every char.
+ *
+ * With 64 bits a false match between two different entries becomes likely only
+ * around 2^32 entries, far more than any real vault holds.
+ *
+ * @author Branden
+ *
+ */
+final class EntryHash {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private EntryHash() {
+	}
+
+	/**
+	 * @return Hash of a sequence of fields
+	 */
+	static long hash(CharSequence... fields) {
+		long h = FNV_OFFSET_BASIS;
+		for (CharSequence field : fields) {
+			h = update(h, field);
+		}
+		return mix(h);
+	}
+
+	/**
+	 * @return Hash of every field of an entry. Custom fields are combined so their
+	 * 			order does not matter.
+	 */
+	static long fingerprint(EnpassEntry entry) {
+		long h = FNV_OFFSET_BASIS;
+		h = update(h, entry.title);
+		h = update(h, entry.username);
+		h = update(h, entry.passwordChars());
+		h = update(h, entry.url);
+		h = update(h, entry.note);
+
+		long customFields = 0;
+		CustomFieldMap fields = entry.customFieldMap();
+		for (int i = 0; i < fields.size(); i++) {
+			customFields += hash(fields.key(i), fields.chars(i));
+		}
+		return mix(h ^ mix(customFields + entry.customFields.size()));
+	}
+
+	static long update(long h, CharSequence field) {
+		int length = field.length();
+		for (int i = 0; i < length; i++) {
+			h = (h ^ field.charAt(i)) * FNV_PRIME;
+		}
+		return (h ^ length) * FNV_PRIME; // separates fields, "ab","c" != "a","bc"
+	}
+
+	/**
+	 * MurmurHash3 64 bit finalizer.
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,186 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * Splits the encrypted payload of a KDBX 4 file into HMAC-SHA256 authenticated blocks.
+ * Each block is written as its HMAC, its length as a little endian int and its data,
+ * and the stream ends with an empty block. The HMAC of block i covers i, the length
+ * and the data, keyed with SHA-512(i || HMAC key).
+ *
+ * @author Branden
+ *
+ */
+final class HmacBlockOutputStream extends OutputStream {
+
+	static final int BLOCK_SIZE = 1 << 20;
+
+	/** Index of the key used for the header HMAC */
+	static final long HEADER_INDEX = -1L;
+
+	private final OutputStream out;
+	private final byte[] hmacKey;
+	private final Mac mac;
+	private final byte[] block = new byte[BLOCK_SIZE];
+	private final byte[] blockHeader = new byte[12];
+	private int count;
+	private long index;
+
+	/**
+	 * @param out Destination of the blocks, closed when this stream is closed
+	 * @param hmacKey 64 byte HMAC key of the database
+	 */
+	HmacBlockOutputStream(OutputStream out, byte[] hmacKey) {
+		this.out = out;
+		this.hmacKey = hmacKey.clone();
+		this.mac = hmacSha256();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == BLOCK_SIZE) {
+			writeBlock();
+		}
+		block[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == BLOCK_SIZE) {
+				writeBlock();
+			}
+			int n = Math.min(len, BLOCK_SIZE - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		putLong(blockHeader, 0, index);
+		putInt(blockHeader, 8, count);
+		init(mac, hmacKey, index);
+		mac.update(blockHeader);
+		mac.update(block, 0, count);
+
+		out.write(mac.doFinal());
+		out.write(blockHeader, 8, 4);
+		out.write(block, 0, count);
+		index++;
+		count = 0;
+	}
+
+	/**
+	 * Writes the last block and the empty end block, then closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (count > 0) {
+				writeBlock();
+			}
+			writeBlock();
+		} finally {
+			wipe();
+			out.close();
+		}
+	}
+
+	/**
+	 * Zeroes the HMAC key, no more blocks can be written afterwards. Called by close, and
+	 * by the owner when the stream is abandoned without closing it.
+	 */
+	void wipe() {
+		Arrays.fill(hmacKey, (byte) 0);
+	}
+
+	/**
+	 * Keys the mac for the block with the given index. The block key is zeroed once the
+	 * mac has used it.
+	 */
+	static void init(Mac mac, byte[] hmacKey, long index) {
+		BlockKey key = new BlockKey(blockKey(hmacKey, index));
+		try {
+			mac.init(key);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			key.wipe();
+		}
+	}
+
+	/**
+	 * @return HMAC-SHA256 key of the block with the given index
+	 */
+	static byte[] blockKey(byte[] hmacKey, long index) {
+		byte[] indexBytes = new byte[8];
+		putLong(indexBytes, 0, index);
+		MessageDigest sha512 = KdbxKey.digest("SHA-512");
+		sha512.update(indexBytes);
+		return sha512.digest(hmacKey);
+	}
+
+	/**
+	 * Block key that, unlike SecretKeySpec, can be zeroed. The mac copies it when
+	 * initialized.
+	 */
+	private static final class BlockKey implements SecretKey {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] key;
+
+		BlockKey(byte[] key) {
+			this.key = key;
+		}
+
+		@Override
+		public String getAlgorithm() {
+			return "HmacSHA256";
+		}
+
+		@Override
+		public String getFormat() {
+			return "RAW";
+		}
+
+		@Override
+		public byte[] getEncoded() {
+			return key.clone();
+		}
+
+		void wipe() {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	static Mac hmacSha256() {
+		try {
+			return Mac.getInstance("HmacSHA256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 is required to write KDBX files", e);
+		}
+	}
+
+	static void putInt(byte[] b, int off, int value) {
+		for (int i = 0; i < 4; i++) {
+			b[off + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+	static void putLong(byte[] b, int off, long value) {
+		for (int i = 0; i < 8; i++) {
+			b[off + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+}
@@ -0,0 +1,266 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.TimeZone;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * Converts only what changed since the previous run. A small state file keeps a
+ * fingerprint of every entry of the last export, and the KeePass 2.x XML written is a
+ * delta holding the added and changed entries, with removed entries listed as
+ * DeletedObjects. Importing the deltas in order into the database created by the
+ * first (full) run keeps it in sync with the exports.
+ *
+ * An entry is identified by its title and its position among entries with the same
+ * title, and its UUID is derived from that identity. A changed entry therefore keeps
+ * its UUID and replaces the earlier version on import. The state file stores two
+ * longs per entry, sorted by identity.
+ *
+ * @author Branden
+ *
+ */
+public final class IncrementalConverter {
+
+	private static final int STATE_MAGIC = 0x45324b53; // "E2KS"
+	private static final int STATE_VERSION = 1;
+	// Magic, version and count, then an id and a fingerprint per entry
+	private static final int STATE_HEADER_SIZE = 12;
+	private static final int STATE_RECORD_SIZE = 16;
+
+	private final File stateFile;
+
+	// Previous run, sorted by identity
+	private final long[] previousIds;
+	private final long[] previousFingerprints;
+
+	/**
+	 * Number of entries of each kind found by {@link IncrementalConverter#convert}.
+	 */
+	public static class Result {
+		public final String outputPath;
+		public final int added;
+		public final int changed;
+		public final int removed;
+		public final int unchanged;
+
+		private Result(String outputPath, int added, int changed, int removed, int unchanged) {
+			this.outputPath = outputPath;
+			this.added = added;
+			this.changed = changed;
+			this.removed = removed;
+			this.unchanged = unchanged;
+		}
+
+		@Override
+		public String toString() {
+			return added + " added, " + changed + " changed, " + removed + " removed, " + 
+					unchanged + " unchanged";
+		}
+	}
+
+	/**
+	 * Loads the state of the previous run. A missing state file means there was no
+	 * previous run and every entry is added.
+	 *
+	 * @param stateFile State file read now and replaced by {@link #convert}
+	 * @throws IOException If the state file exists but can not be read
+	 */
+	public IncrementalConverter(File stateFile) throws IOException {
+		this.stateFile = stateFile;
+
+		long[] ids = new long[0];
+		long[] fingerprints = new long[0];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+			if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION) {
+				throw new IOException("Not an Enpass2KeePass state file: " + stateFile);
+			}
+			int count = in.readInt();
+			if (count < 0 || count > (stateFile.length() - STATE_HEADER_SIZE) / STATE_RECORD_SIZE) {
+				throw new IOException("Corrupt state file, invalid entry count " + count + ": " + stateFile);
+			}
+			ids = new long[count];
+			fingerprints = new long[count];
+			for (int i = 0; i < count; i++) {
+				ids[i] = in.readLong();
+				fingerprints[i] = in.readLong();
+			}
+		} catch (FileNotFoundException e) {
+			// first run
+		} catch (EOFException e) {
+			throw new IOException("Truncated state file: " + stateFile, e);
+		}
+		this.previousIds = ids;
+		this.previousFingerprints = fingerprints;
+	}
+
+	/**
+	 * Writes the delta between the previous run and the entries of the reader, then
+	 * replaces the state file. The state file is only replaced if every entry was read
+	 * and written, so a failed run can simply be repeated.
+	 *
+	 * @param reader Entries of the new export
+	 * @param writer Writer of the delta, closed by this method. It is aborted instead,
+	 * 			leaving its stream for the caller to close, if an entry could not be read
+	 * 			or written, so a failed run does not look like a complete delta
+	 * @param outputPath Path the writer writes to, reported in the result
+	 * @return Number of entries added, changed, removed and unchanged
+	 */
+	public Result convert(EnpassEntryReader reader, KeePassXML2StreamWriter writer, String outputPath) 
+			throws IOException, EnpassFileParserException {
+
+		BitSet seen = new BitSet(previousIds.length);
+		LongIntHashMap titleCounts = new LongIntHashMap();
+		long[] ids = new long[1024];
+		long[] fingerprints = new long[1024];
+		int count = 0;
+		int added = 0;
+		int changed = 0;
+
+		boolean written = false;
+		try {
+			EnpassEntry entry;
+			while ((entry = reader.readEntry()) != null) {
+				long titleHash = EntryHash.hash(entry.title);
+				long id = EntryHash.mix(titleHash + titleCounts.getAndIncrement(titleHash));
+				long fingerprint = EntryHash.fingerprint(entry);
+
+				int previous = Arrays.binarySearch(previousIds, id);
+				if (previous < 0) {
+					added++;
+					writer.writeEntry(entry, identityUUID(id));
+				} else {
+					seen.set(previous);
+					if (previousFingerprints[previous] != fingerprint) {
+						changed++;
+						writer.writeEntry(entry, identityUUID(id));
+					}
+				}
+
+				if (count == ids.length) {
+					ids = Arrays.copyOf(ids, count * 2);
+					fingerprints = Arrays.copyOf(fingerprints, count * 2);
+				}
+				ids[count] = id;
+				fingerprints[count] = fingerprint;
+				count++;
+			}
+
+			String now = formatTime(new Date());
+			for (int i = seen.nextClearBit(0); i < previousIds.length; i = seen.nextClearBit(i + 1)) {
+				writer.writeDeletedObject(identityUUID(previousIds[i]), now);
+			}
+			written = true;
+		} finally {
+			if (written) {
+				writer.close();
+			} else {
+				writer.abort();
+			}
+		}
+
+		int removed = previousIds.length - seen.cardinality();
+		saveState(ids, fingerprints, count);
+		return new Result(outputPath, added, changed, removed, count - added - changed);
+	}
+
+	/**
+	 * Writes the state, sorting both columns by identity in place.
+	 */
+	private void saveState(long[] ids, long[] fingerprints, int count) throws IOException {
+		sortByIds(ids, fingerprints, count);
+
+		File temp = new File(stateFile.getAbsoluteFile().getParentFile(), stateFile.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(STATE_MAGIC);
+			out.writeInt(STATE_VERSION);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(ids[i]);
+				out.writeLong(fingerprints[i]);
+			}
+		}
+		Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Heap sorts the ids and moves each fingerprint along with its id, without boxing
+	 * or an index array.
+	 */
+	static void sortByIds(long[] ids, long[] fingerprints, int count) {
+		for (int i = count / 2 - 1; i >= 0; i--) {
+			siftDown(ids, fingerprints, i, count);
+		}
+		for (int end = count - 1; end > 0; end--) {
+			swap(ids, fingerprints, 0, end);
+			siftDown(ids, fingerprints, 0, end);
+		}
+	}
+
+	private static void siftDown(long[] ids, long[] fingerprints, int i, int count) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= count) {
+				return;
+			}
+			if (child + 1 < count && ids[child + 1] > ids[child]) {
+				child++;
+			}
+			if (ids[i] >= ids[child]) {
+				return;
+			}
+			swap(ids, fingerprints, i, child);
+			i = child;
+		}
+	}
+
+	private static void swap(long[] ids, long[] fingerprints, int i, int j) {
+		long id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		long fingerprint = fingerprints[i];
+		fingerprints[i] = fingerprints[j];
+		fingerprints[j] = fingerprint;
+	}
+
+	/**
+	 * @return Base64 UUID derived from an entry identity, the same in every run
+	 */
+	static String identityUUID(long id) {
+		byte[] uuid = new byte[16];
+		long hi = EntryHash.mix(id ^ 0x5bd1e9955bd1e995L);
+		long lo = EntryHash.mix(id);
+		for (int i = 0; i < 8; i++) {
+			uuid[i] = (byte) (hi >>> (56 - 8 * i));
+			uuid[i + 8] = (byte) (lo >>> (56 - 8 * i));
+		}
+		uuid[6] = (byte) ((uuid[6] & 0x0f) | 0x80); // version 8, custom
+		uuid[8] = (byte) ((uuid[8] & 0x3f) | 0x80); // IETF variant
+		return Base64.getEncoder().encodeToString(uuid);
+	}
+
+	private static String formatTime(Date date) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+
+}
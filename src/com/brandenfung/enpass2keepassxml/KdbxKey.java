@@ -0,0 +1,198 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+
+/**
+ * Composite master key of a KDBX database, made of a password, a key file or both
+ * like in KeePass. Only the SHA-256 hash of the components is kept, the password
+ * and key file contents are cleared once hashed.
+ *
+ * Key files are read the way KeePass reads them:
+ * 	- KeePass XML key files (version 1.0 with Base64 data, 2.0 with hex data)
+ * 	- 32 bytes, used as the key directly
+ * 	- 64 hex characters, decoded to 32 bytes
+ * 	- any other file, hashed with SHA-256
+ *
+ * @author Branden
+ *
+ */
+public final class KdbxKey {
+
+	/** AES-KDF rounds used unless set, as slow as KeePass' default on current CPUs */
+	public static final long DEFAULT_TRANSFORM_ROUNDS = 100000;
+
+	private final byte[] compositeKey;
+	private final long transformRounds;
+
+	public static class Builder {
+		private byte[] passwordHash;
+		private byte[] keyFileHash;
+		private long transformRounds = DEFAULT_TRANSFORM_ROUNDS;
+
+		/**
+		 * @param password Master password, cleared by this method. An empty password
+		 * 			is not used as a key component.
+		 */
+		public void setPassword(char[] password) {
+			if (password.length == 0) {
+				passwordHash = null;
+				return;
+			}
+			ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+			byte[] bytes = new byte[encoded.remaining()];
+			encoded.get(bytes);
+			passwordHash = sha256(bytes);
+			Arrays.fill(bytes, (byte) 0);
+			Arrays.fill(encoded.array(), (byte) 0);
+			Arrays.fill(password, '\0');
+		}
+
+		/**
+		 * @param keyFile Key file to use as a key component
+		 * @throws IOException If the key file could not be read
+		 */
+		public void setKeyFile(File keyFile) throws IOException {
+			byte[] contents = Files.readAllBytes(keyFile.toPath());
+			try {
+				keyFileHash = keyFileKey(contents);
+			} finally {
+				Arrays.fill(contents, (byte) 0);
+			}
+		}
+
+		/**
+		 * @param transformRounds Number of AES-KDF rounds, more rounds make guessing the
+		 * 			key slower but opening the database slower too
+		 */
+		public void setTransformRounds(long transformRounds) {
+			if (transformRounds < 1) {
+				throw new IllegalArgumentException("Transform rounds must be positive");
+			}
+			this.transformRounds = transformRounds;
+		}
+
+		/**
+		 * @throws IllegalStateException If neither a password nor a key file was set
+		 */
+		public KdbxKey build() {
+			if (passwordHash == null && keyFileHash == null) {
+				throw new IllegalStateException("Must specify a password or a key file");
+			}
+			return new KdbxKey(this);
+		}
+	}
+
+	private KdbxKey(Builder builder) {
+		MessageDigest digest = digest("SHA-256");
+		if (builder.passwordHash != null) {
+			digest.update(builder.passwordHash);
+		}
+		if (builder.keyFileHash != null) {
+			digest.update(builder.keyFileHash);
+		}
+		this.compositeKey = digest.digest();
+		this.transformRounds = builder.transformRounds;
+	}
+
+	/**
+	 * @return Copy of the 32 byte composite key, to be cleared by the caller
+	 */
+	byte[] compositeKey() {
+		return compositeKey.clone();
+	}
+
+	long transformRounds() {
+		return transformRounds;
+	}
+
+	private static byte[] keyFileKey(byte[] contents) {
+		byte[] xmlKey = xmlKeyFileKey(contents);
+		if (xmlKey != null) {
+			return xmlKey;
+		}
+		if (contents.length == 32) {
+			return contents.clone();
+		}
+		if (contents.length == 64) {
+			byte[] key = decodeHex(new String(contents, StandardCharsets.US_ASCII));
+			if (key != null) {
+				return key;
+			}
+		}
+		return sha256(contents);
+	}
+
+	/**
+	 * @return Key of a KeePass XML key file, null if the contents are not one
+	 */
+	private static byte[] xmlKeyFileKey(byte[] contents) {
+		String start = new String(contents, 0, Math.min(contents.length, 64), StandardCharsets.UTF_8).trim();
+		if (!start.startsWith("<?xml") && !start.startsWith("<KeyFile")) {
+			return null;
+		}
+		try {
+			// A key file never needs a DTD, and entities could read other files
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newDefaultInstance();
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			factory.setXIncludeAware(false);
+			factory.setExpandEntityReferences(false);
+			Element root = factory.newDocumentBuilder()
+					.parse(new ByteArrayInputStream(contents)).getDocumentElement();
+			String version = root.getElementsByTagName("Version").item(0).getTextContent().trim();
+			String data = root.getElementsByTagName("Data").item(0).getTextContent();
+			if (version.startsWith("1.")) {
+				return Base64.getDecoder().decode(data.trim());
+			} else if (version.startsWith("2.")) {
+				return decodeHex(data.replaceAll("\\s", ""));
+			}
+		} catch (Exception e) {
+			// Not a key file after all, hash it like any other file
+		}
+		return null;
+	}
+
+	private static byte[] decodeHex(String hex) {
+		if (hex.length() % 2 != 0) {
+			return null;
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int hi = Character.digit(hex.charAt(2 * i), 16);
+			int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (hi < 0 || lo < 0) {
+				return null;
+			}
+			bytes[i] = (byte) ((hi << 4) | lo);
+		}
+		return bytes;
+	}
+
+	static byte[] sha256(byte[] bytes) {
+		return digest("SHA-256").digest(bytes);
+	}
+
+	static MessageDigest digest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(algorithm + " is required to write KDBX files", e);
+		}
+	}
+
+}
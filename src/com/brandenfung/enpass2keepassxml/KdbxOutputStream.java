@@ -0,0 +1,405 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Writes an encrypted KeePass KDBX 4 database. The KeePass 2.x XML written to this
+ * stream, eg. by {@link KeePassXML2StreamWriter}, becomes the inner XML of the database,
+ * so a conversion can go straight to a .kdbx file without a plaintext file in between
+ * or an import in KeePass.
+ *
+ * The outer header is written on construction. XML is handed in chunks through a small
+ * bounded queue to a pipeline thread, which gzip compresses, AES-256-CBC encrypts and
+ * HMAC authenticates it, so encoding entries and compressing and encrypting them run
+ * at the same time. {@link #close()} waits for the pipeline to finish, {@link #abort()}
+ * stops it without finishing the database.
+ *
+ * The master key is derived with AES-KDF. The inner random stream is ChaCha20 but no
+ * values are marked as protected, the XML is written as is.
+ *
+ * @author Branden
+ *
+ */
+public class KdbxOutputStream extends OutputStream {
+
+	private static final int[] SIGNATURE = { 0x9AA2D903, 0xB54BFB67 };
+	private static final int VERSION = 0x00040000;
+
+	private static final byte END_OF_HEADER = 0;
+	private static final byte CIPHER_ID = 2;
+	private static final byte COMPRESSION_FLAGS = 3;
+	private static final byte MASTER_SEED = 4;
+	private static final byte ENCRYPTION_IV = 7;
+	private static final byte KDF_PARAMETERS = 11;
+
+	private static final byte INNER_RANDOM_STREAM_ID = 1;
+	private static final byte INNER_RANDOM_STREAM_KEY = 2;
+	private static final int CHACHA20 = 3;
+
+	private static final byte[] AES256_CIPHER = uuid(0x31c1f2e6bf714350L, 0xbe5805216afc5affL);
+	private static final byte[] AES_KDF = uuid(0xc9d9f39a628a4460L, 0xbf740d08c18a4feaL);
+	private static final int GZIP = 1;
+
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int CHUNKS_IN_FLIGHT = 4;
+	// Longest wait for a stopped pipeline to finish the chunk it is writing
+	private static final long STOP_TIMEOUT_MILLIS = 10_000;
+	private static final Chunk END = new Chunk(0);
+
+	private final ArrayBlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+	private final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT + 1);
+	private final OutputStream out;
+	private final Thread pipeline;
+	private volatile Throwable failure;
+
+	private Chunk chunk = new Chunk(CHUNK_SIZE);
+	private boolean closed;
+
+	/**
+	 * Derives the keys and writes the outer and inner headers.
+	 *
+	 * @param out Destination of the database, closed when this stream is closed
+	 * @param key Composite master key of the database
+	 * @throws IOException If the header could not be written
+	 */
+	public KdbxOutputStream(OutputStream out, KdbxKey key) throws IOException {
+		SecureRandom random = new SecureRandom();
+		byte[] masterSeed = new byte[32];
+		byte[] kdfSeed = new byte[32];
+		byte[] iv = new byte[16];
+		byte[] innerStreamKey = new byte[64];
+		random.nextBytes(masterSeed);
+		random.nextBytes(kdfSeed);
+		random.nextBytes(iv);
+		random.nextBytes(innerStreamKey);
+
+		byte[] compositeKey = key.compositeKey();
+		byte[] transformedKey = transformKey(compositeKey, kdfSeed, key.transformRounds());
+		byte[] hmacKey = hmacKey(masterSeed, transformedKey);
+		byte[] encryptionKey = encryptionKey(masterSeed, transformedKey);
+		Arrays.fill(compositeKey, (byte) 0);
+		Arrays.fill(transformedKey, (byte) 0);
+
+		byte[] header = header(masterSeed, iv, kdfSeed, key.transformRounds());
+		out.write(header);
+		out.write(KdbxKey.sha256(header));
+		Mac mac = HmacBlockOutputStream.hmacSha256();
+		HmacBlockOutputStream.init(mac, hmacKey, HmacBlockOutputStream.HEADER_INDEX);
+		out.write(mac.doFinal(header));
+
+		Cipher cipher;
+		try {
+			cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encryptionKey, "AES"), new IvParameterSpec(iv));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES is required to write KDBX files", e);
+		}
+		Arrays.fill(encryptionKey, (byte) 0);
+
+		HmacBlockOutputStream blocks = new HmacBlockOutputStream(out, hmacKey);
+		Arrays.fill(hmacKey, (byte) 0);
+		OutputStream payload = new GZIPOutputStream(new CipherOutputStream(blocks, cipher), CHUNK_SIZE);
+		payload.write(innerHeader(innerStreamKey));
+		Arrays.fill(innerStreamKey, (byte) 0);
+
+		this.out = out;
+		this.pipeline = new Thread(() -> runPipeline(payload, blocks), "kdbx-pipeline");
+		pipeline.setDaemon(true);
+		pipeline.start();
+	}
+
+	/**
+	 * Compresses, encrypts and writes chunks until the end marker, then finishes the
+	 * database. A failure or an interrupt stops the pipeline without the final block, so
+	 * the database does not pass as complete.
+	 */
+	private void runPipeline(OutputStream payload, HmacBlockOutputStream blocks) {
+		try {
+			Chunk next;
+			while ((next = filled.take()) != END) {
+				payload.write(next.bytes, 0, next.length);
+				next.length = 0;
+				free.offer(next);
+			}
+			payload.close();
+		} catch (Throwable t) {
+			failure = t;
+		} finally {
+			// A stopped pipeline never closes the blocks, which would wipe the key
+			blocks.wipe();
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkOpen();
+		if (chunk.length == CHUNK_SIZE) {
+			submit(chunk);
+			chunk = nextChunk();
+		}
+		chunk.bytes[chunk.length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		while (len > 0) {
+			if (chunk.length == CHUNK_SIZE) {
+				submit(chunk);
+				chunk = nextChunk();
+			}
+			int n = Math.min(len, CHUNK_SIZE - chunk.length);
+			System.arraycopy(b, off, chunk.bytes, chunk.length, n);
+			chunk.length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private Chunk nextChunk() {
+		Chunk next = free.poll();
+		return next != null ? next : new Chunk(CHUNK_SIZE);
+	}
+
+	/**
+	 * Hands a chunk to the pipeline, waiting while it is behind.
+	 */
+	private void submit(Chunk submitted) throws IOException {
+		try {
+			while (!filled.offer(submitted, 100, TimeUnit.MILLISECONDS)) {
+				checkPipeline();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing KDBX file");
+		}
+		checkPipeline();
+	}
+
+	private void checkPipeline() throws IOException {
+		Throwable t = failure;
+		if (t instanceof IOException) {
+			throw new IOException(t.getMessage(), t);
+		} else if (t != null) {
+			throw new IOException("Could not write KDBX file", t);
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	/**
+	 * Data is only written by the pipeline thread as chunks fill, flushing does nothing.
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkPipeline();
+	}
+
+	/**
+	 * Writes the remaining XML and waits for the pipeline to finish the database. If the
+	 * pipeline failed the database is left unfinished and the underlying stream is
+	 * closed as is.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		boolean finished = false;
+		try {
+			if (chunk.length > 0) {
+				submit(chunk);
+			}
+			submit(END);
+			pipeline.join();
+			checkPipeline();
+			finished = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing KDBX file");
+		} finally {
+			if (!finished) {
+				stopPipeline();
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Stops the pipeline without finishing the database, eg. after a failed conversion,
+	 * and closes the underlying stream. The final block is never written, so KeePass
+	 * rejects the file instead of opening a database that is missing entries.
+	 */
+	public void abort() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			stopPipeline();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Interrupts the pipeline and waits for it to stop, so it no longer writes to the
+	 * underlying stream once that is closed and the file deleted.
+	 */
+	private void stopPipeline() throws IOException {
+		pipeline.interrupt();
+		try {
+			pipeline.join(STOP_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while stopping the KDBX pipeline");
+		}
+		if (pipeline.isAlive()) {
+			throw new IOException("KDBX pipeline did not stop");
+		}
+	}
+
+	private static byte[] header(byte[] masterSeed, byte[] iv, byte[] kdfSeed, long rounds) {
+		ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+		byte[] b = new byte[8];
+		for (int signature : SIGNATURE) {
+			HmacBlockOutputStream.putInt(b, 0, signature);
+			header.write(b, 0, 4);
+		}
+		HmacBlockOutputStream.putInt(b, 0, VERSION);
+		header.write(b, 0, 4);
+
+		HmacBlockOutputStream.putInt(b, 0, GZIP);
+		writeField(header, CIPHER_ID, AES256_CIPHER);
+		writeField(header, COMPRESSION_FLAGS, Arrays.copyOf(b, 4));
+		writeField(header, MASTER_SEED, masterSeed);
+		writeField(header, ENCRYPTION_IV, iv);
+		writeField(header, KDF_PARAMETERS, kdfParameters(kdfSeed, rounds));
+		writeField(header, END_OF_HEADER, "\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+		return header.toByteArray();
+	}
+
+	private static byte[] innerHeader(byte[] innerStreamKey) {
+		ByteArrayOutputStream header = new ByteArrayOutputStream(96);
+		byte[] id = new byte[4];
+		HmacBlockOutputStream.putInt(id, 0, CHACHA20);
+		writeField(header, INNER_RANDOM_STREAM_ID, id);
+		writeField(header, INNER_RANDOM_STREAM_KEY, innerStreamKey);
+		writeField(header, END_OF_HEADER, new byte[0]);
+		return header.toByteArray();
+	}
+
+	private static void writeField(ByteArrayOutputStream header, byte id, byte[] data) {
+		byte[] size = new byte[4];
+		HmacBlockOutputStream.putInt(size, 0, data.length);
+		header.write(id);
+		header.write(size, 0, 4);
+		header.write(data, 0, data.length);
+	}
+
+	/**
+	 * @return AES-KDF parameters as a KDBX variant dictionary
+	 */
+	private static byte[] kdfParameters(byte[] kdfSeed, long rounds) {
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(128);
+		dictionary.write(0x00);
+		dictionary.write(0x01); // version 1.0
+		byte[] roundBytes = new byte[8];
+		HmacBlockOutputStream.putLong(roundBytes, 0, rounds);
+		writeVariant(dictionary, 0x42, "$UUID", AES_KDF);
+		writeVariant(dictionary, 0x05, "R", roundBytes);
+		writeVariant(dictionary, 0x42, "S", kdfSeed);
+		dictionary.write(0x00);
+		return dictionary.toByteArray();
+	}
+
+	private static void writeVariant(ByteArrayOutputStream dictionary, int type, String name, byte[] value) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		byte[] size = new byte[4];
+		dictionary.write(type);
+		HmacBlockOutputStream.putInt(size, 0, nameBytes.length);
+		dictionary.write(size, 0, 4);
+		dictionary.write(nameBytes, 0, nameBytes.length);
+		HmacBlockOutputStream.putInt(size, 0, value.length);
+		dictionary.write(size, 0, 4);
+		dictionary.write(value, 0, value.length);
+	}
+
+	/**
+	 * AES-KDF: encrypts the composite key with AES-256-ECB keyed by the seed, rounds
+	 * times, and hashes the result.
+	 */
+	static byte[] transformKey(byte[] compositeKey, byte[] kdfSeed, long rounds) {
+		byte[] key = compositeKey.clone();
+		try {
+			Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+			aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kdfSeed, "AES"));
+			for (long i = 0; i < rounds; i++) {
+				aes.update(key, 0, key.length, key, 0);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES is required to write KDBX files", e);
+		}
+		byte[] transformed = KdbxKey.sha256(key);
+		Arrays.fill(key, (byte) 0);
+		return transformed;
+	}
+
+	static byte[] hmacKey(byte[] masterSeed, byte[] transformedKey) {
+		MessageDigest sha512 = KdbxKey.digest("SHA-512");
+		sha512.update(masterSeed);
+		sha512.update(transformedKey);
+		sha512.update((byte) 1);
+		return sha512.digest();
+	}
+
+	static byte[] encryptionKey(byte[] masterSeed, byte[] transformedKey) {
+		MessageDigest sha256 = KdbxKey.digest("SHA-256");
+		sha256.update(masterSeed);
+		return sha256.digest(transformedKey);
+	}
+
+	private static byte[] uuid(long hi, long lo) {
+		byte[] uuid = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			uuid[i] = (byte) (hi >>> (56 - 8 * i));
+			uuid[i + 8] = (byte) (lo >>> (56 - 8 * i));
+		}
+		return uuid;
+	}
+
+	/**
+	 * Part of the XML on its way to the pipeline.
+	 */
+	private static final class Chunk {
+		final byte[] bytes;
+		int length;
+
+		Chunk(int size) {
+			this.bytes = new byte[size];
+		}
+	}
+
+}
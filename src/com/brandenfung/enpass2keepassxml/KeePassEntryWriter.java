@@ -0,0 +1,37 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * Writes a KeePass import file one {@link EnpassEntry} at a time. Closing the writer
+ * completes the file, aborting it leaves the file incomplete.
+ *
+ * @author Branden
+ *
+ * @see KeePassXML2StreamWriter
+ * @see KeePassXML1StreamWriter
+ */
+public interface KeePassEntryWriter extends Closeable {
+
+	/**
+	 * @param item {@link EnpassEntry} with fields to copy to the file
+	 * @throws IOException
+	 */
+	void writeEntry(EnpassEntry item) throws IOException;
+
+	/**
+	 * Stops writing without completing the file, eg. after a failed or cancelled
+	 * conversion, so that an incomplete file is not mistaken for a complete one. The
+	 * underlying stream is left open for the caller to close. By default the writer is
+	 * closed; writers that complete the file on close override this.
+	 *
+	 * @throws IOException
+	 */
+	default void abort() throws IOException {
+		close();
+	}
+
+}
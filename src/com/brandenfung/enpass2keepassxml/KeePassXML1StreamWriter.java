@@ -0,0 +1,233 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+
+import com.brandenfung.enpass2keepassxml.model.CustomFieldMap;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.KeePassEntry1;
+
+/**
+ * Streams a KeePass 1.x XML file, a pwlist of pwentry elements, one entry at a time,
+ * for importing into KeePass 1.x. Like {@link KeePassXML2StreamWriter} entries are
+ * encoded straight into the output buffer, so memory use stays flat.
+ *
+ * KeePass 1.x has no custom fields, so they are appended to the notes as
+ * "key: value" lines. Every entry is put in the Enpass2KeePassImports group and
+ * created, modified and accessed at the time the writer was created. That time is
+ * formatted once, along with the rest of the end of each entry.
+ *
+ * Values held off heap in {@link com.brandenfung.enpass2keepassxml.model.SecretValue}s
+ * are encoded straight from direct memory and wiped once the entry is written.
+ *
+ * @author Branden
+ *
+ */
+public class KeePassXML1StreamWriter implements KeePassEntryWriter {
+
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+	private static final byte[] DOCUMENT_START = Utf8XmlOutput.ascii(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n<pwlist>\n");
+	private static final byte[] DOCUMENT_END = Utf8XmlOutput.ascii("</pwlist>\n");
+
+	private static final byte[] IMPORTS_ENTRY_START = Utf8XmlOutput.ascii(
+			"<pwentry>\n\t<group>Enpass2KeePassImports</group>\n\t<title>");
+	private static final byte[] GROUP_START = Utf8XmlOutput.ascii("<pwentry>\n\t<group>");
+	private static final byte[] TITLE_START = Utf8XmlOutput.ascii("</group>\n\t<title>");
+	private static final byte[] USERNAME_START = Utf8XmlOutput.ascii("</title>\n\t<username>");
+	private static final byte[] URL_START = Utf8XmlOutput.ascii("</username>\n\t<url>");
+	private static final byte[] PASSWORD_START = Utf8XmlOutput.ascii("</url>\n\t<password>");
+	private static final byte[] NOTES_START = Utf8XmlOutput.ascii("</password>\n\t<notes>");
+	private static final byte[] UUID_START = Utf8XmlOutput.ascii("</notes>\n\t<uuid>");
+	private static final byte[] UUID_END = Utf8XmlOutput.ascii("</uuid>\n\t<image>");
+	private static final byte[] CREATION_TIME_START = Utf8XmlOutput.ascii("</image>\n\t<creationtime>");
+	private static final byte[] LAST_MOD_TIME_START = Utf8XmlOutput.ascii("</creationtime>\n\t<lastmodtime>");
+	private static final byte[] LAST_ACCESS_TIME_START = Utf8XmlOutput.ascii(
+			"</lastmodtime>\n\t<lastaccesstime>");
+	private static final byte[] EXPIRE_TIME_START = Utf8XmlOutput.ascii(
+			"</lastaccesstime>\n\t<expiretime expires=\"false\">");
+	private static final byte[] ENTRY_END = Utf8XmlOutput.ascii("</expiretime>\n</pwentry>\n");
+	private static final byte[] FIELD_SEPARATOR = Utf8XmlOutput.ascii(": ");
+	private static final byte[] NEWLINE = Utf8XmlOutput.ascii("\n");
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Utf8XmlOutput out;
+	private final UUIDGenerator uuids;
+	private final String time;
+	// Image, times and closing tag, the same for every entry of a run
+	private final byte[] entryEnd;
+	private boolean closed;
+
+	/**
+	 * Creates the writer with random UUIDs and writes everything up to the first entry.
+	 *
+	 * @param outputStream Destination of the xml, closed when this writer is closed
+	 * @throws IOException
+	 */
+	public KeePassXML1StreamWriter(OutputStream outputStream) throws IOException {
+		this(outputStream, RandomUUIDGenerator.INSTANCE, XmlEscaper.DEFAULT);
+	}
+
+	/**
+	 * Creates the writer and writes everything up to the first entry.
+	 *
+	 * @param outputStream Destination of the xml, closed when this writer is closed
+	 * @param uuids Generator of the entry UUIDs, written as hex as KeePass 1.x expects
+	 * @param escaper Escaper of values, decides what happens to characters XML 1.0
+	 * 			does not allow
+	 * @throws IOException
+	 */
+	public KeePassXML1StreamWriter(OutputStream outputStream, UUIDGenerator uuids, XmlEscaper escaper)
+			throws IOException {
+		this.out = new Utf8XmlOutput(outputStream, 1 << 16, escaper);
+		this.uuids = uuids.forConversion();
+		this.time = LocalDateTime.now().format(TIME_FORMAT);
+		this.entryEnd = Utf8XmlOutput.ascii("0</image>\n" +
+				"\t<creationtime>" + time + "</creationtime>\n" +
+				"\t<lastmodtime>" + time + "</lastmodtime>\n" +
+				"\t<lastaccesstime>" + time + "</lastaccesstime>\n" +
+				"\t<expiretime expires=\"false\">" + KeePassEntry1.NEVER_EXPIRES + "</expiretime>\n" +
+				"</pwentry>\n");
+
+		out.writeRaw(DOCUMENT_START);
+	}
+
+	/**
+	 * @return Time every entry written by this writer was created at, in the
+	 * 			format of KeePass 1.x
+	 */
+	public String time() {
+		return time;
+	}
+
+	/**
+	 * Writes a pwentry element with the fields of the {@link EnpassEntry}.
+	 *
+	 * @param item {@link EnpassEntry} with fields to copy to the pwentry element
+	 * @throws IOException
+	 */
+	@Override
+	public void writeEntry(EnpassEntry item) throws IOException {
+		try {
+			out.writeRaw(IMPORTS_ENTRY_START);
+			out.writeEscaped(item.title);
+			out.writeRaw(USERNAME_START);
+			out.writeEscaped(item.username);
+			out.writeRaw(URL_START);
+			out.writeEscaped(item.url);
+			out.writeRaw(PASSWORD_START);
+			CharSequence password = item.passwordChars();
+			out.writeEscaped(password, 0, password.length());
+			out.writeRaw(NOTES_START);
+			out.writeEscaped(item.note);
+
+			CustomFieldMap customFields = item.customFieldMap();
+			for (int i = 0; i < customFields.size(); i++) {
+				if (i > 0 || !item.note.isEmpty()) {
+					out.writeRaw(NEWLINE);
+				}
+				out.writeEscaped(customFields.key(i));
+				out.writeRaw(FIELD_SEPARATOR);
+				CharSequence value = customFields.chars(i);
+				out.writeEscaped(value, 0, value.length());
+			}
+
+			out.writeRaw(UUID_START);
+			out.writeEscaped(hexUUID(uuids.entryUUID(item)));
+			out.writeRaw(UUID_END);
+			out.writeRaw(entryEnd);
+		} finally {
+			item.wipeSecrets();
+		}
+	}
+
+	/**
+	 * Writes a pwentry element with the fields of a {@link KeePassEntry1} as they are.
+	 *
+	 * @param item Entry to write
+	 * @throws IOException
+	 */
+	public void writeEntry(KeePassEntry1 item) throws IOException {
+		out.writeRaw(GROUP_START);
+		out.writeEscaped(item.group);
+		out.writeRaw(TITLE_START);
+		out.writeEscaped(item.title);
+		out.writeRaw(USERNAME_START);
+		out.writeEscaped(item.username);
+		out.writeRaw(URL_START);
+		out.writeEscaped(item.url);
+		out.writeRaw(PASSWORD_START);
+		out.writeEscaped(item.password);
+		out.writeRaw(NOTES_START);
+		out.writeEscaped(item.notes);
+		out.writeRaw(UUID_START);
+		out.writeEscaped(item.uuid);
+		out.writeRaw(UUID_END);
+		out.writeEscaped(item.image);
+		out.writeRaw(CREATION_TIME_START);
+		out.writeEscaped(item.creationTime);
+		out.writeRaw(LAST_MOD_TIME_START);
+		out.writeEscaped(item.lastModTime);
+		out.writeRaw(LAST_ACCESS_TIME_START);
+		out.writeEscaped(item.lastAccessTime);
+		out.writeRaw(EXPIRE_TIME_START);
+		out.writeEscaped(item.expireTime);
+		out.writeRaw(ENTRY_END);
+	}
+
+	/**
+	 * @return The 16 bytes of a Base64 encoded UUID as 32 hex digits, the UUID format
+	 * 			of KeePass 1.x
+	 */
+	static String hexUUID(String base64) {
+		byte[] bytes = Base64.getDecoder().decode(base64);
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Flushes buffered entries to the underlying stream.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Writes the closing tag and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			out.writeRaw(DOCUMENT_END);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Drops the buffered output and stops without the closing tag, so output that is
+	 * missing entries is not a complete document. The underlying stream is left open.
+	 */
+	@Override
+	public void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		out.discard();
+	}
+
+}
@@ -0,0 +1,370 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.brandenfung.enpass2keepassxml.model.CustomFieldMap;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
+import com.brandenfung.enpass2keepassxml.model.FieldKeys;
+
+/**
+ * Streams a KeePass 2.x XML file one {@link EnpassEntry} at a time. Produces the same
+ * KeePassFile/Root/Group/Group/Entry layout as {@link KeePassXMLWriter#writeKeePassXml2},
+ * but each entry is encoded straight into the output buffer instead of being added to a
+ * DOM, so memory use stays flat no matter how many entries are written.
+ *
+ * The document prolog and groups are written on construction, entries are written
+ * with {@link #writeEntry(EnpassEntry)} and {@link #close()} writes the closing tags.
+ *
+ * Custom field keys are escaped and encoded once per {@link FieldKeys} id and the
+ * bytes are shared by every writer. Characters that XML 1.0 does not allow are
+ * handled by the {@link XmlEscaper} of the writer, so the output can always be imported.
+ *
+ * Values held off heap in {@link com.brandenfung.enpass2keepassxml.model.SecretValue}s
+ * are encoded straight from direct memory and wiped once the entry is written.
+ *
+ * @author Branden
+ *
+ */
+public class KeePassXML2StreamWriter implements KeePassEntryWriter {
+
+	private static final byte[] DOCUMENT_START = Utf8XmlOutput.ascii(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?><KeePassFile><Root><Group><UUID>");
+	private static final byte[] BASE_GROUP_NAME = Utf8XmlOutput.ascii(
+			"</UUID><Name>Enpass2KeePassXML</Name><Notes/><Group><UUID>");
+	private static final byte[] CONTAINER_GROUP_NAME = Utf8XmlOutput.ascii(
+			"</UUID><Name>Enpass2KeePassImports</Name>");
+	private static final byte[] GROUPS_END = Utf8XmlOutput.ascii("</Group></Group>");
+	private static final byte[] DOCUMENT_END = Utf8XmlOutput.ascii("</Root></KeePassFile>");
+
+	private static final byte[] DELETED_OBJECTS_START = Utf8XmlOutput.ascii("<DeletedObjects>");
+	private static final byte[] DELETED_OBJECTS_END = Utf8XmlOutput.ascii("</DeletedObjects>");
+	private static final byte[] DELETED_OBJECT_START = Utf8XmlOutput.ascii("<DeletedObject><UUID>");
+	private static final byte[] DELETION_TIME = Utf8XmlOutput.ascii("</UUID><DeletionTime>");
+	private static final byte[] DELETED_OBJECT_END = Utf8XmlOutput.ascii("</DeletionTime></DeletedObject>");
+
+	private static final byte[] ENTRY_START = Utf8XmlOutput.ascii("<Entry><UUID>");
+	private static final byte[] UUID_END = Utf8XmlOutput.ascii("</UUID>");
+	private static final byte[] ENTRY_END = Utf8XmlOutput.ascii(
+			"<AutoType><Enabled>true</Enabled><DataTransferObfuscation>0</DataTransferObfuscation>" +
+			"</AutoType><History/></Entry>");
+
+	private static final byte[] STRING_START = Utf8XmlOutput.ascii("<String><Key>");
+	private static final byte[] KEY_END = Utf8XmlOutput.ascii("</Key><Value>");
+	private static final byte[] STRING_END = Utf8XmlOutput.ascii("</Value></String>");
+
+	private static final byte[] NOTES_KEY = stringKey("Notes");
+	private static final byte[] PASSWORD_KEY = stringKey("Password");
+	private static final byte[] TITLE_KEY = stringKey("Title");
+	private static final byte[] URL_KEY = stringKey("URL");
+	private static final byte[] USERNAME_KEY = stringKey("UserName");
+
+	// Encoded start of the String element of each custom field key, by FieldKeys id,
+	// so no larger than the capped table
+	private static final Object CUSTOM_KEYS_LOCK = new Object();
+	private static volatile AtomicReferenceArray<byte[]> customKeys = new AtomicReferenceArray<>(64);
+
+	private static final String KEEPASS_DATABASE_NAME = "Enpass2KeePassXML";
+	private static final String KEEPASS_PARENT_GROUP_NAME = "Enpass2KeePassImports";
+
+	private final Utf8XmlOutput out;
+	private final UUIDGenerator uuids;
+	private boolean writingDeletedObjects;
+	private boolean closed;
+
+	/**
+	 * Creates the writer with random UUIDs and writes everything up to the first entry.
+	 *
+	 * @param outputStream Destination of the xml, closed when this writer is closed
+	 * @throws IOException
+	 */
+	public KeePassXML2StreamWriter(OutputStream outputStream) throws IOException {
+		this(outputStream, RandomUUIDGenerator.INSTANCE);
+	}
+
+	/**
+	 * Creates the writer and writes everything up to the first entry.
+	 *
+	 * @param outputStream Destination of the xml, closed when this writer is closed
+	 * @param uuids Generator of the group and entry UUIDs
+	 * @throws IOException
+	 */
+	public KeePassXML2StreamWriter(OutputStream outputStream, UUIDGenerator uuids) throws IOException {
+		this(outputStream, uuids, XmlEscaper.DEFAULT);
+	}
+
+	/**
+	 * Creates the writer and writes everything up to the first entry.
+	 *
+	 * @param outputStream Destination of the xml, closed when this writer is closed
+	 * @param uuids Generator of the group and entry UUIDs
+	 * @param escaper Escaper of values, decides what happens to characters XML 1.0
+	 * 			does not allow
+	 * @throws IOException
+	 */
+	public KeePassXML2StreamWriter(OutputStream outputStream, UUIDGenerator uuids, XmlEscaper escaper) 
+			throws IOException {
+		this.out = new Utf8XmlOutput(outputStream, 1 << 16, escaper);
+		this.uuids = uuids.forConversion();
+
+		out.writeRaw(DOCUMENT_START);
+		out.writeEscaped(uuids.groupUUID(KEEPASS_DATABASE_NAME));
+		out.writeRaw(BASE_GROUP_NAME);
+		out.writeEscaped(uuids.groupUUID(KEEPASS_PARENT_GROUP_NAME));
+		out.writeRaw(CONTAINER_GROUP_NAME);
+	}
+
+	/**
+	 * Writes a single entry element with the fields of the {@link EnpassEntry}.
+	 *
+	 * @param item {@link EnpassEntry} with fields to copy to entry element
+	 * @throws IOException
+	 */
+	@Override
+	public void writeEntry(EnpassEntry item) throws IOException {
+		writeEntry(item, uuids.entryUUID(item));
+	}
+
+	/**
+	 * Writes a single entry element with a UUID chosen by the caller.
+	 *
+	 * @param item {@link EnpassEntry} with fields to copy to entry element
+	 * @param uuid Base64 encoded UUID of the entry
+	 * @throws IOException
+	 */
+	public void writeEntry(EnpassEntry item, String uuid) throws IOException {
+		checkWritingEntries();
+		writeEntry(out, item, uuid);
+	}
+
+	/**
+	 * Records that an entry was deleted, so importing this file into a database
+	 * that has the entry removes it. Once a deleted object is written no more
+	 * entries can be written.
+	 *
+	 * @param uuid Base64 encoded UUID of the deleted entry
+	 * @param deletionTime Time of deletion in xs:dateTime format, eg. 2016-08-17T00:00:00Z
+	 * @throws IOException
+	 */
+	public void writeDeletedObject(String uuid, String deletionTime) throws IOException {
+		if (!writingDeletedObjects) {
+			writingDeletedObjects = true;
+			out.writeRaw(GROUPS_END);
+			out.writeRaw(DELETED_OBJECTS_START);
+		}
+		out.writeRaw(DELETED_OBJECT_START);
+		out.writeEscaped(uuid);
+		out.writeRaw(DELETION_TIME);
+		out.writeEscaped(deletionTime);
+		out.writeRaw(DELETED_OBJECT_END);
+	}
+
+	private void checkWritingEntries() {
+		if (writingDeletedObjects) {
+			throw new IllegalStateException("Entries must be written before deleted objects");
+		}
+	}
+
+	/**
+	 * Writes a single entry element straight from an {@link EnpassEntryStore}, without
+	 * creating Strings for its fields.
+	 *
+	 * @param item View of the entry to write
+	 * @throws IOException
+	 */
+	public void writeEntry(EnpassEntryStore.View item) throws IOException {
+		checkWritingEntries();
+		writeEntry(out, item, uuids);
+	}
+
+	/**
+	 * Writes entries that were already encoded with {@link #writeEntry(Utf8XmlOutput, EnpassEntry, String)}.
+	 */
+	void writeFragment(byte[] fragment, int length) throws IOException {
+		checkWritingEntries();
+		out.writeRaw(fragment, 0, length);
+	}
+
+	/**
+	 * Encodes an entry element to any output. Used directly by writers that encode
+	 * entries away from the output stream.
+	 */
+	static void writeEntry(Utf8XmlOutput out, EnpassEntry item, UUIDGenerator uuids) throws IOException {
+		writeEntry(out, item, uuids.entryUUID(item));
+	}
+
+	static void writeEntry(Utf8XmlOutput out, EnpassEntry item, String uuid) throws IOException {
+		try {
+			out.writeRaw(ENTRY_START);
+			out.writeEscaped(uuid);
+			out.writeRaw(UUID_END);
+
+			writeString(out, NOTES_KEY, item.note);
+			writeString(out, PASSWORD_KEY, item.passwordChars());
+			writeString(out, TITLE_KEY, item.title);
+			writeString(out, URL_KEY, item.url);
+			writeString(out, USERNAME_KEY, item.username);
+
+			CustomFieldMap customFields = item.customFieldMap();
+			for (int i = 0; i < customFields.size(); i++) {
+				writeCustomKey(out, customFields.keyId(i), customFields.key(i));
+				CharSequence value = customFields.chars(i);
+				out.writeEscaped(value, 0, value.length());
+				out.writeRaw(STRING_END);
+			}
+
+			out.writeRaw(ENTRY_END);
+		} finally {
+			item.wipeSecrets();
+		}
+	}
+
+	static void writeEntry(Utf8XmlOutput out, EnpassEntryStore.View item, UUIDGenerator uuids) 
+			throws IOException {
+		CharSequence text = item.store().text();
+
+		out.writeRaw(ENTRY_START);
+		out.writeEscaped(uuids.entryUUID(item));
+		out.writeRaw(UUID_END);
+
+		writeString(out, NOTES_KEY, text, item, EnpassEntryStore.NOTE);
+		writeString(out, PASSWORD_KEY, text, item, EnpassEntryStore.PASSWORD);
+		writeString(out, TITLE_KEY, text, item, EnpassEntryStore.TITLE);
+		writeString(out, URL_KEY, text, item, EnpassEntryStore.URL);
+		writeString(out, USERNAME_KEY, text, item, EnpassEntryStore.USERNAME);
+
+		for (int i = 0; i < item.customFieldCount(); i++) {
+			writeCustomKey(out, item.customFieldKeyId(i), item.customFieldKey(i));
+			out.writeEscaped(text, item.customFieldStart(i), item.customFieldEnd(i));
+			out.writeRaw(STRING_END);
+		}
+
+		out.writeRaw(ENTRY_END);
+	}
+
+	private static void writeString(Utf8XmlOutput out, byte[] key, CharSequence text, 
+			EnpassEntryStore.View item, int field) throws IOException {
+		out.writeRaw(key);
+		out.writeEscaped(text, item.fieldStart(field), item.fieldEnd(field));
+		out.writeRaw(STRING_END);
+	}
+
+	private static void writeString(Utf8XmlOutput out, byte[] key, CharSequence value) throws IOException {
+		out.writeRaw(key);
+		out.writeEscaped(value, 0, value.length());
+		out.writeRaw(STRING_END);
+	}
+
+	/**
+	 * Writes the start of the String element of a custom field, up to its value.
+	 */
+	private static void writeCustomKey(Utf8XmlOutput out, int keyId, String name) throws IOException {
+		if (keyId == FieldKeys.NO_ID) { // Not in the table, so not cached either
+			out.writeRaw(STRING_START);
+			out.writeEscaped(name);
+			out.writeRaw(KEY_END);
+			return;
+		}
+		AtomicReferenceArray<byte[]> cache = customKeys;
+		byte[] key = keyId < cache.length() ? cache.get(keyId) : null;
+		if (key == null) {
+			key = cacheCustomKey(out, keyId);
+		}
+		if (key != null) {
+			out.writeRaw(key);
+		}
+	}
+
+	/**
+	 * @return Encoded start of the String element, or null if the key was written
+	 * 			instead because it depends on how the output handles invalid characters
+	 */
+	private static byte[] cacheCustomKey(Utf8XmlOutput out, int keyId) throws IOException {
+		String name = FieldKeys.key(keyId);
+		if (out.escaper().sanitize(name) != name) {
+			out.writeRaw(STRING_START);
+			out.writeEscaped(name);
+			out.writeRaw(KEY_END);
+			return null;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8XmlOutput encoder = new Utf8XmlOutput(bytes, 64);
+		encoder.writeRaw(STRING_START);
+		encoder.writeEscaped(name);
+		encoder.writeRaw(KEY_END);
+		encoder.flush();
+		byte[] key = bytes.toByteArray();
+
+		synchronized (CUSTOM_KEYS_LOCK) {
+			AtomicReferenceArray<byte[]> cache = customKeys;
+			if (keyId >= cache.length()) {
+				AtomicReferenceArray<byte[]> grown = new AtomicReferenceArray<>(
+						Math.max(keyId + 1, cache.length() * 2));
+				for (int i = 0; i < cache.length(); i++) {
+					grown.set(i, cache.get(i));
+				}
+				customKeys = cache = grown;
+			}
+			cache.set(keyId, key);
+		}
+		return key;
+	}
+
+	UUIDGenerator uuids() {
+		return uuids;
+	}
+
+	XmlEscaper escaper() {
+		return out.escaper();
+	}
+
+	/**
+	 * Flushes buffered entries to the underlying stream.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Writes the closing tags and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (writingDeletedObjects) {
+				out.writeRaw(DELETED_OBJECTS_END);
+			} else {
+				out.writeRaw(GROUPS_END);
+			}
+			out.writeRaw(DOCUMENT_END);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Drops the buffered output and stops without the closing tags, so output that is
+	 * missing entries is not a complete document. The underlying stream is left open.
+	 */
+	@Override
+	public void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		out.discard();
+	}
+
+	private static byte[] stringKey(String key) {
+		return Utf8XmlOutput.ascii("<String><Key>" + key + "</Key><Value>");
+	}
+
+}
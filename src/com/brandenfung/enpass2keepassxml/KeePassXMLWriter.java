@@ -1,12 +1,9 @@
 package com.brandenfung.enpass2keepassxml;
 
 import java.io.File;
-import java.nio.ByteBuffer;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.UUID;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -20,7 +17,10 @@ import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import com.brandenfung.enpass2keepassxml.model.CustomFieldMap;
 import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
+import com.brandenfung.enpass2keepassxml.model.SecretValue;
 
 /**
  * Writes KeePass XML files to be imported into KeePass. All {@link EnpassEntry} are 
@@ -59,62 +59,6 @@ public class KeePassXMLWriter {
 	private static final String VALUE_TAG = "Value";
 	private static final String HISTORY_TAG = "History";
 
-//	/**
-//	 * Writes a KeePass 1.x XML file given Enpass entries.
-//	 * 
-//	 * @param enpassEntries Enpass Entries to write to the KeePass xml
-//	 * @param outputPath Output path of the KeePassxml
-//	 */
-//	 // Unfinished, finish if someone needs it. Most likely use KeePass 2.x xml files though
-//	public static void writeKeePassXml1(ArrayList<EnpassEntry> enpassEntries, String outputPath) {
-//		try {
-//			DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-//			DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-//			Document doc = docBuilder.newDocument();
-//
-//			// pwlist element
-//			Element pwlist = doc.createElement("pwlist");
-//			doc.appendChild(pwlist);
-//
-//			for(EnpassEntry entry: enpassEntries) {
-//
-//				// Add pwentry
-//				Element pwentry = doc.createElement("pwentry");
-//				pwlist.appendChild(pwentry);
-//
-//				// Add fields to pwentry
-//				Element group = doc.createElement("group");
-//
-//				Element title = doc.createElement("title");
-//
-//				Element username = doc.createElement("username");
-//
-//				Element url = doc.createElement("url");
-//
-//				Element password = doc.createElement("password");
-//
-//				Element notes = doc.createElement("notes");
-//
-//				Element uuid = doc.createElement("uuid");
-//
-//				Element image = doc.createElement("image");
-//
-//				Element creationtime = doc.createElement("creationtime");
-//
-//				Element lastmodtime = doc.createElement("lastmodtime");
-//
-//				Element lastaccesstime = doc.createElement("lastaccesstime");
-//
-//				Element expiretime = doc.createElement("expiretime");				
-//
-//			}
-//
-//
-//		} catch (ParserConfigurationException pce) {
-//			pce.printStackTrace();
-//		} 
-//	}
-
 	/**
 	 * Writes a KeePass 2.x XML file given Enpass entries.
 	 * 
@@ -123,7 +67,9 @@ public class KeePassXMLWriter {
 	 */
 	public static void writeKeePassXml2(ArrayList<EnpassEntry> enpassEntries, String outputPath) {
 		try {
-			DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
+			// The built-in factories, without a service lookup on every call or reflection
+			// for native-image
+			DocumentBuilderFactory docFactory = DocumentBuilderFactory.newDefaultInstance();
 			DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
 			Document doc = docBuilder.newDocument();
 			// KeePassFile element
@@ -147,7 +93,7 @@ public class KeePassXMLWriter {
 
 			// Write file
 			doc.setXmlStandalone(true);
-			TransformerFactory transformerFactory = TransformerFactory.newInstance();
+			TransformerFactory transformerFactory = TransformerFactory.newDefaultInstance();
 			Transformer transformer = transformerFactory.newTransformer();
 			DOMSource source = new DOMSource(doc);
 			StreamResult result = new StreamResult(new File(outputPath));			
@@ -160,6 +106,61 @@ public class KeePassXMLWriter {
 		}
 	}
 	
+	/**
+	 * Writes a KeePass 2.x XML file given Enpass entries, streaming each entry to disk
+	 * as it is encoded rather than building a DOM of the whole file first. Use this over
+	 * {@link #writeKeePassXml2(ArrayList, String)} for large exports.
+	 * 
+	 * @param enpassEntries Enpass Entries to write to the KeePass xml
+	 * @param outputPath Output path of the KeePass xml
+	 * @see KeePassXML2StreamWriter
+	 */
+	public static void streamKeePassXml2(Iterable<EnpassEntry> enpassEntries, String outputPath) {
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(new FileOutputStream(outputPath))) {
+			for (EnpassEntry item : enpassEntries) {
+				writer.writeEntry(item);
+			}
+		} catch (IOException e) {
+			if (DEBUG) e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Writes a KeePass 2.x XML file given a store of Enpass entries, streaming each 
+	 * entry straight from the store's arena.
+	 * 
+	 * @param store Enpass Entries to write to the KeePass xml
+	 * @param outputPath Output path of the KeePass xml
+	 */
+	public static void streamKeePassXml2(EnpassEntryStore store, String outputPath) {
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(new FileOutputStream(outputPath))) {
+			for (int i = 0; i < store.size(); i++) {
+				writer.writeEntry(store.get(i));
+			}
+		} catch (IOException e) {
+			if (DEBUG) e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Writes a KeePass 2.x XML file given Enpass entries like 
+	 * {@link #streamKeePassXml2(Iterable, String)}, encoding entries on all cores.
+	 * The output is written in the same order as the entries.
+	 * 
+	 * @param enpassEntries Enpass Entries to write to the KeePass xml
+	 * @param outputPath Output path of the KeePass xml
+	 * @see ParallelKeePassXML2Writer
+	 */
+	public static void streamKeePassXml2Parallel(Iterable<EnpassEntry> enpassEntries, String outputPath) {
+		try (ParallelKeePassXML2Writer writer = new ParallelKeePassXML2Writer(new FileOutputStream(outputPath))) {
+			for (EnpassEntry item : enpassEntries) {
+				writer.writeEntry(item);
+			}
+		} catch (IOException e) {
+			if (DEBUG) e.printStackTrace();
+		}
+	}
+	
 	/**
 	 * 
 	 * Generates an entry element with populated fields given by the {@link EnpassEntry}.
@@ -200,7 +201,8 @@ public class KeePassXMLWriter {
 		Element urlValue = doc.createElement(VALUE_TAG);
 		Element userNameValue = doc.createElement(VALUE_TAG);
 
-		// Populate UUID and key-value elements
+		// Populate UUID and key-value elements, the transformer would write characters
+		// that XML 1.0 does not allow as references KeePass can not read
 		entryUUID.appendChild(doc.createTextNode(generateStringUUID()));
 
 		notesKey.appendChild(doc.createTextNode(NOTES_TAG));
@@ -209,11 +211,11 @@ public class KeePassXMLWriter {
 		urlKey.appendChild(doc.createTextNode(URL_TAG));
 		userNameKey.appendChild(doc.createTextNode(USERNAME_TAG));
 
-		notesValue.appendChild(doc.createTextNode(item.note));
-		passwordValue.appendChild(doc.createTextNode(item.password));
-		titleValue.appendChild(doc.createTextNode(item.title));
-		urlValue.appendChild(doc.createTextNode(item.url));
-		userNameValue.appendChild(doc.createTextNode(item.username));
+		notesValue.appendChild(doc.createTextNode(XmlEscaper.DEFAULT.sanitize(item.note)));
+		passwordValue.appendChild(doc.createTextNode(XmlEscaper.DEFAULT.sanitize(SecretValue.reveal(item.passwordChars()))));
+		titleValue.appendChild(doc.createTextNode(XmlEscaper.DEFAULT.sanitize(item.title)));
+		urlValue.appendChild(doc.createTextNode(XmlEscaper.DEFAULT.sanitize(item.url)));
+		userNameValue.appendChild(doc.createTextNode(XmlEscaper.DEFAULT.sanitize(item.username)));
 
 		// Attach children
 		containerGroup.appendChild(entry);
@@ -235,11 +237,11 @@ public class KeePassXMLWriter {
 		entryUserName.appendChild(userNameValue);
 		
 		// Now add custom fields
-		HashMap<String, String> customFields = item.customFields;
-		for(Entry<String, String> customField : customFields.entrySet()) {
-			// Get custom field key-value pair
-		    String key = customField.getKey();
-		    String value = customField.getValue();
+		CustomFieldMap customFields = item.customFieldMap();
+		for (int i = 0; i < customFields.size(); i++) {
+			// Get custom field key-value pair, whether the value is held off heap or not
+			String key = customFields.key(i);
+			String value = SecretValue.reveal(customFields.chars(i));
 
 		    // Create require elements for field
 			Element strElement = doc.createElement(STRING_TAG);
@@ -247,8 +249,8 @@ public class KeePassXMLWriter {
 			Element valElement = doc.createElement(VALUE_TAG);
 			
 			// Populate key and value elements
-			keyElement.appendChild(doc.createTextNode(key));		
-			valElement.appendChild(doc.createTextNode(value));			
+			keyElement.appendChild(doc.createTextNode(XmlEscaper.DEFAULT.sanitize(key)));		
+			valElement.appendChild(doc.createTextNode(XmlEscaper.DEFAULT.sanitize(value)));			
 
 			// Attach children
 			entry.appendChild(strElement);
@@ -325,14 +327,12 @@ public class KeePassXMLWriter {
 		return generalGroup;
 	}
 
+	/**
+	 * @return Base64 encoding of a new random UUID
+	 * @see RandomUUIDGenerator
+	 */
 	public static String generateStringUUID() {
-		UUID uuid = UUID.randomUUID();
-		ByteBuffer buffer = ByteBuffer.wrap(new byte[16]);
-		buffer.putLong(uuid.getMostSignificantBits());
-		buffer.putLong(uuid.getLeastSignificantBits());
-		
-		Base64.Encoder encoder = Base64.getEncoder();
-		return encoder.encodeToString(buffer.array());
+		return RandomUUIDGenerator.INSTANCE.next();
 	}
 
 
@@ -0,0 +1,142 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from long keys to int values with linear probing. Stores
+ * keys and values in two primitive arrays, so it costs 12 bytes per slot and no
+ * objects per mapping.
+ *
+ * @author Branden
+ *
+ */
+final class LongIntHashMap {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	// 0 marks a free slot, so the key 0 is kept on the side
+	private long[] keys;
+	private int[] values;
+	private int size;
+	private boolean hasZeroKey;
+	private int zeroValue;
+
+	LongIntHashMap() {
+		this(16);
+	}
+
+	LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * @return Value of the key, or 0 if it is not in the map
+	 */
+	int get(long key) {
+		if (key == 0) {
+			return hasZeroKey ? zeroValue : 0;
+		}
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Adds one to the value of a key, missing keys count as 0.
+	 *
+	 * @return Value of the key before it was incremented
+	 */
+	int getAndIncrement(long key) {
+		if (key == 0) {
+			if (!hasZeroKey) {
+				hasZeroKey = true;
+				size++;
+			}
+			return zeroValue++;
+		}
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i]++;
+			}
+		}
+		keys[i] = key;
+		values[i] = 1;
+		if (++size > keys.length * LOAD_FACTOR) {
+			grow();
+		}
+		return 0;
+	}
+
+	/**
+	 * Maps a key to a value unless it is already mapped. Values must not be 0, which
+	 * marks a missing key.
+	 *
+	 * @return Value the key was already mapped to, or 0 if the value was added
+	 */
+	int putIfAbsent(long key, int value) {
+		if (key == 0) {
+			if (hasZeroKey) {
+				return zeroValue;
+			}
+			hasZeroKey = true;
+			zeroValue = value;
+			size++;
+			return 0;
+		}
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; keys[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length * LOAD_FACTOR) {
+			grow();
+		}
+		return 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldValues.length * 2];
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != 0) {
+				int i = slot(oldKeys[j], mask);
+				while (keys[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	void clear() {
+		Arrays.fill(keys, 0);
+		size = 0;
+		hasZeroKey = false;
+		zeroValue = 0;
+	}
+
+	private static int slot(long key, int mask) {
+		return (int) EntryHash.mix(key) & mask;
+	}
+
+}
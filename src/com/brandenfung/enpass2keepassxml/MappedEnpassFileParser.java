@@ -0,0 +1,324 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * Parses an exported Enpass txt file in parallel. The file is memory mapped and split
+ * into chunks that each start on a line beginning with "Title : ", which is where
+ * {@link EnpassEntryReader} starts a new entry, so every chunk can be parsed on its own.
+ * Chunks are parsed on a {@link ForkJoinPool} and the entries are merged in file order,
+ * giving the same result as a sequential parse.
+ *
+ * Chunks aim for at most {@link #MAX_CHUNK_SIZE} bytes, so a chunk decoded whole
+ * stays a bounded size however large the export. A chunk only ends where a record
+ * does, so one that ends up over twice the aim holds a record too large to decode
+ * whole, and is streamed through {@link EnpassEntryReader} instead.
+ *
+ * Chunk boundaries are found by their UTF-8 bytes, so exports in UTF-16 are parsed
+ * on the calling thread instead. See {@link EnpassTextDecoder} for how the charset is
+ * detected.
+ *
+ * @author Branden
+ *
+ */
+final class MappedEnpassFileParser {
+
+	// Smallest chunk worth handing to another thread
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+	// Largest chunk aimed for, each is decoded into twice as many bytes of chars
+	static final long MAX_CHUNK_SIZE = 64L << 20;
+	// Chunks per thread, so uneven chunks still keep every thread busy
+	private static final int CHUNKS_PER_THREAD = 4;
+	// Window mapped while searching for a chunk boundary
+	private static final int SCAN_WINDOW_SIZE = 1 << 16;
+
+	private static final byte[] RECORD_START = "\nTitle : ".getBytes(StandardCharsets.US_ASCII);
+
+	private MappedEnpassFileParser() {
+	}
+
+	/**
+	 * @param path Path of the .txt file
+	 * @param pool Pool to parse chunks on
+	 * @return Entries in file order
+	 */
+	static ArrayList<EnpassEntry> parse(Path path, ForkJoinPool pool)
+			throws IOException, EnpassFileParserException {
+		return parse(path, pool, MAX_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param maxChunkSize Largest chunk aimed for
+	 */
+	static ArrayList<EnpassEntry> parse(Path path, ForkJoinPool pool, long maxChunkSize)
+			throws IOException, EnpassFileParserException {
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size == 0) {
+				return parseChunk(channel, 0, 0);
+			}
+
+			ByteBuffer head = ByteBuffer.allocate(3);
+			while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+				// Enough for any byte order mark
+			}
+			head.flip();
+			Charset charset = EnpassTextDecoder.detectCharset(head);
+			if (!charset.equals(StandardCharsets.UTF_8)) {
+				channel.position(head.position());
+				return readAll(new EnpassEntryReader(new EnpassTextDecoder(channel, charset)));
+			}
+
+			long chunkSize = Math.min(maxChunkSize,
+					Math.max(MIN_CHUNK_SIZE, size / ((long) pool.getParallelism() * CHUNKS_PER_THREAD)));
+			List<ChunkTask> tasks = new ArrayList<>();
+
+			// The first chunk must contain the first title or its fields would not be
+			// merged into the first entry, so only split after it
+			long start = head.position();
+			long firstTitle = findRecordStart(channel, start, size);
+			while (start < size) {
+				long end = findRecordStart(channel, Math.max(start + chunkSize, firstTitle + 1), size);
+				tasks.add(new ChunkTask(channel, start, end, end - start > 2 * maxChunkSize));
+				start = end;
+			}
+
+			if (tasks.size() == 1) {
+				return tasks.get(0).parse();
+			}
+
+			for (ChunkTask task : tasks) {
+				pool.execute(task);
+			}
+
+			ArrayList<EnpassEntry> items = new ArrayList<>();
+			for (ChunkTask task : tasks) {
+				try {
+					items.addAll(task.join());
+				} catch (RuntimeException e) {
+					rethrow(e);
+				}
+			}
+			return items;
+		}
+	}
+
+	/**
+	 * Finds the first line at or after a position that starts with "Title : ".
+	 *
+	 * @return Position of the start of the line, or size if there is none
+	 */
+	static long findRecordStart(FileChannel channel, long from, long size) throws IOException {
+		if (from == 0) {
+			if (matches(channel, 1, size)) {
+				return 0;
+			}
+			from = 1;
+		}
+
+		// Search for "\nTitle : " starting with the newline before the position
+		long position = from - 1;
+		while (position < size) {
+			long windowEnd = Math.min(size, position + SCAN_WINDOW_SIZE + RECORD_START.length);
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowEnd - position);
+			int limit = window.limit() - RECORD_START.length;
+			for (int i = 0; i <= limit; i++) {
+				if (window.get(i) == '\n' && regionMatches(window, i)) {
+					return position + i + 1;
+				}
+			}
+			if (windowEnd == size) {
+				break;
+			}
+			position = windowEnd - RECORD_START.length + 1;
+		}
+		return size;
+	}
+
+	private static boolean matches(FileChannel channel, int offset, long size) throws IOException {
+		long length = RECORD_START.length - offset;
+		if (size < length) {
+			return false;
+		}
+		MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		for (int i = 0; i < length; i++) {
+			if (head.get(i) != RECORD_START[i + offset]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean regionMatches(MappedByteBuffer window, int index) {
+		for (int i = 1; i < RECORD_START.length; i++) {
+			if (window.get(index + i) != RECORD_START[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static ArrayList<EnpassEntry> parseChunk(FileChannel channel, long start, long end)
+			throws IOException, EnpassFileParserException {
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		CharBuffer chars = EnpassTextDecoder.decode(mapped, StandardCharsets.UTF_8);
+		return readAll(new EnpassEntryReader(new CharBufferReader(chars)));
+	}
+
+	private static ArrayList<EnpassEntry> streamChunk(FileChannel channel, long start, long end)
+			throws IOException, EnpassFileParserException {
+		return readAll(new EnpassEntryReader(
+				new EnpassTextDecoder(new RangeChannel(channel, start, end), StandardCharsets.UTF_8)));
+	}
+
+	private static ArrayList<EnpassEntry> readAll(EnpassEntryReader reader)
+			throws IOException, EnpassFileParserException {
+		ArrayList<EnpassEntry> items = new ArrayList<>();
+		try (EnpassEntryReader entries = reader) {
+			EnpassEntry entry;
+			while ((entry = entries.readEntry()) != null) {
+				items.add(entry);
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * Rethrows the checked exception of a failed chunk. The pool may have wrapped it
+	 * again when it crossed threads, so the whole cause chain is searched.
+	 */
+	private static void rethrow(RuntimeException e) throws IOException, EnpassFileParserException {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof EnpassFileParserException) {
+				throw (EnpassFileParserException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+		}
+		throw e;
+	}
+
+	private static final class ChunkTask extends RecursiveTask<ArrayList<EnpassEntry>> {
+
+		private static final long serialVersionUID = -3550270611893655237L;
+
+		private final transient FileChannel channel;
+		private final long start;
+		private final long end;
+		private final boolean stream;
+
+		ChunkTask(FileChannel channel, long start, long end, boolean stream) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.stream = stream;
+		}
+
+		ArrayList<EnpassEntry> parse() throws IOException, EnpassFileParserException {
+			return stream ? streamChunk(channel, start, end) : parseChunk(channel, start, end);
+		}
+
+		@Override
+		protected ArrayList<EnpassEntry> compute() {
+			try {
+				return parse();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (EnpassFileParserException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Reads a chunk of the file with positional reads, leaving the file open when
+	 * closed, so chunks can be streamed concurrently.
+	 */
+	private static final class RangeChannel implements ReadableByteChannel {
+
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+		private boolean open = true;
+
+		RangeChannel(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			int limit = dst.limit();
+			dst.limit(dst.position() + (int) Math.min(dst.remaining(), end - position));
+			try {
+				int n = channel.read(dst, position);
+				if (n > 0) {
+					position += n;
+				}
+				return n;
+			} finally {
+				dst.limit(limit);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+
+	/**
+	 * Reads from a decoded chunk without copying it into a String first.
+	 */
+	private static final class CharBufferReader extends Reader {
+
+		private final CharBuffer chars;
+
+		CharBufferReader(CharBuffer chars) {
+			this.chars = chars;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (!chars.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, chars.remaining());
+			chars.get(cbuf, off, n);
+			return n;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
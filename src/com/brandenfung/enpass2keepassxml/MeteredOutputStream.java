@@ -0,0 +1,56 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a stream and the time spent writing them, as the write
+ * stage of {@link ConversionMetrics}.
+ *
+ * @author Branden
+ *
+ */
+final class MeteredOutputStream extends FilterOutputStream {
+
+	private final ConversionMetrics metrics;
+
+	MeteredOutputStream(OutputStream out, ConversionMetrics metrics) {
+		super(out);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		long start = System.nanoTime();
+		out.write(b);
+		metrics.addStageNanos(ConversionMetrics.Stage.WRITE, System.nanoTime() - start);
+		metrics.addXmlBytes(1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		out.write(b, off, len);
+		metrics.addStageNanos(ConversionMetrics.Stage.WRITE, System.nanoTime() - start);
+		metrics.addXmlBytes(len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		long start = System.nanoTime();
+		out.flush();
+		metrics.addStageNanos(ConversionMetrics.Stage.WRITE, System.nanoTime() - start);
+	}
+
+	@Override
+	public void close() throws IOException {
+		long start = System.nanoTime();
+		try {
+			out.close();
+		} finally {
+			metrics.addStageNanos(ConversionMetrics.Stage.WRITE, System.nanoTime() - start);
+		}
+	}
+
+}
@@ -0,0 +1,279 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output compressed on several threads, like pigz. Input is cut into fixed size
+ * blocks and each block is deflated on the executor, primed with the last 32 KB of the
+ * block before it so the ratio is close to a serial compressor. Every block but the
+ * last ends on a byte boundary with a sync flush, so the compressed blocks written in
+ * order form one ordinary deflate stream in one gzip member that any gzip reader can
+ * decompress.
+ *
+ * The CRC-32 of the trailer is computed on the writing thread. At most a fixed number
+ * of blocks are compressed at once. When that limit is reached writes wait for the
+ * oldest block, which keeps memory bounded.
+ *
+ * This class is not thread safe, data must be written from a single thread.
+ *
+ * @author Branden
+ *
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	private static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final OutputStream out;
+	private final Executor executor;
+	private final int level;
+	private final int blockSize;
+	private final int maxBlocksInFlight;
+	private final ArrayDeque<Block> inFlight = new ArrayDeque<>();
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+	private final CRC32 crc = new CRC32();
+	private long size;
+
+	private byte[] block;
+	private int count;
+	private byte[] previousBlock;
+	private volatile boolean closed;
+
+	/**
+	 * Compresses at the default level on the common fork-join pool with two blocks in
+	 * flight per thread.
+	 *
+	 * @param out Destination of the gzip stream, closed when this stream is closed
+	 * @throws IOException If the gzip header could not be written
+	 */
+	public ParallelGzipOutputStream(OutputStream out) throws IOException {
+		this(out, ForkJoinPool.commonPool(), Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE,
+				2 * ForkJoinPool.getCommonPoolParallelism());
+	}
+
+	/**
+	 * @param out Destination of the gzip stream, closed when this stream is closed
+	 * @param executor Executor to compress blocks on
+	 * @param level Deflate compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+	 * @param blockSize Number of bytes compressed together in one task
+	 * @param maxBlocksInFlight Number of blocks that can be queued or compressing at once
+	 * @throws IOException If the gzip header could not be written
+	 */
+	public ParallelGzipOutputStream(OutputStream out, Executor executor, int level, int blockSize,
+			int maxBlocksInFlight) throws IOException {
+		if (blockSize < 1 || maxBlocksInFlight < 1) {
+			throw new IllegalArgumentException("Block size and blocks in flight must be positive");
+		}
+		this.out = out;
+		this.executor = executor;
+		this.level = level;
+		this.blockSize = blockSize;
+		this.maxBlocksInFlight = maxBlocksInFlight;
+		this.block = new byte[blockSize];
+		out.write(HEADER);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (count == blockSize) {
+			submitBlock(false);
+		}
+		block[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		while (len > 0) {
+			if (count == blockSize) {
+				submitBlock(false);
+			}
+			int n = Math.min(len, blockSize - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void submitBlock(boolean last) throws IOException {
+		while (inFlight.size() >= maxBlocksInFlight) {
+			writeOldestBlock();
+		}
+
+		crc.update(block, 0, count);
+		size += count;
+
+		// Blocks are not reused, so the previous one can be read as the dictionary
+		final byte[] input = block;
+		final int length = count;
+		final byte[] dictionary = previousBlock;
+		Block task = new Block(input, () -> deflate(input, length, dictionary, last));
+		inFlight.add(task);
+		executor.execute(task);
+
+		previousBlock = input;
+		block = new byte[blockSize];
+		count = 0;
+	}
+
+	private byte[] deflate(byte[] input, int length, byte[] dictionary, boolean last) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+		}
+		try {
+			if (dictionary != null) {
+				int dictionaryLength = Math.min(DICTIONARY_SIZE, dictionary.length);
+				deflater.setDictionary(dictionary, dictionary.length - dictionaryLength, dictionaryLength);
+			}
+			deflater.setInput(input, 0, length);
+			if (last) {
+				deflater.finish();
+			}
+
+			byte[] compressed = new byte[length + (length >> 3) + 64];
+			int compressedLength = 0;
+			while (true) {
+				if (compressedLength == compressed.length) {
+					compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength,
+						last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				if (last ? deflater.finished() : compressedLength < compressed.length) {
+					break;
+				}
+			}
+			return Arrays.copyOf(compressed, compressedLength);
+		} finally {
+			deflater.reset();
+			deflaters.add(deflater);
+			// A block still compressing when the stream closed must not leave its deflater
+			// pooled after close ended the others
+			if (closed && deflaters.remove(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	private void writeOldestBlock() throws IOException {
+		byte[] compressed;
+		try {
+			compressed = inFlight.poll().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for blocks to be compressed");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not compress block", e.getCause());
+		}
+		out.write(compressed);
+	}
+
+	/**
+	 * Blocks are only compressed once full, flushing writes the blocks that are done
+	 * compressing by then.
+	 */
+	@Override
+	public void flush() throws IOException {
+		while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+			writeOldestBlock();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Compresses the last block, writes the gzip trailer and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			submitBlock(true);
+			while (!inFlight.isEmpty()) {
+				writeOldestBlock();
+			}
+			byte[] trailer = new byte[8];
+			putIntLE(trailer, 0, (int) crc.getValue());
+			putIntLE(trailer, 4, (int) size);
+			out.write(trailer);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Stops without the last block and the trailer, eg. after a failed conversion, and
+	 * closes the underlying stream. Gzip readers reject the truncated stream instead of
+	 * reading it as complete.
+	 */
+	public void abort() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		release();
+	}
+
+	/**
+	 * Cancels the blocks in flight, zeroes the plain text still held, ends the pooled
+	 * deflaters and closes the underlying stream.
+	 */
+	private void release() throws IOException {
+		for (Block task : inFlight) {
+			task.cancel(false);
+			// A block still compressing only produces output that is never written
+			Arrays.fill(task.input, (byte) 0);
+		}
+		inFlight.clear();
+		Arrays.fill(block, (byte) 0);
+		if (previousBlock != null) {
+			Arrays.fill(previousBlock, (byte) 0);
+		}
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {
+			deflater.end();
+		}
+		out.close();
+	}
+
+	/**
+	 * Block being compressed, kept so its plain text can be zeroed if it is never written.
+	 */
+	private static final class Block extends FutureTask<byte[]> {
+		final byte[] input;
+
+		Block(byte[] input, Callable<byte[]> deflate) {
+			super(deflate);
+			this.input = input;
+		}
+	}
+
+	private static void putIntLE(byte[] b, int off, int value) {
+		for (int i = 0; i < 4; i++) {
+			b[off + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+}
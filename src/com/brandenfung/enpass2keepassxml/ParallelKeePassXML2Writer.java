@@ -0,0 +1,280 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * Writes a KeePass 2.x XML file like {@link KeePassXML2StreamWriter}, but encodes
+ * entries on worker threads. Entries are collected into batches, each batch is encoded
+ * into a byte fragment on the executor and fragments are written to the output strictly
+ * in the order their entries were given. Entry UUIDs are generated on the calling thread
+ * in that same order, so the output is the same as a serial write, also with generators
+ * that number repeated entries such as {@link ContentUUIDGenerator}.
+ *
+ * At most a fixed number of batches are in flight at once. When that limit is reached
+ * {@link #writeEntry(EnpassEntry)} blocks on the oldest batch, which keeps memory bounded
+ * when the producer is faster than the workers.
+ *
+ * If a batch fails, the closing tags are never written, so the output is not mistaken
+ * for a complete file, and the secrets of the entries that were not written are wiped.
+ *
+ * This class is not thread safe, entries must be written from a single thread.
+ *
+ * @author Branden
+ *
+ */
+public class ParallelKeePassXML2Writer implements Closeable {
+
+	private static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final OutputStream output;
+	private final KeePassXML2StreamWriter writer;
+	private final Executor executor;
+	private final int batchSize;
+	private final int maxBatchesInFlight;
+	private final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+
+	private ArrayList<EnpassEntry> batch;
+	private ArrayList<String> batchUUIDs;
+	private boolean failed;
+	private boolean closed;
+
+	/**
+	 * Encodes on the common fork-join pool with two batches in flight per thread.
+	 *
+	 * @param outputStream Destination of the xml, closed when this writer is closed
+	 * @throws IOException
+	 */
+	public ParallelKeePassXML2Writer(OutputStream outputStream) throws IOException {
+		this(outputStream, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE,
+				2 * ForkJoinPool.getCommonPoolParallelism());
+	}
+
+	/**
+	 * @param outputStream Destination of the xml, closed when this writer is closed
+	 * @param executor Executor to encode batches on
+	 * @param batchSize Number of entries encoded together in one task
+	 * @param maxBatchesInFlight Number of batches that can be queued or encoding at once
+	 * @throws IOException
+	 */
+	public ParallelKeePassXML2Writer(OutputStream outputStream, Executor executor,
+			int batchSize, int maxBatchesInFlight) throws IOException {
+		this(outputStream, RandomUUIDGenerator.INSTANCE, executor, batchSize, maxBatchesInFlight);
+	}
+
+	/**
+	 * @param outputStream Destination of the xml, closed when this writer is closed
+	 * @param uuids Generator of the group and entry UUIDs, called from the writing thread
+	 * @param executor Executor to encode batches on
+	 * @param batchSize Number of entries encoded together in one task
+	 * @param maxBatchesInFlight Number of batches that can be queued or encoding at once
+	 * @throws IOException
+	 */
+	public ParallelKeePassXML2Writer(OutputStream outputStream, UUIDGenerator uuids, Executor executor,
+			int batchSize, int maxBatchesInFlight) throws IOException {
+		this(outputStream, uuids, XmlEscaper.DEFAULT, executor, batchSize, maxBatchesInFlight);
+	}
+
+	/**
+	 * @param outputStream Destination of the xml, closed when this writer is closed
+	 * @param uuids Generator of the group and entry UUIDs, called from the writing thread
+	 * @param escaper Escaper of values, decides what happens to characters XML 1.0
+	 * 			does not allow
+	 * @param executor Executor to encode batches on
+	 * @param batchSize Number of entries encoded together in one task
+	 * @param maxBatchesInFlight Number of batches that can be queued or encoding at once
+	 * @throws IOException
+	 */
+	public ParallelKeePassXML2Writer(OutputStream outputStream, UUIDGenerator uuids, XmlEscaper escaper,
+			Executor executor, int batchSize, int maxBatchesInFlight) throws IOException {
+		if (batchSize < 1 || maxBatchesInFlight < 1) {
+			throw new IllegalArgumentException("Batch size and batches in flight must be positive");
+		}
+		this.output = outputStream;
+		this.writer = new KeePassXML2StreamWriter(outputStream, uuids, escaper);
+		this.executor = executor;
+		this.batchSize = batchSize;
+		this.maxBatchesInFlight = maxBatchesInFlight;
+		this.batch = new ArrayList<>(batchSize);
+		this.batchUUIDs = new ArrayList<>(batchSize);
+	}
+
+	/**
+	 * Queues an entry to be encoded. The entry must not be modified afterwards.
+	 *
+	 * @param item {@link EnpassEntry} with fields to copy to entry element
+	 * @throws IOException If writing an earlier batch failed
+	 */
+	public void writeEntry(EnpassEntry item) throws IOException {
+		String uuid;
+		try {
+			uuid = writer.uuids().entryUUID(item);
+		} catch (RuntimeException e) {
+			failed = true;
+			throw new IOException("Could not encode entries", e);
+		}
+		batch.add(item);
+		batchUUIDs.add(uuid);
+		if (batch.size() == batchSize) {
+			submitBatch();
+		}
+	}
+
+	private void submitBatch() throws IOException {
+		while (inFlight.size() >= maxBatchesInFlight) {
+			writeOldestBatch();
+		}
+
+		final ArrayList<EnpassEntry> entries = batch;
+		final ArrayList<String> uuids = batchUUIDs;
+		batch = new ArrayList<>(batchSize);
+		batchUUIDs = new ArrayList<>(batchSize);
+
+		Batch task = new Batch(entries, uuids, writer.escaper());
+		inFlight.add(task);
+		executor.execute(task);
+	}
+
+	private void writeOldestBatch() throws IOException {
+		try {
+			Fragment fragment = inFlight.peek().get();
+			try {
+				writer.writeFragment(fragment.bytes(), fragment.size());
+			} finally {
+				fragment.wipe();
+			}
+			inFlight.poll();
+		} catch (InterruptedException e) {
+			failed = true;
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for entries to be encoded");
+		} catch (ExecutionException e) {
+			failed = true;
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not encode entries", e.getCause());
+		} catch (IOException | RuntimeException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	private static Fragment encode(ArrayList<EnpassEntry> entries, ArrayList<String> uuids, XmlEscaper escaper) 
+			throws IOException {
+		Fragment fragment = new Fragment();
+		Utf8XmlOutput out = new Utf8XmlOutput(fragment, 8192, escaper);
+		for (int i = 0; i < entries.size(); i++) {
+			KeePassXML2StreamWriter.writeEntry(out, entries.get(i), uuids.get(i));
+		}
+		out.flush();
+		out.discard(); // zeroes the buffer, which may still hold secrets
+		return fragment;
+	}
+
+	/**
+	 * Writes all queued entries and the closing tags, then closes the underlying stream.
+	 * The closing tags are left out if any batch failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (!failed) {
+				if (!batch.isEmpty()) {
+					submitBatch();
+				}
+				while (!inFlight.isEmpty()) {
+					writeOldestBatch();
+				}
+			}
+		} finally {
+			for (Batch task : inFlight) {
+				task.cancel(false);
+			}
+			if (failed) {
+				wipeUnwritten();
+				writer.abort();
+				Enpass2KeePass.abortOutput(output);
+			} else {
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * Wipes the secrets of the entries that were queued but not written and zeroes the
+	 * fragments that were encoded but not written. Batches still encoding wipe their
+	 * entries as they go.
+	 */
+	private void wipeUnwritten() {
+		for (EnpassEntry item : batch) {
+			item.wipeSecrets();
+		}
+		batch.clear();
+		for (Batch task : inFlight) {
+			for (EnpassEntry item : task.entries) {
+				item.wipeSecrets();
+			}
+			if (task.isDone() && !task.isCancelled()) {
+				try {
+					task.get().wipe();
+				} catch (InterruptedException | ExecutionException e) {
+					// Nothing was encoded
+				}
+			}
+		}
+		inFlight.clear();
+	}
+
+	/**
+	 * Entries encoded together, kept so their secrets can be wiped if they are never
+	 * written.
+	 */
+	private static final class Batch extends FutureTask<Fragment> {
+		final ArrayList<EnpassEntry> entries;
+
+		Batch(ArrayList<EnpassEntry> entries, ArrayList<String> uuids, XmlEscaper escaper) {
+			super(() -> encode(entries, uuids, escaper));
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * Encoded batch, exposes the buffer so it can be written without another copy.
+	 */
+	private static final class Fragment extends ByteArrayOutputStream {
+
+		Fragment() {
+			super(8192);
+		}
+
+		byte[] bytes() {
+			return buf;
+		}
+
+		/**
+		 * Zeroes the encoded entries, which hold their secrets as plain text.
+		 */
+		void wipe() {
+			Arrays.fill(buf, (byte) 0);
+			count = 0;
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * Converts with reading, parsing and writing overlapped on three threads:
+ *
+ * 	- a reader thread fills byte buffers from the input channel
+ * 	- a parser thread decodes the buffers and parses them into batches of entries
+ * 	- the calling thread writes the batches to a {@link KeePassEntryWriter}
+ *
+ * Stages are connected by {@link SpscRingBuffer}s. Byte buffers go back to the reader
+ * through a second ring once parsed, so the reader can only get a fixed number of
+ * buffers ahead, and the parser a fixed number of batches. Memory use is capped by
+ * those numbers however large the input is.
+ *
+ * The first stage to fail aborts the rings, which stops the other stages, and its
+ * exception is thrown by {@link #convert}. Stage times are not recorded into the
+ * metrics, since the stages overlap.
+ *
+ * @author Branden
+ *
+ */
+final class PipelinedConverter {
+
+	/** 8 buffers of 256 KB and 16 batches of 256 entries */
+	static final PipelinedConverter DEFAULT = new PipelinedConverter(1 << 18, 8, 256, 16);
+
+	private final int bufferSize;
+	private final int buffers;
+	private final int batchSize;
+	private final int batches;
+
+	/**
+	 * @param bufferSize Size of each byte buffer read from the input
+	 * @param buffers Number of byte buffers, a power of two
+	 * @param batchSize Number of entries handed to the writer at once
+	 * @param batches Number of batches the parser can get ahead of the writer, a power
+	 * 			of two
+	 */
+	PipelinedConverter(int bufferSize, int buffers, int batchSize, int batches) {
+		if (bufferSize < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Buffer and batch sizes must be positive");
+		}
+		this.bufferSize = bufferSize;
+		this.buffers = buffers;
+		this.batchSize = batchSize;
+		this.batches = batches;
+	}
+
+	/**
+	 * Converts every entry of the input and waits for all stages to finish.
+	 *
+	 * @param in Exported Enpass text, read to the end but not closed
+	 * @param writer Writer of the entries, not closed
+	 * @param metrics Metrics to record each written entry into, or null
+	 * @param protectSecrets Whether to hold passwords and secret custom fields off heap
+	 * @throws IOException If the input could not be read or the output written
+	 * @throws EnpassFileParserException If the input could not be parsed
+	 */
+	void convert(ReadableByteChannel in, KeePassEntryWriter writer, ConversionMetrics metrics, 
+			boolean protectSecrets) throws IOException, EnpassFileParserException {
+		Run run = new Run(in, protectSecrets);
+		run.start();
+		try {
+			EnpassEntry[] batch;
+			while ((batch = run.batches.take()) != null) {
+				for (EnpassEntry entry : batch) {
+					writer.writeEntry(entry);
+					if (metrics != null) {
+						metrics.recordEntry(entry);
+					}
+				}
+			}
+		} catch (Throwable t) {
+			run.fail(t);
+		}
+		run.join();
+		run.checkFailure();
+	}
+
+	/**
+	 * Rings and threads of one conversion.
+	 */
+	private final class Run {
+
+		private final ReadableByteChannel in;
+		private final boolean protectSecrets;
+		private final SpscRingBuffer<ByteBuffer> filled = new SpscRingBuffer<>(buffers);
+		private final SpscRingBuffer<ByteBuffer> free = new SpscRingBuffer<>(buffers);
+		private final SpscRingBuffer<EnpassEntry[]> batches = new SpscRingBuffer<>(PipelinedConverter.this.batches);
+		private final AtomicReference<Throwable> failure = new AtomicReference<>();
+		private final Thread reader;
+		private final Thread parser;
+
+		Run(ReadableByteChannel in, boolean protectSecrets) {
+			this.in = in;
+			this.protectSecrets = protectSecrets;
+			// Handed to the reader before it starts, the parser is the only producer after
+			for (int i = 0; i < buffers; i++) {
+				free.offer(ByteBuffer.allocateDirect(bufferSize));
+			}
+			this.reader = new Thread(this::read, "enpass-pipeline-reader");
+			this.parser = new Thread(this::parse, "enpass-pipeline-parser");
+			reader.setDaemon(true);
+			parser.setDaemon(true);
+		}
+
+		void start() {
+			reader.start();
+			parser.start();
+		}
+
+		/**
+		 * Fills free buffers from the input until the end of it.
+		 */
+		private void read() {
+			try {
+				int n = 0;
+				while (n >= 0) {
+					ByteBuffer buffer = free.take();
+					buffer.clear();
+					while (buffer.hasRemaining() && (n = in.read(buffer)) >= 0) {
+						// Fill the whole buffer, so the parser sees few small ones
+					}
+					buffer.flip();
+					if (buffer.hasRemaining()) {
+						filled.put(buffer);
+					}
+				}
+				filled.close();
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
+
+		/**
+		 * Parses the filled buffers into batches of entries.
+		 */
+		private void parse() {
+			try {
+				EnpassEntryReader entries = new EnpassEntryReader(
+						new EnpassTextDecoder(new BufferChannel(filled, free), null));
+				entries.setProtectSecrets(protectSecrets);
+				EnpassEntry[] batch = new EnpassEntry[batchSize];
+				int count = 0;
+				EnpassEntry entry;
+				while ((entry = entries.readEntry()) != null) {
+					batch[count++] = entry;
+					if (count == batchSize) {
+						batches.put(batch);
+						batch = new EnpassEntry[batchSize];
+						count = 0;
+					}
+				}
+				if (count > 0) {
+					batches.put(Arrays.copyOf(batch, count));
+				}
+				batches.close();
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
+
+		/**
+		 * Keeps the first failure and stops every stage.
+		 */
+		void fail(Throwable t) {
+			if (failure.compareAndSet(null, t)) {
+				filled.abort();
+				free.abort();
+				batches.abort();
+			}
+		}
+
+		void join() throws InterruptedIOException {
+			try {
+				reader.join();
+				parser.join();
+			} catch (InterruptedException e) {
+				fail(e);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while converting");
+			}
+		}
+
+		void checkFailure() throws IOException, EnpassFileParserException {
+			Throwable t = failure.get();
+			if (t == null) {
+				return;
+			} else if (t instanceof IOException) {
+				throw (IOException) t;
+			} else if (t instanceof EnpassFileParserException) {
+				throw (EnpassFileParserException) t;
+			} else if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			}
+			throw new IOException("Could not convert", t);
+		}
+	}
+
+	/**
+	 * Reads the filled buffers in order as one channel, giving each back to the
+	 * reader once it is used up.
+	 */
+	private static final class BufferChannel implements ReadableByteChannel {
+
+		private final SpscRingBuffer<ByteBuffer> filled;
+		private final SpscRingBuffer<ByteBuffer> free;
+		private ByteBuffer current;
+		private boolean open = true;
+
+		BufferChannel(SpscRingBuffer<ByteBuffer> filled, SpscRingBuffer<ByteBuffer> free) {
+			this.filled = filled;
+			this.free = free;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			while (current == null || !current.hasRemaining()) {
+				if (current != null) {
+					free.put(current);
+				}
+				current = filled.take();
+				if (current == null) {
+					return -1;
+				}
+			}
+			int n = Math.min(dst.remaining(), current.remaining());
+			int limit = current.limit();
+			current.limit(current.position() + n);
+			dst.put(current);
+			current.limit(limit);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+
+}
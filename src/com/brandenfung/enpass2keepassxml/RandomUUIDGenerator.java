@@ -0,0 +1,73 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
+
+/**
+ * Random (version 4) UUIDs, like {@link java.util.UUID#randomUUID()}, generated in
+ * batches. Each thread draws the bytes of many UUIDs from the shared SecureRandom at
+ * once and hands them out from a thread local buffer, so the SecureRandom is locked
+ * once per batch rather than once per entry and parallel writers barely contend on it.
+ *
+ * @author Branden
+ *
+ */
+public final class RandomUUIDGenerator implements UUIDGenerator {
+
+	/** Shared instance, safe to use from any thread */
+	public static final RandomUUIDGenerator INSTANCE = new RandomUUIDGenerator();
+
+	private static final int UUIDS_PER_BATCH = 256;
+	private static final Base64.Encoder ENCODER = Base64.getEncoder();
+
+	private final SecureRandom random = new SecureRandom();
+	private final ThreadLocal<Batch> batches = ThreadLocal.withInitial(Batch::new);
+
+	private RandomUUIDGenerator() {
+	}
+
+	/**
+	 * @return Base64 encoding of a new random UUID
+	 */
+	public String next() {
+		return batches.get().next(random);
+	}
+
+	@Override
+	public String groupUUID(String groupName) {
+		return next();
+	}
+
+	@Override
+	public String entryUUID(EnpassEntry entry) {
+		return next();
+	}
+
+	@Override
+	public String entryUUID(EnpassEntryStore.View entry) {
+		return next();
+	}
+
+	private static final class Batch {
+		private final byte[] bytes = new byte[16 * UUIDS_PER_BATCH];
+		private final byte[] uuid = new byte[16];
+		private int position = bytes.length;
+
+		String next(SecureRandom random) {
+			if (position == bytes.length) {
+				random.nextBytes(bytes);
+				position = 0;
+			}
+			System.arraycopy(bytes, position, uuid, 0, 16);
+			position += 16;
+
+			uuid[6] = (byte) ((uuid[6] & 0x0f) | 0x40); // version 4
+			uuid[8] = (byte) ((uuid[8] & 0x3f) | 0x80); // IETF variant
+			return ENCODER.encodeToString(uuid);
+		}
+	}
+
+}
@@ -0,0 +1,443 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+import com.brandenfung.enpass2keepassxml.model.CustomFieldMap;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.FieldKeys;
+
+/**
+ * Writes entries sorted by a {@link SortKey}, with custom fields in order of key, so
+ * converting two exports of the same vault gives output that diffs cleanly.
+ *
+ * Entries are collected until their estimated size reaches the memory budget, then
+ * sorted and spilled to a temporary file as a run. Closing the writer merges the runs,
+ * and the entries still in memory, into the wrapped writer with a k-way merge, so
+ * exports larger than the heap can be sorted. Exports that fit the budget are never
+ * written to disk. Runs hold passwords in plain text, so they are only readable by
+ * the owner where the file system allows it, and are deleted as soon as they are
+ * merged. For the same reason entries holding secrets off heap, see
+ * {@link EnpassEntry#hasSecrets()}, are refused rather than spilled, and
+ * {@link ConversionOptions} do not sort KDBX databases.
+ *
+ * Sorting is stable, entries that compare equal stay in the order they were written.
+ *
+ * @author Branden
+ *
+ */
+public final class SortedEntryWriter implements KeePassEntryWriter {
+
+	/**
+	 * Field entries are sorted by, ignoring case. Ties are broken by the title,
+	 * username, url, password and notes.
+	 */
+	public enum SortKey {
+		TITLE, URL, USERNAME
+	}
+
+	// At most this many runs are open at once while merging
+	private static final int MAX_MERGE_WIDTH = 64;
+	// Rough heap size of an entry and of a String beyond their chars
+	private static final long ENTRY_OVERHEAD = 96;
+	private static final long STRING_OVERHEAD = 48;
+
+	private final KeePassEntryWriter out;
+	private final Comparator<EnpassEntry> order;
+	private final long memoryBudget;
+	private final Path tempDir;
+
+	private final ArrayList<EnpassEntry> buffered = new ArrayList<>();
+	private long bufferedBytes;
+	private final ArrayList<Path> runs = new ArrayList<>();
+	private int spilledRuns;
+	private boolean closed;
+
+	/**
+	 * @param out Writer of the sorted entries, closed when this writer is closed
+	 * @param key Field to sort by
+	 * @param memoryBudget Estimated heap size of the entries held before a run is spilled
+	 * @param tempDir Directory of the runs, or null for the default temporary directory
+	 */
+	public SortedEntryWriter(KeePassEntryWriter out, SortKey key, long memoryBudget, Path tempDir) {
+		if (memoryBudget < 1) {
+			throw new IllegalArgumentException("Memory budget must be positive");
+		}
+		this.out = out;
+		this.order = comparator(key);
+		this.memoryBudget = memoryBudget;
+		this.tempDir = tempDir;
+	}
+
+	/**
+	 * @return Order of entries sorted by the key, ignoring case first
+	 */
+	static Comparator<EnpassEntry> comparator(SortKey key) {
+		Comparator<EnpassEntry> first;
+		switch (key) {
+		case URL:
+			first = fieldOrder(e -> e.url);
+			break;
+		case USERNAME:
+			first = fieldOrder(e -> e.username);
+			break;
+		default:
+			first = fieldOrder(e -> e.title);
+			break;
+		}
+		return first.thenComparing(fieldOrder(e -> e.title))
+				.thenComparing(fieldOrder(e -> e.username))
+				.thenComparing(fieldOrder(e -> e.url))
+				.thenComparing(fieldOrder(e -> e.password))
+				.thenComparing(fieldOrder(e -> e.note));
+	}
+
+	private static Comparator<EnpassEntry> fieldOrder(Function<EnpassEntry, String> field) {
+		return Comparator.comparing(field, String.CASE_INSENSITIVE_ORDER).thenComparing(field);
+	}
+
+	/**
+	 * Holds the entry until the writer is closed, spilling a run if the budget is reached.
+	 *
+	 * @throws IllegalArgumentException If the entry holds secrets off heap
+	 */
+	@Override
+	public void writeEntry(EnpassEntry item) throws IOException {
+		if (closed) {
+			throw new IOException("Writer closed");
+		}
+		if (item.hasSecrets()) {
+			throw new IllegalArgumentException("Entries with secrets held off heap can not be sorted");
+		}
+		EnpassEntry entry = withSortedFields(item);
+		buffered.add(entry);
+		bufferedBytes += estimateSize(entry);
+		if (bufferedBytes >= memoryBudget) {
+			spill();
+		}
+	}
+
+	/**
+	 * @return Number of runs spilled to disk so far
+	 */
+	public int spilledRuns() {
+		return spilledRuns;
+	}
+
+	/**
+	 * @return The entry with its custom fields in order of key, the same instance if
+	 * 			they already are
+	 */
+	static EnpassEntry withSortedFields(EnpassEntry entry) {
+		CustomFieldMap fields = entry.customFieldMap();
+		boolean sorted = true;
+		for (int i = 1; i < fields.size() && sorted; i++) {
+			sorted = fields.key(i - 1).compareTo(fields.key(i)) <= 0;
+		}
+		if (sorted) {
+			return entry;
+		}
+
+		EnpassEntry.Builder builder = copyFields(entry);
+		for (int i : fields.keyOrder()) {
+			builder.addCustomField(fields.key(i), fields.value(i));
+		}
+		return builder.build();
+	}
+
+	private static EnpassEntry.Builder copyFields(EnpassEntry entry) {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle(entry.title);
+		builder.setUsername(entry.username);
+		builder.setPassword(entry.password);
+		builder.setUrl(entry.url);
+		builder.setNote(entry.note);
+		return builder;
+	}
+
+	private static long estimateSize(EnpassEntry entry) {
+		long size = ENTRY_OVERHEAD + 5 * STRING_OVERHEAD + 2L * (entry.title.length() +
+				entry.username.length() + entry.password.length() + entry.url.length() + entry.note.length());
+		CustomFieldMap fields = entry.customFieldMap();
+		for (int i = 0; i < fields.size(); i++) {
+			size += 16 + STRING_OVERHEAD + 2L * fields.value(i).length();
+		}
+		return size;
+	}
+
+	/**
+	 * Sorts the buffered entries and writes them to a new run.
+	 */
+	private void spill() throws IOException {
+		buffered.sort(order);
+		Path run = newRunFile();
+		runs.add(run);
+		try (RunWriter writer = new RunWriter(run)) {
+			for (EnpassEntry entry : buffered) {
+				writer.write(entry);
+			}
+		}
+		buffered.clear();
+		bufferedBytes = 0;
+		spilledRuns++;
+	}
+
+	private Path newRunFile() throws IOException {
+		return tempDir != null ? Files.createTempFile(tempDir, "enpass-sort", ".run")
+				: Files.createTempFile("enpass-sort", ".run");
+	}
+
+	/**
+	 * Merges the runs and buffered entries into the wrapped writer and closes it.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try (KeePassEntryWriter writer = out) {
+			buffered.sort(order);
+			if (runs.isEmpty()) {
+				for (EnpassEntry entry : buffered) {
+					writer.writeEntry(entry);
+				}
+				return;
+			}
+
+			// Merge the oldest runs first so equal entries keep their order
+			while (runs.size() + 1 > MAX_MERGE_WIDTH) {
+				List<Path> oldest = new ArrayList<>(runs.subList(0, MAX_MERGE_WIDTH));
+				runs.subList(0, MAX_MERGE_WIDTH).clear();
+				Path merged = newRunFile();
+				runs.add(0, merged);
+				try (RunWriter run = new RunWriter(merged)) {
+					merge(oldest, null, run::write);
+				}
+			}
+			merge(new ArrayList<>(runs), buffered, writer::writeEntry);
+		} finally {
+			buffered.clear();
+			deleteRuns();
+		}
+	}
+
+	/**
+	 * Deletes the runs and aborts the wrapped writer without writing the entries.
+	 */
+	@Override
+	public void abort() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		buffered.clear();
+		try {
+			deleteRuns();
+		} finally {
+			out.abort();
+		}
+	}
+
+	private interface Sink {
+		void write(EnpassEntry entry) throws IOException;
+	}
+
+	/**
+	 * K-way merges the runs, oldest first, and then the buffered entries, deleting
+	 * each run once it is read.
+	 */
+	private void merge(List<Path> paths, List<EnpassEntry> last, Sink sink) throws IOException {
+		PriorityQueue<Source> heads = new PriorityQueue<>((a, b) -> {
+			int c = order.compare(a.head, b.head);
+			return c != 0 ? c : Integer.compare(a.index, b.index);
+		});
+		List<Source> sources = new ArrayList<>();
+		try {
+			for (int i = 0; i < paths.size(); i++) {
+				sources.add(new RunSource(paths.get(i), i));
+			}
+			if (last != null) {
+				sources.add(new ListSource(last, paths.size()));
+			}
+			for (Source source : sources) {
+				if (source.advance()) {
+					heads.add(source);
+				}
+			}
+
+			Source source;
+			while ((source = heads.poll()) != null) {
+				sink.write(source.head);
+				if (source.advance()) {
+					heads.add(source);
+				}
+			}
+		} finally {
+			for (Source s : sources) {
+				s.close();
+			}
+			for (Path path : paths) {
+				Files.deleteIfExists(path);
+				runs.remove(path);
+			}
+		}
+	}
+
+	private void deleteRuns() throws IOException {
+		IOException failure = null;
+		for (Path run : runs) {
+			try {
+				Files.deleteIfExists(run);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		runs.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Sorted entries being merged, with the next one in head.
+	 */
+	private abstract static class Source {
+		final int index;
+		EnpassEntry head;
+
+		Source(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * @return False once every entry was read
+		 */
+		abstract boolean advance() throws IOException;
+
+		void close() throws IOException {
+		}
+	}
+
+	private static final class ListSource extends Source {
+		private final List<EnpassEntry> entries;
+		private int next;
+
+		ListSource(List<EnpassEntry> entries, int index) {
+			super(index);
+			this.entries = entries;
+		}
+
+		@Override
+		boolean advance() {
+			head = next < entries.size() ? entries.get(next++) : null;
+			return head != null;
+		}
+	}
+
+	/**
+	 * Reads a run written by {@link RunWriter}.
+	 */
+	private static final class RunSource extends Source {
+		private final DataInputStream in;
+		private final EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		private byte[] bytes = new byte[512];
+		private char[] chars = new char[256];
+
+		RunSource(Path run, int index) throws IOException {
+			super(index);
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			if (!in.readBoolean()) {
+				head = null;
+				return false;
+			}
+			builder.setTitle(readString());
+			builder.setUsername(readString());
+			builder.setPassword(readString());
+			builder.setUrl(readString());
+			builder.setNote(readString());
+			int fields = in.readInt();
+			for (int i = 0; i < fields; i++) {
+				String key = readString();
+				builder.addCustomField(key, readString());
+			}
+			head = builder.build();
+			return true;
+		}
+
+		private String readString() throws IOException {
+			int length = in.readInt();
+			if (length > chars.length) {
+				chars = new char[Math.max(length, chars.length * 2)];
+				bytes = new byte[2 * chars.length];
+			}
+			in.readFully(bytes, 0, 2 * length);
+			for (int i = 0; i < length; i++) {
+				chars[i] = (char) ((bytes[2 * i] & 0xff) << 8 | bytes[2 * i + 1] & 0xff);
+			}
+			return new String(chars, 0, length);
+		}
+
+		@Override
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes entries to a run, each field as its length and UTF-16 chars, so values with
+	 * unpaired surrogates read back exactly as they were held in memory. Custom field
+	 * keys are written as text, since {@link FieldKeys} ids only last for the JVM.
+	 */
+	private static final class RunWriter implements AutoCloseable {
+		private final DataOutputStream out;
+
+		RunWriter(Path run) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16));
+		}
+
+		void write(EnpassEntry entry) throws IOException {
+			out.writeBoolean(true);
+			writeString(entry.title);
+			writeString(entry.username);
+			writeString(entry.password);
+			writeString(entry.url);
+			writeString(entry.note);
+			CustomFieldMap fields = entry.customFieldMap();
+			out.writeInt(fields.size());
+			for (int i = 0; i < fields.size(); i++) {
+				writeString(fields.key(i));
+				writeString(fields.value(i));
+			}
+		}
+
+		private void writeString(String s) throws IOException {
+			out.writeInt(s.length());
+			out.writeChars(s);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				out.writeBoolean(false);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+}
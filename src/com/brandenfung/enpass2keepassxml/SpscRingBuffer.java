@@ -0,0 +1,209 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue between exactly one producer thread and one consumer thread. Items
+ * are kept in a power of two sized array indexed by two ever increasing counters,
+ * head written only by the consumer and tail only by the producer, so neither side
+ * takes a lock. Each side caches the other's counter and only reads it again when
+ * the buffer looks full or empty.
+ *
+ * A full or empty buffer makes the waiting side spin briefly when there is more than
+ * one processor, and then park until the other side moves. The producer ends the
+ * stream with {@link #close()}. Either side, or anyone else, can {@link #abort()} the
+ * buffer, after which waits throw {@link CancellationException}.
+ *
+ * Meant for coarse items such as buffers or batches of entries, not single bytes.
+ *
+ * @author Branden
+ *
+ */
+final class SpscRingBuffer<E> {
+
+	private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0;
+
+	private final Object[] items;
+	private final int mask;
+
+	// Index of the next item to take, written only by the consumer
+	private volatile long head;
+	// Index of the next item to put, written only by the producer
+	private volatile long tail;
+	// Last head read by the producer
+	private long producerHead;
+	// Last tail read by the consumer
+	private long consumerTail;
+
+	private volatile boolean closed;
+	private volatile boolean aborted;
+	private volatile Thread waitingProducer;
+	private volatile Thread waitingConsumer;
+
+	/**
+	 * @param capacity Number of items the buffer holds, a power of two
+	 */
+	SpscRingBuffer(int capacity) {
+		if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two, not " + capacity);
+		}
+		this.items = new Object[capacity];
+		this.mask = capacity - 1;
+	}
+
+	int capacity() {
+		return items.length;
+	}
+
+	/**
+	 * Adds an item if there is room, called by the producer only.
+	 *
+	 * @return False if the buffer is full
+	 */
+	boolean offer(E item) {
+		if (item == null) {
+			throw new NullPointerException();
+		}
+		long t = tail;
+		if (t - producerHead == items.length) {
+			producerHead = head;
+			if (t - producerHead == items.length) {
+				return false;
+			}
+		}
+		items[(int) t & mask] = item;
+		tail = t + 1;
+		unpark(waitingConsumer);
+		return true;
+	}
+
+	/**
+	 * Adds an item, waiting while the buffer is full. Called by the producer only.
+	 *
+	 * @throws InterruptedIOException If the thread was interrupted while waiting
+	 * @throws CancellationException If the buffer was aborted
+	 */
+	void put(E item) throws InterruptedIOException {
+		int spins = 0;
+		while (!offer(item)) {
+			checkAborted();
+			if (spins++ < SPINS) {
+				Thread.onSpinWait();
+				continue;
+			}
+			// Announce the wait before looking again, so a take in between unparks us
+			waitingProducer = Thread.currentThread();
+			try {
+				if (offer(item)) {
+					return;
+				}
+				checkAborted();
+				LockSupport.park(this);
+			} finally {
+				waitingProducer = null;
+			}
+			checkInterrupted();
+		}
+	}
+
+	/**
+	 * Removes the oldest item if there is one, called by the consumer only.
+	 *
+	 * @return The item, or null if the buffer is empty
+	 */
+	E poll() {
+		long h = head;
+		if (h == consumerTail) {
+			consumerTail = tail;
+			if (h == consumerTail) {
+				return null;
+			}
+		}
+		int i = (int) h & mask;
+		@SuppressWarnings("unchecked")
+		E item = (E) items[i];
+		items[i] = null;
+		head = h + 1;
+		unpark(waitingProducer);
+		return item;
+	}
+
+	/**
+	 * Removes the oldest item, waiting while the buffer is empty. Called by the
+	 * consumer only.
+	 *
+	 * @return The item, or null once the buffer is closed and every item was taken
+	 * @throws InterruptedIOException If the thread was interrupted while waiting
+	 * @throws CancellationException If the buffer was aborted
+	 */
+	E take() throws InterruptedIOException {
+		int spins = 0;
+		E item;
+		while ((item = poll()) == null) {
+			checkAborted();
+			if (closed) {
+				// Items put before close are visible now
+				return poll();
+			}
+			if (spins++ < SPINS) {
+				Thread.onSpinWait();
+				continue;
+			}
+			waitingConsumer = Thread.currentThread();
+			try {
+				if ((item = poll()) != null) {
+					return item;
+				}
+				checkAborted();
+				if (closed) {
+					return poll();
+				}
+				LockSupport.park(this);
+			} finally {
+				waitingConsumer = null;
+			}
+			checkInterrupted();
+		}
+		return item;
+	}
+
+	/**
+	 * Ends the stream of items, called by the producer after its last put.
+	 */
+	void close() {
+		closed = true;
+		unpark(waitingConsumer);
+	}
+
+	/**
+	 * Stops both sides, eg. when another stage failed. A side that is waiting, or
+	 * would wait, throws instead.
+	 */
+	void abort() {
+		aborted = true;
+		unpark(waitingProducer);
+		unpark(waitingConsumer);
+	}
+
+	private void checkAborted() {
+		if (aborted) {
+			throw new CancellationException("Pipeline stopped");
+		}
+	}
+
+	private static void checkInterrupted() throws InterruptedIOException {
+		// The flag is left set for the caller
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+		}
+	}
+
+	private static void unpark(Thread thread) {
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.brandenfung.enpass2keepassxml;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
+
+/**
+ * Strategy for the Base64 encoded UUIDs written to KeePass 2.x XML files.
+ * Implementations must be thread safe, the parallel writer calls them from
+ * several threads at once.
+ *
+ * @author Branden
+ *
+ * @see RandomUUIDGenerator
+ * @see ContentUUIDGenerator
+ */
+public interface UUIDGenerator {
+
+	/**
+	 * @param groupName Name of the group
+	 * @return Base64 encoded UUID of the group
+	 */
+	String groupUUID(String groupName);
+
+	/**
+	 * @param entry Entry being written
+	 * @return Base64 encoded UUID of the entry
+	 */
+	String entryUUID(EnpassEntry entry);
+
+	/**
+	 * @param entry Entry being written, must give the same UUID as the equivalent
+	 * 			{@link EnpassEntry}
+	 * @return Base64 encoded UUID of the entry
+	 */
+	String entryUUID(EnpassEntryStore.View entry);
+
+	/**
+	 * Called by the writers once per conversion, for generators that keep state
+	 * between the entries of a conversion.
+	 *
+	 * @return Generator to use for one conversion, this one by default
+	 */
+	default UUIDGenerator forConversion() {
+		return this;
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Buffered UTF-8 output for hand written XML. Markup is written as pre-encoded
+ * bytes with {@link #writeRaw(byte[])} and character data is escaped and encoded
+ * in a single pass with {@link #writeEscaped(String)}, as its {@link XmlEscaper} decides.
+ * Runs of clean ASCII chars are copied to the buffer without looking at them one by one.
+ *
+ * Nothing is buffered apart from a fixed size byte array, so memory use does not
+ * depend on the size of the document being written.
+ *
+ * @author Branden
+ *
+ */
+final class Utf8XmlOutput implements Closeable, Flushable {
+
+	private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	// Longest encoding of a single char (eg. "&amp;", 4 byte UTF-8 sequence)
+	private static final int MAX_BYTES_PER_CHAR = 6;
+
+	private final OutputStream out;
+	private final XmlEscaper escaper;
+	private final byte[] buf;
+	private int count;
+
+	Utf8XmlOutput(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE, XmlEscaper.DEFAULT);
+	}
+
+	Utf8XmlOutput(OutputStream out, int bufferSize) {
+		this(out, bufferSize, XmlEscaper.DEFAULT);
+	}
+
+	Utf8XmlOutput(OutputStream out, int bufferSize, XmlEscaper escaper) {
+		this.out = out;
+		this.escaper = escaper;
+		this.buf = new byte[Math.max(bufferSize, 64)];
+	}
+
+	XmlEscaper escaper() {
+		return escaper;
+	}
+
+	/**
+	 * Writes already encoded bytes, typically markup.
+	 */
+	void writeRaw(byte[] bytes) throws IOException {
+		writeRaw(bytes, 0, bytes.length);
+	}
+
+	void writeRaw(byte[] bytes, int off, int len) throws IOException {
+		if (len > buf.length - count) {
+			flushBuffer();
+			if (len > buf.length) {
+				out.write(bytes, off, len);
+				return;
+			}
+		}
+		System.arraycopy(bytes, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Writes character data, escaping markup characters and encoding as UTF-8.
+	 */
+	void writeEscaped(String s) throws IOException {
+		writeEscaped(s, 0, s.length());
+	}
+
+	@SuppressWarnings("deprecation")
+	void writeEscaped(CharSequence s, int start, int end) throws IOException {
+		int i = start;
+		while (i < end) {
+			int clean = XmlEscaper.cleanRunEnd(s, i, end);
+			while (i < clean) {
+				if (count == buf.length) {
+					flushBuffer();
+				}
+				int n = Math.min(clean - i, buf.length - count);
+				if (s instanceof String) {
+					// Copies the bytes of a Latin-1 String without encoding each char
+					((String) s).getBytes(i, i + n, buf, count);
+					count += n;
+				} else {
+					for (int j = i; j < i + n; j++) {
+						buf[count++] = (byte) s.charAt(j);
+					}
+				}
+				i += n;
+			}
+			if (i == end) {
+				break;
+			}
+
+			if (buf.length - count < MAX_BYTES_PER_CHAR) {
+				flushBuffer();
+			}
+			char c = s.charAt(i++);
+			if (c < 0x80) {
+				put(escaper.asciiEscape(c));
+			} else if (Character.isHighSurrogate(c) && i < end && Character.isLowSurrogate(s.charAt(i))) {
+				writeCodePoint(Character.toCodePoint(c, s.charAt(i++)));
+			} else if (Character.isSurrogate(c) || !XmlEscaper.isValid(c)) {
+				put(escaper.invalidEscape(c));
+			} else {
+				writeCodePoint(c);
+			}
+		}
+	}
+
+	private void writeCodePoint(int cp) {
+		if (cp < 0x800) {
+			buf[count++] = (byte) (0xC0 | (cp >> 6));
+			buf[count++] = (byte) (0x80 | (cp & 0x3F));
+		} else if (cp < 0x10000) {
+			buf[count++] = (byte) (0xE0 | (cp >> 12));
+			buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (cp & 0x3F));
+		} else {
+			buf[count++] = (byte) (0xF0 | (cp >> 18));
+			buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+			buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (cp & 0x3F));
+		}
+	}
+
+	private void put(byte[] bytes) {
+		System.arraycopy(bytes, 0, buf, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			// May still hold the tail of secret values
+			Arrays.fill(buf, (byte) 0);
+			out.close();
+		}
+	}
+
+	/**
+	 * Drops the buffered output without writing it and leaves the underlying stream open.
+	 */
+	void discard() {
+		Arrays.fill(buf, (byte) 0);
+		count = 0;
+	}
+
+	static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+}
@@ -0,0 +1,132 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+/**
+ * Merges several exported Enpass txt files into one KeePass XML, leaving out
+ * duplicates. Exports are streamed one entry at a time in the order given, and an
+ * entry is left out when an earlier export already had an entry with the same title,
+ * username and url, and optionally password. Entries from earlier exports therefore
+ * win over the same entries in later ones. Entries repeated within one export are all
+ * kept, as they are by a plain conversion, since Enpass exports distinct records that
+ * look alike, such as the two halves of an Identity Card.
+ *
+ * Seen entries are remembered as 64 bit hashes in a {@link LongIntHashMap}, mapped to
+ * the export that first had them, so the merge costs about 24 bytes per distinct entry,
+ * whatever the size of the entries.
+ * See {@link EntryHash} for the odds of two different entries sharing a hash.
+ *
+ * @author Branden
+ *
+ */
+public final class VaultMerger {
+
+	private final boolean matchPasswords;
+	private final boolean protectSecrets;
+	private final LongIntHashMap seen = new LongIntHashMap(1024);
+
+	/**
+	 * Number of entries read and written by {@link VaultMerger#merge}.
+	 */
+	public static class Result {
+		public final String outputPath;
+		/** Entries read from each export, in the order the exports were given */
+		public final long[] entries;
+		public final long written;
+		public final long duplicates;
+
+		private Result(String outputPath, long[] entries, long written) {
+			long read = 0;
+			for (long count : entries) {
+				read += count;
+			}
+			this.outputPath = outputPath;
+			this.entries = entries;
+			this.written = written;
+			this.duplicates = read - written;
+		}
+
+		@Override
+		public String toString() {
+			return (written + duplicates) + " entries from " + entries.length + " exports, " + written +
+					" written, " + duplicates + " duplicates removed";
+		}
+	}
+
+	/**
+	 * @param matchPasswords Whether entries must also have the same password to be
+	 * 			duplicates
+	 */
+	public VaultMerger(boolean matchPasswords) {
+		this(matchPasswords, false);
+	}
+
+	/**
+	 * @param matchPasswords Whether entries must also have the same password to be
+	 * 			duplicates
+	 * @param protectSecrets Whether to hold passwords and secret custom fields off heap,
+	 * 			see {@link ConversionOptions#protectSecrets}
+	 */
+	public VaultMerger(boolean matchPasswords, boolean protectSecrets) {
+		this.matchPasswords = matchPasswords;
+		this.protectSecrets = protectSecrets;
+	}
+
+	/**
+	 * Writes the entries of every export that were not seen in an earlier export.
+	 *
+	 * @param inputs Exported Enpass txt files, in order of priority
+	 * @param writer Writer of the merged xml, closed by this method. It is aborted instead,
+	 * 			leaving its stream for the caller to close, if an export could not be read
+	 * @param outputPath Path the writer writes to, reported in the result
+	 * @return Number of entries read, written and left out
+	 * @throws IOException If an export could not be read or the xml written
+	 * @throws EnpassFileParserException If an export could not be parsed
+	 */
+	public Result merge(List<File> inputs, KeePassEntryWriter writer, String outputPath)
+			throws IOException, EnpassFileParserException {
+		long[] entries = new long[inputs.size()];
+		long written = 0;
+		boolean merged = false;
+		try {
+			for (int i = 0; i < inputs.size(); i++) {
+				try (EnpassEntryReader reader = EnpassFileParser.openEnpassFile(inputs.get(i).getAbsolutePath())) {
+					reader.setProtectSecrets(protectSecrets);
+					EnpassEntry entry;
+					while ((entry = reader.readEntry()) != null) {
+						entries[i]++;
+						// Exports are numbered from 1, as 0 marks an entry not seen before
+						int firstExport = seen.putIfAbsent(duplicateKey(entry), i + 1);
+						if (firstExport == 0 || firstExport == i + 1) {
+							writer.writeEntry(entry);
+							written++;
+						} else {
+							entry.wipeSecrets();
+						}
+					}
+				}
+			}
+			merged = true;
+		} finally {
+			if (merged) {
+				writer.close();
+			} else {
+				writer.abort();
+			}
+		}
+		return new Result(outputPath, entries, written);
+	}
+
+	private long duplicateKey(EnpassEntry entry) {
+		if (matchPasswords) {
+			return EntryHash.hash(entry.title, entry.username, entry.url, entry.passwordChars());
+		}
+		return EntryHash.hash(entry.title, entry.username, entry.url);
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.brandenfung.enpass2keepassxml;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decides how each char of character data is written to XML. Markup characters are
+ * escaped, and characters that XML 1.0 does not allow at all, such as control
+ * characters other than tab, newline and carriage return, unpaired surrogates and
+ * U+FFFE and U+FFFF, are handled by an {@link InvalidCharPolicy}. KeePass refuses to
+ * import a file containing them, even as character references.
+ *
+ * Values are scanned in bulk: {@link #cleanRunEnd(CharSequence, int, int)} finds the
+ * end of a run of ASCII chars that are copied as is, which is almost all of a typical
+ * value, so only the chars after it are looked at one by one.
+ *
+ * Immutable and thread safe.
+ *
+ * @author Branden
+ *
+ */
+public final class XmlEscaper {
+
+	/**
+	 * What to write in place of a character that is not allowed in XML 1.0.
+	 */
+	public enum InvalidCharPolicy {
+		/** Write U+FFFD REPLACEMENT CHARACTER */
+		REPLACE,
+		/** Leave the character out */
+		REMOVE,
+		/** Write the code point as a Java style escape of six chars, so it is visible in KeePass */
+		ENCODE
+	}
+
+	private static final char REPLACEMENT = '\uFFFD';
+	private static final byte[] NOTHING = new byte[0];
+
+	// ASCII chars that are copied as is
+	private static final boolean[] CLEAN = new boolean[128];
+
+	static {
+		for (int c = 0x20; c < 0x80; c++) {
+			CLEAN[c] = true;
+		}
+		CLEAN['\t'] = true;
+		CLEAN['\n'] = true;
+		CLEAN['&'] = false;
+		CLEAN['<'] = false;
+		CLEAN['>'] = false;
+	}
+
+	/** Replaces invalid characters with U+FFFD */
+	public static final XmlEscaper DEFAULT = new XmlEscaper(InvalidCharPolicy.REPLACE);
+
+	private final InvalidCharPolicy policy;
+	// UTF-8 bytes to write for each ASCII char that is not clean
+	private final byte[][] asciiEscapes = new byte[128][];
+
+	/**
+	 * @param policy How to write characters that are not allowed in XML 1.0
+	 */
+	public XmlEscaper(InvalidCharPolicy policy) {
+		this.policy = policy;
+		for (int c = 0; c < 0x80; c++) {
+			if (!CLEAN[c]) {
+				asciiEscapes[c] = utf8(escapeAscii((char) c));
+			}
+		}
+	}
+
+	public InvalidCharPolicy policy() {
+		return policy;
+	}
+
+	private String escapeAscii(char c) {
+		switch (c) {
+		case '&':
+			return "&amp;";
+		case '<':
+			return "&lt;";
+		case '>':
+			return "&gt;";
+		case '\r':
+			// Kept as a reference, a literal one would be normalized away by the parser
+			return "&#13;";
+		default:
+			return invalid(c);
+		}
+	}
+
+	private String invalid(int cp) {
+		switch (policy) {
+		case REMOVE:
+			return "";
+		case ENCODE:
+			return String.format("\\u%04x", cp);
+		default:
+			return String.valueOf(REPLACEMENT);
+		}
+	}
+
+	/**
+	 * @return Index of the first char from start that is not ASCII or must be escaped,
+	 * 			end if there is none
+	 */
+	static int cleanRunEnd(CharSequence s, int start, int end) {
+		int i = start;
+		while (i < end) {
+			char c = s.charAt(i);
+			if (c >= 0x80 || !CLEAN[c]) {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return UTF-8 bytes to write in place of an ASCII char that is not clean
+	 */
+	byte[] asciiEscape(char c) {
+		return asciiEscapes[c];
+	}
+
+	/**
+	 * @return UTF-8 bytes to write in place of a char or code point that is not
+	 * 			allowed in XML 1.0
+	 */
+	byte[] invalidEscape(int cp) {
+		return policy == InvalidCharPolicy.REMOVE ? NOTHING : utf8(invalid(cp));
+	}
+
+	/**
+	 * @return Whether XML 1.0 allows the non-ASCII char, which must not be a surrogate
+	 */
+	static boolean isValid(char c) {
+		return c != '\uFFFE' && c != '\uFFFF';
+	}
+
+	/**
+	 * Applies the policy to a String that will be escaped by something else, eg. a DOM
+	 * serializer, which would otherwise write the invalid characters as references.
+	 *
+	 * @return The String with every invalid character handled by the policy, the same
+	 * 			instance if it has none
+	 */
+	public String sanitize(String s) {
+		int i = firstInvalid(s, 0);
+		if (i == s.length()) {
+			return s;
+		}
+
+		StringBuilder sanitized = new StringBuilder(s.length());
+		int start = 0;
+		while (i < s.length()) {
+			sanitized.append(s, start, i);
+			sanitized.append(invalid(s.charAt(i)));
+			start = i + 1;
+			i = firstInvalid(s, start);
+		}
+		return sanitized.append(s, start, s.length()).toString();
+	}
+
+	private static int firstInvalid(String s, int from) {
+		for (int i = from; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x20) {
+				if (c != '\t' && c != '\n' && c != '\r') {
+					return i;
+				}
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				i++;
+			} else if (c >= 0xD800 && (Character.isSurrogate(c) || !isValid(c))) {
+				return i;
+			}
+		}
+		return s.length();
+	}
+
+	private static byte[] utf8(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+}
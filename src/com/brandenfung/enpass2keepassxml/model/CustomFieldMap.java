@@ -0,0 +1,397 @@
+package com.brandenfung.enpass2keepassxml.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Custom fields of an entry, keyed by {@link FieldKeys} id. Fields are kept in the
+ * order they were added in two parallel arrays, with a small open addressing table
+ * of ids for lookups, so a field costs a slot in three arrays instead of a HashMap
+ * node, and lookups never hash a String.
+ *
+ * Readable as an ordinary Map of key to value, and by position with
+ * {@link #keyId(int)} and {@link #value(int)} for iterating without creating entries.
+ * Fields can be added, replaced and removed, removing moves the later fields down.
+ * Not thread safe.
+ *
+ * Keys that did not fit the {@link FieldKeys} table have id {@link FieldKeys#NO_ID}
+ * and are kept as Strings here, read them with {@link #key(int)}. They are looked up
+ * by scanning, which is fine for the few an entry has.
+ *
+ * A field can hold a {@link SecretValue} instead of a String, see
+ * {@link #putSecret(int, SecretValue)}. Its value reads as empty, serializers read it
+ * with {@link #chars(int)}.
+ *
+ * @author Branden
+ *
+ */
+public final class CustomFieldMap extends AbstractMap<String, String> {
+
+	private static final int[] NO_INTS = new int[0];
+	private static final String[] NO_VALUES = new String[0];
+	private static final SecretValue[] NO_SECRETS = new SecretValue[0];
+
+	private int[] keyIds = NO_INTS;
+	private String[] values = NO_VALUES;
+	// Only allocated once a secret is added
+	private SecretValue[] secrets = NO_SECRETS;
+	// Keys of the fields without an id, only allocated once one is added
+	private String[] plainKeys = NO_VALUES;
+	// Position + 1 of the field whose id hashes to each slot, 0 when empty
+	private int[] slots = NO_INTS;
+	private int size;
+
+	/**
+	 * @return Number of custom fields
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Id of the key of the field at a position, {@link FieldKeys#NO_ID} if the
+	 * 			key is not in the table
+	 */
+	public int keyId(int i) {
+		checkIndex(i);
+		return keyIds[i];
+	}
+
+	/**
+	 * @return Key of the field at a position
+	 */
+	public String key(int i) {
+		checkIndex(i);
+		return keyIds[i] != FieldKeys.NO_ID ? FieldKeys.key(keyIds[i]) : plainKeys[i];
+	}
+
+	/**
+	 * @return Positions of the fields in order of key, fields with equal keys in the
+	 * 			order they were added. Insertion sorted, since entries have few fields.
+	 */
+	public int[] keyOrder() {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			String key = key(i);
+			int j = i;
+			for (; j > 0 && key(order[j - 1]).compareTo(key) > 0; j--) {
+				order[j] = order[j - 1];
+			}
+			order[j] = i;
+		}
+		return order;
+	}
+
+	/**
+	 * @return Value of the field at a position
+	 */
+	public String value(int i) {
+		checkIndex(i);
+		return values[i];
+	}
+
+	/**
+	 * @return Secret value of the field at a position, or null if its value is a String
+	 */
+	public SecretValue secret(int i) {
+		checkIndex(i);
+		return i < secrets.length ? secrets[i] : null;
+	}
+
+	/**
+	 * @return Value of the field at a position, secret or not
+	 */
+	public CharSequence chars(int i) {
+		SecretValue secret = secret(i);
+		return secret != null ? secret : values[i];
+	}
+
+	/**
+	 * @return Whether any field holds a secret value
+	 */
+	public boolean hasSecrets() {
+		for (int i = 0; i < Math.min(size, secrets.length); i++) {
+			if (secrets[i] != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wipes every secret value.
+	 */
+	public void wipeSecrets() {
+		for (int i = 0; i < Math.min(size, secrets.length); i++) {
+			if (secrets[i] != null) {
+				secrets[i].wipe();
+			}
+		}
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+		}
+	}
+
+	/**
+	 * @return Value of the field with the key id, or null if there is none
+	 */
+	public String get(int keyId) {
+		int i = indexOf(keyId);
+		return i >= 0 ? values[i] : null;
+	}
+
+	@Override
+	public String get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		int i = indexOf((String) key);
+		return i >= 0 ? values[i] : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && indexOf((String) key) >= 0;
+	}
+
+	private int indexOf(String key) {
+		int keyId = FieldKeys.existingId(key);
+		if (keyId != FieldKeys.NO_ID) {
+			return indexOf(keyId);
+		}
+		for (int i = 0; i < Math.min(size, plainKeys.length); i++) {
+			if (keyIds[i] == FieldKeys.NO_ID && key.equals(plainKeys[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int indexOf(int keyId) {
+		if (size == 0 || keyId < 0) {
+			return -1;
+		}
+		int mask = slots.length - 1;
+		for (int slot = keyId & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			if (keyIds[slots[slot] - 1] == keyId) {
+				return slots[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds or replaces a field.
+	 *
+	 * @param keyId {@link FieldKeys} id of the key, not {@link FieldKeys#NO_ID}
+	 * @return The value replaced, or null if the field is new
+	 */
+	public String put(int keyId, String value) {
+		if (keyId < 0) {
+			throw new IllegalArgumentException("Invalid key id " + keyId);
+		}
+		int i = indexOf(keyId);
+		if (i >= 0) {
+			return replace(i, value);
+		}
+		add(keyId, null, value);
+		return null;
+	}
+
+	@Override
+	public String put(String key, String value) {
+		int keyId = FieldKeys.id(key);
+		if (keyId != FieldKeys.NO_ID) {
+			return put(keyId, value);
+		}
+		int i = indexOf(key);
+		if (i >= 0) {
+			return replace(i, value);
+		}
+		add(FieldKeys.NO_ID, key, value);
+		return null;
+	}
+
+	/**
+	 * Replaces the value at a position. A secret value is wiped, as by {@link #removeAt}.
+	 */
+	private String replace(int i, String value) {
+		String previous = values[i];
+		values[i] = value;
+		if (i < secrets.length && secrets[i] != null) {
+			secrets[i].wipe();
+			secrets[i] = null;
+		}
+		return previous;
+	}
+
+	private void add(int keyId, String plainKey, String value) {
+		if (size == keyIds.length) {
+			grow();
+		}
+		keyIds[size] = keyId;
+		values[size] = value;
+		if (keyId == FieldKeys.NO_ID) {
+			if (plainKeys.length < keyIds.length) {
+				plainKeys = Arrays.copyOf(plainKeys, keyIds.length);
+			}
+			plainKeys[size] = plainKey;
+		} else {
+			insertSlot(size);
+		}
+		size++;
+	}
+
+	/**
+	 * Adds or replaces a field with a secret value, whose String value is empty.
+	 *
+	 * @param keyId {@link FieldKeys} id of the key, not {@link FieldKeys#NO_ID}
+	 */
+	public void putSecret(int keyId, SecretValue secret) {
+		put(keyId, "");
+		setSecret(indexOf(keyId), secret);
+	}
+
+	/**
+	 * Adds or replaces a field with a secret value, whose String value is empty.
+	 */
+	public void putSecret(String key, SecretValue secret) {
+		put(key, "");
+		setSecret(indexOf(key), secret);
+	}
+
+	private void setSecret(int i, SecretValue secret) {
+		if (secrets.length < keyIds.length) {
+			secrets = Arrays.copyOf(secrets, keyIds.length);
+		}
+		secrets[i] = secret;
+	}
+
+	private void grow() {
+		int capacity = keyIds.length == 0 ? 4 : keyIds.length * 2;
+		keyIds = Arrays.copyOf(keyIds, capacity);
+		values = Arrays.copyOf(values, capacity);
+		// Ids are dense small ints, so they are their own hash
+		slots = new int[capacity * 2];
+		for (int i = 0; i < size; i++) {
+			if (keyIds[i] != FieldKeys.NO_ID) {
+				insertSlot(i);
+			}
+		}
+	}
+
+	private void insertSlot(int i) {
+		int mask = slots.length - 1;
+		int slot = keyIds[i] & mask;
+		while (slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = i + 1;
+	}
+
+	@Override
+	public String remove(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		int i = indexOf((String) key);
+		return i >= 0 ? removeAt(i) : null;
+	}
+
+	/**
+	 * Removes the field at a position. A secret value is wiped, since the entry can no
+	 * longer reach it to wipe it.
+	 *
+	 * @return The value removed
+	 */
+	private String removeAt(int i) {
+		String previous = values[i];
+		SecretValue secret = secret(i);
+		System.arraycopy(keyIds, i + 1, keyIds, i, size - i - 1);
+		shift(values, i, size);
+		shift(secrets, i, Math.min(size, secrets.length));
+		shift(plainKeys, i, Math.min(size, plainKeys.length));
+		size--;
+		Arrays.fill(slots, 0);
+		for (int j = 0; j < size; j++) {
+			if (keyIds[j] != FieldKeys.NO_ID) {
+				insertSlot(j);
+			}
+		}
+		if (secret != null) {
+			secret.wipe();
+		}
+		return previous;
+	}
+
+	private static void shift(Object[] array, int i, int end) {
+		if (i < end) {
+			System.arraycopy(array, i + 1, array, i, end - i - 1);
+			array[end - 1] = null;
+		}
+	}
+
+	/**
+	 * Removes every field. Secret values are wiped, as by {@link #remove(Object)}.
+	 */
+	@Override
+	public void clear() {
+		wipeSecrets();
+		Arrays.fill(values, 0, size, null);
+		Arrays.fill(secrets, 0, Math.min(size, secrets.length), null);
+		Arrays.fill(plainKeys, 0, Math.min(size, plainKeys.length), null);
+		Arrays.fill(slots, 0);
+		size = 0;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new Iterator<Entry<String, String>>() {
+					private int next;
+					private int last = -1;
+
+					@Override
+					public boolean hasNext() {
+						return next < size;
+					}
+
+					@Override
+					public Entry<String, String> next() {
+						if (next >= size) {
+							throw new NoSuchElementException();
+						}
+						last = next++;
+						return new SimpleImmutableEntry<>(key(last), values[last]);
+					}
+
+					@Override
+					public void remove() {
+						if (last < 0) {
+							throw new IllegalStateException();
+						}
+						removeAt(last);
+						next = last;
+						last = -1;
+					}
+				};
+			}
+		};
+	}
+
+}
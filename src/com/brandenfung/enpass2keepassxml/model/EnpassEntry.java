@@ -1,102 +1,179 @@
-package com.brandenfung.enpass2keepassxml.model;
-
-import java.util.HashMap;
-
-/**
- * Immutable Enpass entry.
- * 
- * @author Branden
- *
- */
-public class EnpassEntry {
-	public final String title;
-	public final String username;
-	public final String password;
-	public final String url;
-	public final String note;
-	public final HashMap<String, String> customFields;
-
-	public static class Builder {
-		private String title;
-		private String username;
-		private String password;
-		private String url;
-		private String note;
-		private HashMap<String, String> customFields = new HashMap<String, String>();
-
-		public void setTitle(String title) {
-			this.title = title;
-		}
-
-		public void setUsername(String username) {
-			this.username = username;
-		}
-
-		public void setPassword(String password) {
-			this.password = password;
-		}
-
-		public void setUrl(String url) {
-			this.url = url;
-		}
-
-		public void setNote(String note) {
-			this.note = note;
-		}
-		
-		public void appendNote(String line) {
-			this.note = this.note.concat("\n").concat(line);
-		}
-
-		public void addCustomField(String key, String value) {
-			customFields.put(key, value);
-		}
-
-		/**
-		 * Clears all fields in the builder
-		 */
-		public void clear() {
-			this.title  = null;
-			this.username  = null;
-			this.password  = null;
-			this.url  = null;
-			this.note = null;
-			this.customFields.clear();
-		}
-
-		public boolean hasTitle() {
-			return title != null;
-		}
-
-		/**
-		 * Builds the {@link EnpassEntry} and resets the builder to get ready for
-		 * more building.
-		 * 
-		 * @return
-		 * @throws EnpassItemException
-		 */
-		public EnpassEntry build() {
-			EnpassEntry item = new EnpassEntry(this.title, this.username, this.password, 
-											   this.url, this.note, this.customFields);	
-			clear();
-			return item;	
-		}
-
-	}
-
-	private EnpassEntry(String title, String username, String password, String url, 
-			String note, HashMap<String, String> customFields) {
-		this.title = title == null ? "" : title;
-		this.username = username == null ? "" : username;
-		this.password = password == null ? "" : password;
-		this.url = url == null ? "" : url;
-		this.note = note == null ? "" : note;
-		this.customFields = new HashMap<String, String>(customFields);
-	}
-
-	public static class EnpassItemException extends Exception {
-		private static final long serialVersionUID = 1124524828218470260L;
-		public static final String TAG = "Either title, username, or password not set in EnpassItem";
-	}
-
-}
+package com.brandenfung.enpass2keepassxml.model;
+
+import java.util.Map;
+
+/**
+ * Immutable Enpass entry, apart from wiping the values it holds off heap.
+ * 
+ * @author Branden
+ *
+ */
+public class EnpassEntry {
+	public final String title;
+	public final String username;
+	/** Empty when the password is held off heap, read it with {@link #passwordChars()} */
+	public final String password;
+	public final String url;
+	public final String note;
+	/**
+	 * Custom fields by key, in the order of the export. Fields held off heap read as
+	 * empty, see {@link #customFieldMap()}. Declared as a {@link Map} rather than the
+	 * HashMap of earlier versions, so callers compiled against those must be recompiled.
+	 */
+	public final Map<String, String> customFields;
+	/** Password held off heap, then {@link #password} is empty. Null if it is not. */
+	public final SecretValue securePassword;
+	private final CustomFieldMap customFieldMap;
+
+	public static class Builder {
+		private String title;
+		private String username;
+		private String password;
+		private String url;
+		private String note;
+		private CustomFieldMap customFields = new CustomFieldMap();
+		private SecretValue securePassword;
+
+		public void setTitle(String title) {
+			this.title = title;
+		}
+
+		public void setUsername(String username) {
+			this.username = username;
+		}
+
+		public void setPassword(String password) {
+			this.password = password;
+		}
+
+		/**
+		 * @param securePassword Password held off heap instead of in a String
+		 */
+		public void setSecurePassword(SecretValue securePassword) {
+			this.securePassword = securePassword;
+		}
+
+		public void setUrl(String url) {
+			this.url = url;
+		}
+
+		public void setNote(String note) {
+			this.note = note;
+		}
+		
+		public void appendNote(String line) {
+			this.note = this.note.concat("\n").concat(line);
+		}
+
+		public void addCustomField(String key, String value) {
+			customFields.put(key, value);
+		}
+
+		/**
+		 * @param keyId {@link FieldKeys} id of the key
+		 */
+		public void addCustomField(int keyId, String value) {
+			customFields.put(keyId, value);
+		}
+
+		/**
+		 * @param keyId {@link FieldKeys} id of the key
+		 * @param value Value held off heap instead of in a String
+		 */
+		public void addSecretField(int keyId, SecretValue value) {
+			customFields.putSecret(keyId, value);
+		}
+
+		/**
+		 * @param value Value held off heap instead of in a String
+		 */
+		public void addSecretField(String key, SecretValue value) {
+			customFields.putSecret(key, value);
+		}
+
+		/**
+		 * Clears all fields in the builder
+		 */
+		public void clear() {
+			this.title  = null;
+			this.username  = null;
+			this.password  = null;
+			this.securePassword = null;
+			this.url  = null;
+			this.note = null;
+			this.customFields.clear();
+		}
+
+		public boolean hasTitle() {
+			return title != null;
+		}
+
+		/**
+		 * Builds the {@link EnpassEntry} and resets the builder to get ready for
+		 * more building.
+		 * 
+		 * @return
+		 * @throws EnpassItemException
+		 */
+		public EnpassEntry build() {
+			EnpassEntry item = new EnpassEntry(this.title, this.username, this.password, 
+											   this.url, this.note, this.customFields, this.securePassword);	
+			this.customFields = new CustomFieldMap(); // handed over to the entry, not copied
+			clear();
+			return item;	
+		}
+
+	}
+
+	private EnpassEntry(String title, String username, String password, String url, 
+			String note, CustomFieldMap customFields, SecretValue securePassword) {
+		this.title = title == null ? "" : title;
+		this.username = username == null ? "" : username;
+		this.password = password == null ? "" : password;
+		this.url = url == null ? "" : url;
+		this.note = note == null ? "" : note;
+		this.customFields = customFields;
+		this.customFieldMap = customFields;
+		this.securePassword = securePassword;
+	}
+
+	/**
+	 * @return The custom fields, readable by position and key id and including the
+	 * 			values held off heap
+	 */
+	public CustomFieldMap customFieldMap() {
+		return customFieldMap;
+	}
+
+	/**
+	 * @return The password, whether it is held off heap or not
+	 */
+	public CharSequence passwordChars() {
+		return securePassword != null ? securePassword : password;
+	}
+
+	/**
+	 * @return Whether the password or any custom field is held off heap, so its String
+	 * 			value is empty
+	 */
+	public boolean hasSecrets() {
+		return securePassword != null || customFieldMap.hasSecrets();
+	}
+
+	/**
+	 * Zeroes the password and custom fields held off heap, once the entry is written.
+	 * The entry can not be written again afterwards.
+	 */
+	public void wipeSecrets() {
+		if (securePassword != null) {
+			securePassword.wipe();
+		}
+		customFieldMap.wipeSecrets();
+	}
+
+	public static class EnpassItemException extends Exception {
+		private static final long serialVersionUID = 1124524828218470260L;
+		public static final String TAG = "Either title, username, or password not set in EnpassItem";
+	}
+
+}
@@ -0,0 +1,260 @@
+package com.brandenfung.enpass2keepassxml.model;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compact, append only store of many Enpass entries. Instead of five Strings and a
+ * HashMap per {@link EnpassEntry}, all field text is copied into one shared char arena
+ * and entries are rows of int offsets into it. Custom fields are stored as (keyId, value
+ * offsets) columns, with keys stored as their global {@link FieldKeys} id. Keys
+ * without an id are kept as Strings in a column of their own.
+ *
+ * The footprint is a handful of ints per field plus the text itself, and the store
+ * is made of a few large arrays no matter how many entries it holds, which keeps
+ * GC work low for large vaults. Entries are read back through {@link View}s.
+ *
+ * The arena is addressed with ints, so a store holds at most 2^31 chars of text.
+ * The arena is never wiped and is copied as it grows, so entries holding secrets off
+ * heap, see {@link EnpassEntry#hasSecrets()}, are refused rather than copied into it.
+ * Not thread safe.
+ *
+ * @author Branden
+ *
+ */
+public final class EnpassEntryStore {
+
+	public static final int TITLE = 0;
+	public static final int USERNAME = 1;
+	public static final int PASSWORD = 2;
+	public static final int URL = 3;
+	public static final int NOTE = 4;
+	private static final int FIELD_COUNT = 5;
+
+	// Text of every field of every entry
+	private char[] chars = new char[1 << 12];
+	private int charCount;
+
+	// Per entry: start and end in the arena of each fixed field
+	private int[] fieldBounds = new int[16 * FIELD_COUNT * 2];
+	// Per entry: index of its first custom field, with one extra slot for the end
+	private int[] customStart = new int[17];
+	private int size;
+
+	// Per custom field: key id and start and end of the value in the arena
+	private int[] customKeyIds = new int[64];
+	private int[] customValueBounds = new int[128];
+	// Per custom field: key of the fields without an id, only allocated once one is added
+	private String[] customPlainKeys = new String[0];
+	private int customCount;
+
+	private final BitSet usedKeys = new BitSet();
+	private final Set<String> usedPlainKeys = new HashSet<>();
+
+	private CharBuffer text;
+
+	/**
+	 * Copies an entry into the store.
+	 *
+	 * @return Index of the entry
+	 * @throws IllegalArgumentException If the entry holds secrets off heap
+	 */
+	public int add(EnpassEntry entry) {
+		if (entry.hasSecrets()) {
+			throw new IllegalArgumentException("Entries with secrets held off heap can not be stored");
+		}
+		int index = size;
+		fieldBounds = ensureCapacity(fieldBounds, (index + 1) * FIELD_COUNT * 2);
+		customStart = ensureCapacity(customStart, index + 2);
+
+		int bounds = index * FIELD_COUNT * 2;
+		appendField(bounds + TITLE * 2, entry.title);
+		appendField(bounds + USERNAME * 2, entry.username);
+		appendField(bounds + PASSWORD * 2, entry.password);
+		appendField(bounds + URL * 2, entry.url);
+		appendField(bounds + NOTE * 2, entry.note);
+
+		CustomFieldMap customFields = entry.customFieldMap();
+		customKeyIds = ensureCapacity(customKeyIds, customCount + customFields.size());
+		customValueBounds = ensureCapacity(customValueBounds, (customCount + customFields.size()) * 2);
+		for (int i = 0; i < customFields.size(); i++) {
+			int keyId = customFields.keyId(i);
+			customKeyIds[customCount] = keyId;
+			if (keyId != FieldKeys.NO_ID) {
+				usedKeys.set(keyId);
+			} else {
+				if (customPlainKeys.length < customKeyIds.length) {
+					customPlainKeys = Arrays.copyOf(customPlainKeys, customKeyIds.length);
+				}
+				customPlainKeys[customCount] = customFields.key(i);
+				usedPlainKeys.add(customFields.key(i));
+			}
+			int start = append(customFields.value(i));
+			customValueBounds[customCount * 2] = start;
+			customValueBounds[customCount * 2 + 1] = charCount;
+			customCount++;
+		}
+
+		size++;
+		customStart[size] = customCount;
+		return index;
+	}
+
+	private void appendField(int boundsIndex, String value) {
+		fieldBounds[boundsIndex] = append(value);
+		fieldBounds[boundsIndex + 1] = charCount;
+	}
+
+	private int append(String value) {
+		int start = charCount;
+		int length = value.length();
+		if (chars.length - charCount < length) {
+			long required = (long) charCount + length;
+			if (required > Integer.MAX_VALUE - 8) {
+				throw new IllegalStateException("Entry store is full");
+			}
+			chars = Arrays.copyOf(chars, (int) Math.min(Integer.MAX_VALUE - 8,
+					Math.max(required, (long) chars.length * 2)));
+		}
+		value.getChars(0, length, chars, charCount);
+		charCount += length;
+		text = null;
+		return start;
+	}
+
+	private static int[] ensureCapacity(int[] array, int capacity) {
+		return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+	}
+
+	/**
+	 * @return Number of entries in the store
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Lightweight view of the entry at an index
+	 */
+	public View get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+		}
+		return new View(index);
+	}
+
+	/**
+	 * @return The arena holding the text of every field. Field bounds are offsets into it.
+	 */
+	public CharSequence text() {
+		if (text == null) {
+			text = CharBuffer.wrap(chars, 0, charCount);
+		}
+		return text;
+	}
+
+	/**
+	 * @return The key with the given {@link FieldKeys} id
+	 */
+	public String key(int keyId) {
+		return FieldKeys.key(keyId);
+	}
+
+	/**
+	 * @return Number of distinct custom field keys in the store
+	 */
+	public int keyCount() {
+		return usedKeys.cardinality() + usedPlainKeys.size();
+	}
+
+	/**
+	 * View of one entry in an {@link EnpassEntryStore}. Holds no text itself, only the
+	 * index of the entry.
+	 */
+	public final class View {
+
+		private final int index;
+
+		private View(int index) {
+			this.index = index;
+		}
+
+		public int index() {
+			return index;
+		}
+
+		/**
+		 * @return Store the entry belongs to, whose {@link EnpassEntryStore#text()} the
+		 * 			bounds of this view index into
+		 */
+		public EnpassEntryStore store() {
+			return EnpassEntryStore.this;
+		}
+
+		/**
+		 * @param field One of {@link EnpassEntryStore#TITLE}, {@link EnpassEntryStore#USERNAME},
+		 * 			{@link EnpassEntryStore#PASSWORD}, {@link EnpassEntryStore#URL} or
+		 * 			{@link EnpassEntryStore#NOTE}
+		 */
+		public int fieldStart(int field) {
+			return fieldBounds[(index * FIELD_COUNT + field) * 2];
+		}
+
+		public int fieldEnd(int field) {
+			return fieldBounds[(index * FIELD_COUNT + field) * 2 + 1];
+		}
+
+		public String field(int field) {
+			return new String(chars, fieldStart(field), fieldEnd(field) - fieldStart(field));
+		}
+
+		public int customFieldCount() {
+			return customStart[index + 1] - customStart[index];
+		}
+
+		/**
+		 * @return {@link FieldKeys} id of the key, or {@link FieldKeys#NO_ID} if it has
+		 * 			none, read it with {@link #customFieldKey(int)}
+		 */
+		public int customFieldKeyId(int i) {
+			return customKeyIds[customStart[index] + i];
+		}
+
+		public String customFieldKey(int i) {
+			int keyId = customFieldKeyId(i);
+			return keyId != FieldKeys.NO_ID ? FieldKeys.key(keyId) : customPlainKeys[customStart[index] + i];
+		}
+
+		public int customFieldStart(int i) {
+			return customValueBounds[(customStart[index] + i) * 2];
+		}
+
+		public int customFieldEnd(int i) {
+			return customValueBounds[(customStart[index] + i) * 2 + 1];
+		}
+
+		public String customFieldValue(int i) {
+			return new String(chars, customFieldStart(i), customFieldEnd(i) - customFieldStart(i));
+		}
+
+		/**
+		 * Copies the entry back out of the store.
+		 */
+		public EnpassEntry toEntry() {
+			EnpassEntry.Builder builder = new EnpassEntry.Builder();
+			builder.setTitle(field(TITLE));
+			builder.setUsername(field(USERNAME));
+			builder.setPassword(field(PASSWORD));
+			builder.setUrl(field(URL));
+			builder.setNote(field(NOTE));
+			for (int i = 0; i < customFieldCount(); i++) {
+				builder.addCustomField(customFieldKey(i), customFieldValue(i));
+			}
+			return builder.build();
+		}
+	}
+
+}
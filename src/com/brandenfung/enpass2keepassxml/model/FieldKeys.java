@@ -0,0 +1,186 @@
+package com.brandenfung.enpass2keepassxml.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global symbol table of custom field keys. A key gets a small int id for the life
+ * of the JVM, and its String is kept once however many entries use it. Ids are handed
+ * out in order from 0, so they can index arrays directly.
+ *
+ * Keys are named by users, so the table is capped at {@link #MAX_KEYS} keys of at most
+ * {@link #MAX_KEY_LENGTH} chars, whatever a long running process converts. Keys past
+ * the cap get no id, {@link #NO_ID}, and are kept as plain Strings by the entries using
+ * them, see {@link CustomFieldMap#key(int)}.
+ *
+ * Looking up and creating ids is thread safe. Parsers that look up keys by region of
+ * a line, without creating a String for each one, use a {@link Lookup} of their own.
+ *
+ * @author Branden
+ *
+ */
+public final class FieldKeys {
+
+	/** Id of keys that are not in the table */
+	public static final int NO_ID = -1;
+	/** Most keys the table holds */
+	public static final int MAX_KEYS = 1 << 12;
+	/** Longest key the table holds */
+	public static final int MAX_KEY_LENGTH = 256;
+
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+	// Replaced when full, elements are only written while holding the class lock
+	private static volatile String[] keys = new String[64];
+	private static int count;
+	// Set once the table holds MAX_KEYS keys, so misses after that skip the lock
+	private static volatile boolean full;
+
+	private FieldKeys() {
+	}
+
+	/**
+	 * @return Id of the key, created if the key was not seen before, or {@link #NO_ID}
+	 * 			if the table is full or the key too long
+	 */
+	public static int id(String key) {
+		Integer id = ids.get(key);
+		if (id != null) {
+			return id;
+		}
+		return full || key.length() > MAX_KEY_LENGTH ? NO_ID : create(key);
+	}
+
+	private static synchronized int create(String key) {
+		Integer id = ids.get(key);
+		if (id != null) {
+			return id;
+		}
+		if (count == MAX_KEYS || key.length() > MAX_KEY_LENGTH) {
+			return NO_ID;
+		}
+		String[] current = keys;
+		if (count == current.length) {
+			current = Arrays.copyOf(current, current.length * 2);
+		}
+		current[count] = key;
+		keys = current;
+		ids.put(key, count);
+		full = count + 1 == MAX_KEYS;
+		return count++;
+	}
+
+	/**
+	 * @return Id of the key, or {@link #NO_ID} if it is not in the table
+	 */
+	public static int existingId(String key) {
+		Integer id = ids.get(key);
+		return id != null ? id : NO_ID;
+	}
+
+	/**
+	 * @return The key with the given id
+	 */
+	public static String key(int id) {
+		return keys[id];
+	}
+
+	/**
+	 * Finds ids of keys that are part of a larger char sequence, eg. a line of an
+	 * export, with no allocation once a key has been seen. Keeps a small open
+	 * addressing cache in front of the global table. Keys the table can not take are
+	 * cached too, up to a limit, so a full table does not cost a String per line.
+	 *
+	 * Not thread safe, each parser uses its own.
+	 */
+	public static final class Lookup {
+
+		// Keys without an id this cache remembers
+		private static final int MAX_MISSES = 1 << 10;
+
+		// Id + 1 of the key in each slot, -(index + 1) in misses of a key without an id,
+		// 0 when empty
+		private int[] slots = new int[64];
+		private int size;
+		private String[] misses = new String[0];
+		private int missCount;
+
+		/**
+		 * @return Id of the chars from start to end of the sequence, or {@link #NO_ID}
+		 * 			if they are not in the table and it can not take them
+		 */
+		public int id(CharSequence s, int start, int end) {
+			int hash = 0;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + s.charAt(i);
+			}
+			int mask = slots.length - 1;
+			int slot = mix(hash) & mask;
+			while (slots[slot] != 0) {
+				int value = slots[slot];
+				if (matches(slotKey(value), s, start, end)) {
+					return value > 0 ? value - 1 : NO_ID;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			if (end - start > MAX_KEY_LENGTH) {
+				return NO_ID;
+			}
+			String key = s.subSequence(start, end).toString();
+			int id = FieldKeys.id(key);
+			if (id != NO_ID) {
+				slots[slot] = id + 1;
+			} else if (missCount < MAX_MISSES) {
+				// The table never takes a key it refused once
+				if (missCount == misses.length) {
+					misses = Arrays.copyOf(misses, Math.max(16, missCount * 2));
+				}
+				misses[missCount++] = key;
+				slots[slot] = -missCount;
+			} else {
+				return NO_ID;
+			}
+			if (++size * 2 > slots.length) {
+				rehash();
+			}
+			return id;
+		}
+
+		private String slotKey(int value) {
+			return value > 0 ? key(value - 1) : misses[-value - 1];
+		}
+
+		private void rehash() {
+			int[] old = slots;
+			slots = new int[old.length * 2];
+			int mask = slots.length - 1;
+			for (int value : old) {
+				if (value != 0) {
+					int slot = mix(slotKey(value).hashCode()) & mask;
+					while (slots[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					slots[slot] = value;
+				}
+			}
+		}
+
+		// Spreads String.hashCode, whose low bits are mostly the last char
+		private static int mix(int hash) {
+			return hash ^ (hash >>> 16) ^ (hash >>> 7);
+		}
+
+		private static boolean matches(String key, CharSequence s, int start, int end) {
+			if (key.length() != end - start) {
+				return false;
+			}
+			for (int i = 0; i < key.length(); i++) {
+				if (key.charAt(i) != s.charAt(start + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
@@ -1,26 +1,31 @@
 package com.brandenfung.enpass2keepassxml.model;
 
-import com.brandenfung.enpass2keepassxml.KeePassXMLWriter;
+import java.util.UUID;
 
 /**
  * Immutable KeePass 1.x XML entry
  * 
+ * @see com.brandenfung.enpass2keepassxml.KeePassXML1StreamWriter
+ * 
  * @author Branden
  *
  */
 public class KeePassEntry1 {
+	/** Expiry time of entries whose password does not expire */
+	public static final String NEVER_EXPIRES = "2999-12-28T23:59:59";
+
 	public final String group;
 	public final String title;
 	public final String username;
 	public final String url;
 	public final String password;
 	public final String notes;
-	public final String uuid = KeePassXMLWriter.generateStringUUID(); // we can actually use any uuid KeePass ... 
-	public final String image;													 // .. can generate a new one on import
+	public final String uuid; // 32 hex digits, we can actually use any uuid KeePass ...
+	public final String image;	// .. can generate a new one on import
 	public final String creationTime; // on creation, creation, last mod, and last access time are the same
 	public final String lastModTime;
 	public final String lastAccessTime;
-	public final String expireTime = "2999-12-28T23:59:59"; // assume passwords don't expire
+	public final String expireTime = NEVER_EXPIRES; // assume passwords don't expire
 
 	public static class Builder {
 		private String group = "";
@@ -29,6 +34,7 @@ public class KeePassEntry1 {
 		private String url = "";
 		private String password = "";
 		private String notes = "";
+		private String uuid = "";
 		private String image = "";
 		private String time = "";
 
@@ -56,6 +62,13 @@ public class KeePassEntry1 {
 			this.notes = notes;
 		}
 
+		/**
+		 * @param uuid UUID as 32 hex digits, a random one is used if not set
+		 */
+		public void setUuid(String uuid) {
+			this.uuid = uuid;
+		}
+
 		public void setImage(String image) {
 			this.image = image;
 		}
@@ -66,18 +79,19 @@ public class KeePassEntry1 {
 
 		public KeePassEntry1 build() {
 			return new KeePassEntry1(this.group, this.title, this.username, this.url, 
-					this.password, this.notes, this.image, this.time);
+					this.password, this.notes, this.uuid, this.image, this.time);
 		}
 	}
 
 	private KeePassEntry1(String group, String title, String username, String url,
-			String password, String notes, String image, String time) {
+			String password, String notes, String uuid, String image, String time) {
 		this.group = group;
 		this.title = title;
 		this.username = username;
 		this.url = url;
 		this.password = password;
 		this.notes = notes;
+		this.uuid = uuid.isEmpty() ? UUID.randomUUID().toString().replace("-", "") : uuid;
 		this.image = image;
 		this.creationTime = time;
 		this.lastModTime = time;
@@ -0,0 +1,147 @@
+package com.brandenfung.enpass2keepassxml.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Secret field value, eg. a password or PIN, held off heap in direct memory instead
+ * of in a String. Strings cannot be wiped and the GC copies them around the heap, so
+ * a secret would otherwise linger in memory for as long as the heap is not reused.
+ * A SecretValue is written once from the line it was parsed from, read char by char
+ * by the serializers, and zeroed with {@link #wipe()} once the entry is written.
+ *
+ * Readable as a {@link CharSequence}, but {@link #toString()} does not reveal the
+ * value, so it cannot leak into logs or exception messages by accident. Use
+ * {@link #reveal()} where a String is really needed.
+ *
+ * Not thread safe, an entry is handed from thread to thread as a whole.
+ *
+ * @author Branden
+ *
+ */
+public final class SecretValue implements CharSequence {
+
+	private static final int SLAB_SIZE = 1 << 16;
+
+	// Two bytes per char, zeroed when wiped
+	private final ByteBuffer chars;
+	private final int length;
+	private boolean wiped;
+
+	private SecretValue(ByteBuffer chars, int length) {
+		this.chars = chars;
+		this.length = length;
+	}
+
+	/**
+	 * @return Off heap copy of the chars from start to end of the sequence
+	 */
+	public static SecretValue copyOf(CharSequence s, int start, int end) {
+		return copy(s, start, end, ByteBuffer.allocateDirect((end - start) * 2));
+	}
+
+	private static SecretValue copy(CharSequence s, int start, int end, ByteBuffer chars) {
+		for (int i = start; i < end; i++) {
+			chars.putChar((i - start) * 2, s.charAt(i));
+		}
+		return new SecretValue(chars, end - start);
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @throws IllegalStateException If the value was wiped
+	 */
+	@Override
+	public char charAt(int index) {
+		if (wiped) {
+			throw new IllegalStateException("Secret value was wiped");
+		}
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index " + index + ", length " + length);
+		}
+		return chars.getChar(index * 2);
+	}
+
+	/**
+	 * @return Off heap copy of part of the value
+	 */
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Range " + start + "-" + end + ", length " + length);
+		}
+		return copyOf(this, start, end);
+	}
+
+	/**
+	 * @return The value as a String on the heap, which can not be wiped
+	 */
+	public String reveal() {
+		StringBuilder s = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			s.append(charAt(i));
+		}
+		return s.toString();
+	}
+
+	/**
+	 * @return The value as a String on the heap, revealed if it is a SecretValue, whose
+	 * 			{@link #toString()} would only give a placeholder
+	 */
+	public static String reveal(CharSequence value) {
+		return value instanceof SecretValue ? ((SecretValue) value).reveal() : value.toString();
+	}
+
+	/**
+	 * Zeroes the value. Reading it afterwards throws {@link IllegalStateException}.
+	 */
+	public void wipe() {
+		for (int i = 0; i < length * 2; i++) {
+			chars.put(i, (byte) 0);
+		}
+		wiped = true;
+	}
+
+	public boolean isWiped() {
+		return wiped;
+	}
+
+	/**
+	 * @return A placeholder with the length, never the value
+	 */
+	@Override
+	public String toString() {
+		return wiped ? "SecretValue[wiped]" : "SecretValue[" + length + " chars]";
+	}
+
+	/**
+	 * Copies secrets into slices of large direct buffers, so parsing an export does not
+	 * allocate direct memory for every secret. A slab is freed once no value in it is
+	 * reachable. Not thread safe, each parser uses its own.
+	 */
+	public static final class Allocator {
+
+		private ByteBuffer slab = ByteBuffer.allocateDirect(0);
+
+		/**
+		 * @return Off heap copy of the chars from start to end of the sequence
+		 */
+		public SecretValue copyOf(CharSequence s, int start, int end) {
+			int size = (end - start) * 2;
+			if (size > SLAB_SIZE / 4) {
+				return SecretValue.copyOf(s, start, end);
+			}
+			if (size > slab.remaining()) {
+				slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+			}
+			ByteBuffer chars = slab.slice();
+			chars.limit(size);
+			slab.position(slab.position() + size);
+			return copy(s, start, end, chars);
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchConverterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testConvertAll() throws Exception {
+		File inputDir = folder.newFolder("exports");
+		File outputDir = folder.newFolder("xml");
+		for (String name : new String[] { "team-a.txt", "team-b.txt", "team-c.txt" }) {
+			Files.copy(Paths.get("resource/sample_enpass_export.txt"), new File(inputDir, name).toPath());
+		}
+		Files.write(new File(inputDir, "team-d.txt").toPath(), "Not an export\n".getBytes("UTF-8"));
+		Files.write(new File(inputDir, "readme.md").toPath(), "Title : Skipped\n".getBytes("UTF-8"));
+
+		List<File> inputs = BatchConverter.findExports(inputDir.getPath());
+		assertEquals(inputs.size(), 4);
+		assertEquals(BatchConverter.findExports(new File(inputDir, "team-[ab].txt").getPath()).size(), 2);
+
+		List<BatchConverter.Result> results = new BatchConverter(outputDir, ConversionOptions.DEFAULT, 2)
+				.convertAll(inputs);
+		assertEquals(results.size(), 4);
+		for (int i = 0; i < 3; i++) {
+			BatchConverter.Result result = results.get(i);
+			assertEquals(result.inputPath, inputs.get(i));
+			assertNull(result.error);
+			assertEquals(result.entries, 60);
+			assertTrue(result.outputPath.getName().contains(inputs.get(i).getName().replace(".txt", "")));
+			assertTrue(result.outputPath.isFile());
+		}
+		assertNotNull(results.get(3).error);
+		assertEquals(outputDir.list().length, 3);
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.brandenfung.enpass2keepassxml.ConversionMetrics.Stage;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class ConversionMetricsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testConvertWithMetrics() throws Exception {
+		File input = new File("resource/sample_enpass_export.txt");
+		long customFields = 0;
+		long multiLineNotes = 0;
+		for (EnpassEntry entry : EnpassFileParser.parseEnpassFile(input.getPath())) {
+			customFields += entry.customFields.size();
+			multiLineNotes += entry.note.contains("\n") ? 1 : 0;
+		}
+
+		ConversionOptions.Builder options = new ConversionOptions.Builder();
+		options.setTimeStages(true);
+		File output = new File(folder.getRoot(), "out.xml");
+
+		Path jfr = new File(folder.getRoot(), "conversion.jfr").toPath();
+		ConversionMetrics metrics;
+		try (Recording recording = new Recording()) {
+			recording.enable(ConversionEvent.class);
+			recording.enable(ConversionStageEvent.class);
+			recording.start();
+			metrics = Enpass2KeePass.convert(input, output, options.build());
+			recording.stop();
+			recording.dump(jfr);
+		}
+
+		assertEquals(metrics.entries(), 60);
+		assertEquals(metrics.customFields(), customFields);
+		assertEquals(metrics.multiLineNotes(), multiLineNotes);
+		assertTrue(multiLineNotes > 0);
+		assertEquals(metrics.inputBytes(), input.length());
+		assertEquals(metrics.outputBytes(), output.length());
+		assertEquals(metrics.xmlBytes(), output.length());
+		assertTrue(metrics.peakHeapBytes() > 0);
+		for (Stage stage : Stage.values()) {
+			assertTrue(stage.name(), metrics.stageNanos(stage) > 0);
+		}
+		assertTrue(metrics.toJson().contains("\"entries\":60,"));
+		assertTrue(metrics.toJson().contains("\"stageNanos\":{\"read\":"));
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(jfr);
+		int conversions = 0;
+		int stages = 0;
+		for (RecordedEvent event : events) {
+			if (event.getEventType().getName().equals("com.brandenfung.enpass2keepass.Conversion")) {
+				conversions++;
+				assertEquals(event.getLong("entries"), 60);
+			} else if (event.getEventType().getName().equals("com.brandenfung.enpass2keepass.ConversionStage")) {
+				stages++;
+			}
+		}
+		assertEquals(conversions, 1);
+		assertEquals(stages, Stage.values().length);
+	}
+
+}
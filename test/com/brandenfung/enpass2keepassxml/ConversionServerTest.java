@@ -0,0 +1,171 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+public class ConversionServerTest {
+
+	private static final long LIMIT = 1 << 20;
+
+	private ConversionServer server;
+	private byte[] export;
+	private byte[] expected;
+
+	@Before
+	public void setUp() throws Exception {
+		String filepath = "resource/sample_enpass_export.txt";
+		export = Files.readAllBytes(Paths.get(filepath));
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(xml, ContentUUIDGenerator.INSTANCE)) {
+			for (EnpassEntry entry : EnpassFileParser.parseEnpassFile(filepath)) {
+				writer.writeEntry(entry);
+			}
+		}
+		expected = xml.toByteArray();
+
+		ConversionOptions.Builder options = new ConversionOptions.Builder();
+		options.setUUIDGenerator(ContentUUIDGenerator.INSTANCE);
+		server = new ConversionServer(0, options.build(), 2, LIMIT);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+	}
+
+	@Test
+	public void testConvert() throws Exception {
+		// Several times, so the reused buffers are exercised
+		for (int i = 0; i < 3; i++) {
+			HttpURLConnection connection = post(export, false);
+			assertEquals(connection.getResponseCode(), 200);
+			assertEquals(connection.getContentType(), "application/xml; charset=utf-8");
+			assertArrayEquals(readAll(connection.getInputStream()), expected);
+		}
+
+		// Without a Content-Length
+		HttpURLConnection connection = post(export, true);
+		assertEquals(connection.getResponseCode(), 200);
+		assertArrayEquals(readAll(connection.getInputStream()), expected);
+	}
+
+	@Test
+	public void testConcurrentRequests() throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<byte[]>> responses = new ArrayList<>();
+			for (int i = 0; i < 12; i++) {
+				responses.add(clients.submit(() -> readAll(post(export, false).getInputStream())));
+			}
+			for (Future<byte[]> response : responses) {
+				assertArrayEquals(response.get(), expected);
+			}
+		} finally {
+			clients.shutdown();
+		}
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		byte[] large = new byte[(int) LIMIT + 1];
+		assertEquals(post(large, false).getResponseCode(), 413);
+		assertEquals(post(large, true).getResponseCode(), 413);
+
+		HttpURLConnection broken = post("Title : a\r\nUsername : b\r\n\r\nUrl : c\r\n".getBytes("UTF-8"), false);
+		assertEquals(broken.getResponseCode(), 400);
+
+		// HttpURLConnection always sends a valid Content-Length
+		try (Socket socket = new Socket("localhost", server.port())) {
+			socket.getOutputStream().write(("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 12x\r\n" +
+					"Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			String response = new String(readAll(socket.getInputStream()), StandardCharsets.US_ASCII);
+			assertTrue(response.startsWith("HTTP/1.1 400 "));
+		}
+
+		HttpURLConnection get = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/").openConnection();
+		assertEquals(get.getResponseCode(), 405);
+
+		// Still converts after the failures
+		assertArrayEquals(readAll(post(export, false).getInputStream()), expected);
+	}
+
+	@Test
+	public void testOutputLimit() throws Exception {
+		server.close();
+		// Room for the export, but not for the larger XML
+		server = new ConversionServer(0, ConversionOptions.DEFAULT, 1, export.length);
+		server.start();
+		assertEquals(post(export, false).getResponseCode(), 413);
+	}
+
+	@Test
+	public void testKdbxOutputLimit() throws Exception {
+		KdbxKey.Builder key = new KdbxKey.Builder();
+		key.setPassword("password".toCharArray());
+		key.setTransformRounds(1000);
+		ConversionOptions.Builder options = new ConversionOptions.Builder();
+		options.setUUIDGenerator(ContentUUIDGenerator.INSTANCE);
+		options.setKdbxKey(key.build());
+		byte[] small = "Title : a\r\nUsername : b\r\n".getBytes(StandardCharsets.UTF_8);
+
+		server.close();
+		server = new ConversionServer(0, options.build(), 1, LIMIT);
+		server.start();
+		HttpURLConnection connection = post(small, false);
+		assertEquals(connection.getResponseCode(), 200);
+		int size = readAll(connection.getInputStream()).length;
+
+		// The KDBX payload is only written by its pipeline thread when the stream is closed
+		server.close();
+		server = new ConversionServer(0, options.build(), 1, size - 1);
+		server.start();
+		assertEquals(post(small, false).getResponseCode(), 413);
+	}
+
+	private HttpURLConnection post(byte[] body, boolean chunked) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/")
+				.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		if (chunked) {
+			connection.setChunkedStreamingMode(4096);
+		} else {
+			connection.setFixedLengthStreamingMode(body.length);
+		}
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body);
+		} catch (IOException e) {
+			// The server may answer and close before the whole body is sent
+		}
+		return connection;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try (InputStream input = in) {
+			return input.readAllBytes();
+		}
+	}
+
+}
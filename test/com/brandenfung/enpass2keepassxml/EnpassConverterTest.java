@@ -0,0 +1,259 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.After;
+import org.junit.Test;
+import org.xml.sax.SAXParseException;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+public class EnpassConverterTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(1);
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConvert() throws Exception {
+		String filepath = "resource/sample_enpass_export.txt";
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(expected)) {
+			for (EnpassEntry entry : EnpassFileParser.parseEnpassFile(filepath)) {
+				writer.writeEntry(entry);
+			}
+		}
+
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		EnpassConverter.Conversion conversion = new EnpassConverter(executor, ConversionOptions.DEFAULT)
+				.convert(new FileInputStream(filepath), xml);
+		AtomicLong lastEntries = new AtomicLong();
+		CountDownLatch completed = new CountDownLatch(1);
+		conversion.progress().subscribe(new Flow.Subscriber<EnpassConverter.Progress>() {
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			public void onNext(EnpassConverter.Progress progress) {
+				lastEntries.set(progress.entries);
+			}
+
+			public void onError(Throwable throwable) {
+			}
+
+			public void onComplete() {
+				completed.countDown();
+			}
+		});
+
+		ConversionMetrics metrics = conversion.result().get(10, TimeUnit.SECONDS);
+		assertEquals(metrics.entries(), 60);
+		assertEquals(metrics.outputBytes(), xml.size());
+		assertEquals(KeePassXML2StreamWriterTest.withoutUUIDs(xml), KeePassXML2StreamWriterTest.withoutUUIDs(expected));
+		assertTrue(completed.await(10, TimeUnit.SECONDS));
+		assertTrue(lastEntries.get() <= 60);
+	}
+
+	@Test
+	public void testSharedThread() throws Exception {
+		byte[] export = generate(1 << 20);
+
+		// Many conversions on one thread must all finish
+		EnpassConverter converter = new EnpassConverter(executor, ConversionOptions.DEFAULT);
+		List<EnpassConverter.Conversion> conversions = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			conversions.add(converter.convert(new ByteArrayInputStream(export), new ByteArrayOutputStream()));
+		}
+		long entries = conversions.get(0).result().get(30, TimeUnit.SECONDS).entries();
+		assertTrue(entries > 1000);
+		for (EnpassConverter.Conversion conversion : conversions) {
+			assertEquals(conversion.result().get(30, TimeUnit.SECONDS).entries(), entries);
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch closed = new CountDownLatch(1);
+		OutputStream slow = new OutputStream() {
+			public void write(int b) {
+				throw new UnsupportedOperationException();
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				writing.countDown();
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+
+			public void close() {
+				closed.countDown();
+			}
+		};
+
+		EnpassConverter.Conversion conversion = new EnpassConverter(executor, ConversionOptions.DEFAULT)
+				.convert(new ByteArrayInputStream(generate(16 << 20)), slow);
+		assertTrue(writing.await(10, TimeUnit.SECONDS));
+		assertTrue(conversion.cancel());
+		assertTrue(closed.await(10, TimeUnit.SECONDS));
+		try {
+			conversion.result().get();
+			fail();
+		} catch (CancellationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCancelledOutputIsIncomplete() throws Exception {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch closed = new CountDownLatch(1);
+		ByteArrayOutputStream slow = new ByteArrayOutputStream() {
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				super.write(b, off, len);
+				writing.countDown();
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void close() {
+				closed.countDown();
+			}
+		};
+
+		EnpassConverter.Conversion conversion = new EnpassConverter(executor, ConversionOptions.DEFAULT)
+				.convert(new ByteArrayInputStream(generate(4 << 20)), slow);
+		assertTrue(writing.await(10, TimeUnit.SECONDS));
+		assertTrue(conversion.cancel());
+		assertTrue(closed.await(10, TimeUnit.SECONDS));
+		try {
+			DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(new ByteArrayInputStream(slow.toByteArray()));
+			fail("Cancelled conversion wrote a complete document");
+		} catch (SAXParseException e) {
+			// expected, the closing tags are missing
+		}
+	}
+
+	@Test
+	public void testParseError() throws Exception {
+		byte[] export = "Title : Test\nnot a field\n".getBytes("UTF-8");
+		EnpassConverter.Conversion conversion = new EnpassConverter(executor, ConversionOptions.DEFAULT)
+				.convert(new ByteArrayInputStream(export), new ByteArrayOutputStream());
+		try {
+			conversion.result().get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof EnpassFileParserException);
+		}
+	}
+
+	@Test
+	public void testFailureClosesStreamsOnPool() throws Exception {
+		// The parser fails after the writer has started, while it may be draining the queue
+		ByteArrayOutputStream export = new ByteArrayOutputStream();
+		export.write(generate(256 << 10));
+		export.write("Title : Test\nnot a field\n".getBytes("UTF-8"));
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			EnpassConverter converter = new EnpassConverter(pool, ConversionOptions.DEFAULT);
+			for (int i = 0; i < 50; i++) {
+				CountDownLatch inputClosed = new CountDownLatch(1);
+				CountDownLatch outputClosed = new CountDownLatch(1);
+				EnpassConverter.Conversion conversion = converter.convert(
+						closeCounting(export.toByteArray(), inputClosed), closeCounting(outputClosed));
+				try {
+					conversion.result().get(10, TimeUnit.SECONDS);
+					fail();
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof EnpassFileParserException);
+				}
+				assertTrue(inputClosed.await(10, TimeUnit.SECONDS));
+				assertTrue(outputClosed.await(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testCancelClosesStreamsOnPool() throws Exception {
+		byte[] export = generate(1 << 20);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			EnpassConverter converter = new EnpassConverter(pool, ConversionOptions.DEFAULT);
+			for (int i = 0; i < 50; i++) {
+				CountDownLatch inputClosed = new CountDownLatch(1);
+				CountDownLatch outputClosed = new CountDownLatch(1);
+				EnpassConverter.Conversion conversion = converter.convert(
+						closeCounting(export, inputClosed), closeCounting(outputClosed));
+				// Cancelled at different points of the conversion
+				Thread.sleep(i % 5);
+				conversion.cancel();
+				assertTrue(inputClosed.await(10, TimeUnit.SECONDS));
+				assertTrue(outputClosed.await(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static InputStream closeCounting(byte[] bytes, CountDownLatch closed) {
+		return new ByteArrayInputStream(bytes) {
+			@Override
+			public void close() {
+				closed.countDown();
+			}
+		};
+	}
+
+	private static OutputStream closeCounting(CountDownLatch closed) {
+		return new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed.countDown();
+			}
+		};
+	}
+
+	private static byte[] generate(long bytes) throws IOException {
+		EnpassExportGenerator.Builder generator = new EnpassExportGenerator.Builder();
+		generator.setTargetBytes(bytes);
+		ByteArrayOutputStream export = new ByteArrayOutputStream();
+		generator.build().generate(export);
+		return export.toByteArray();
+	}
+
+}
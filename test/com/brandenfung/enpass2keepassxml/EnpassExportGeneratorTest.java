@@ -0,0 +1,55 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+public class EnpassExportGeneratorTest {
+
+	@Test
+	public void testSameSeedSameOutput() throws Exception {
+		assertArrayEquals(generate(42), generate(42));
+		assertFalse(Arrays.equals(generate(42), generate(43)));
+	}
+
+	@Test
+	public void testGeneratedExportParses() throws Exception {
+		EnpassExportGenerator.Builder builder = new EnpassExportGenerator.Builder();
+		builder.setSeed(7);
+		builder.setTargetBytes(256 * 1024);
+		builder.setMix("login=5,card=2,note=2,identity=1");
+		builder.setLineSeparator("\r\n");
+
+		File export = File.createTempFile("enpass_generated", ".txt");
+		export.deleteOnExit();
+		long expected;
+		try (OutputStream out = new FileOutputStream(export)) {
+			expected = builder.build().generate(out);
+		}
+		assertTrue(export.length() >= 256 * 1024);
+
+		ArrayList<EnpassEntry> entries = EnpassFileParser.parseEnpassFile(export.getAbsolutePath());
+		assertEquals(entries.size(), expected);
+		assertTrue(entries.get(0).title.startsWith("Login") || entries.get(0).title.startsWith("Card") ||
+				entries.get(0).title.startsWith("Note") || entries.get(0).title.startsWith("Identity"));
+	}
+
+	private static byte[] generate(long seed) throws Exception {
+		EnpassExportGenerator.Builder builder = new EnpassExportGenerator.Builder();
+		builder.setSeed(seed);
+		builder.setTargetBytes(64 * 1024);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		builder.build().generate(out);
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class EnpassFieldClassifierTest {
+
+	@Test
+	public void testSeparatorIndex() {
+		assertEquals(EnpassFieldClassifier.separatorIndex("Name : John"), 4);
+		assertEquals(EnpassFieldClassifier.separatorIndex("Name : John : Jim : Title"), 4);
+		assertEquals(EnpassFieldClassifier.separatorIndex("Name\t:\tJohn"), 4);
+		assertEquals(EnpassFieldClassifier.separatorIndex("Name : "), 4);
+		assertEquals(EnpassFieldClassifier.separatorIndex("Name: John"), -1);
+		assertEquals(EnpassFieldClassifier.separatorIndex("Blood Type: O"), -1);
+		assertEquals(EnpassFieldClassifier.separatorIndex("Name :"), -1);
+		assertEquals(EnpassFieldClassifier.separatorIndex(": x"), -1);
+		assertEquals(EnpassFieldClassifier.separatorIndex(""), -1);
+	}
+
+	@Test
+	public void testClassify() {
+		assertEquals(classify("Title : Library"), EnpassFieldClassifier.TITLE);
+		assertEquals(classify("Username : john"), EnpassFieldClassifier.USERNAME);
+		assertEquals(classify("Username : "), EnpassFieldClassifier.USERNAME);
+		assertEquals(classify("Password : secret"), EnpassFieldClassifier.PASSWORD);
+		assertEquals(classify("Url : www.google.ca"), EnpassFieldClassifier.URL);
+		assertEquals(classify("Note : some note"), EnpassFieldClassifier.NOTE);
+
+		assertEquals(classify("2Title : Library"), EnpassFieldClassifier.CUSTOM);
+		assertEquals(classify("Titles : Library"), EnpassFieldClassifier.CUSTOM);
+		assertEquals(classify("Name : Title : Library"), EnpassFieldClassifier.CUSTOM);
+		assertEquals(classify("Login password : x"), EnpassFieldClassifier.CUSTOM);
+		assertEquals(classify("Passcode : 1234"), EnpassFieldClassifier.CUSTOM);
+		assertEquals(classify("Title\t:\tLibrary"), EnpassFieldClassifier.CUSTOM);
+		assertEquals(classify("Library"), EnpassFieldClassifier.CUSTOM);
+	}
+
+	@Test
+	public void testKeyValue() {
+		String line = "Security question : What : is a dog?";
+		int separator = EnpassFieldClassifier.separatorIndex(line);
+		assertEquals(EnpassFieldClassifier.key(line, separator), "Security question");
+		assertEquals(EnpassFieldClassifier.value(line, separator), "What : is a dog?");
+	}
+
+	private static int classify(String line) {
+		return EnpassFieldClassifier.classify(line, EnpassFieldClassifier.separatorIndex(line));
+	}
+
+	@Test
+	public void testIsSecretKey() {
+		assertTrue(EnpassFieldClassifier.isSecretKey("PIN"));
+		assertTrue(EnpassFieldClassifier.isSecretKey("Login password"));
+		assertTrue(EnpassFieldClassifier.isSecretKey("CVC"));
+		assertTrue(EnpassFieldClassifier.isSecretKey("Security answer 1"));
+		assertTrue(EnpassFieldClassifier.isSecretKey("Card security code"));
+		assertFalse(EnpassFieldClassifier.isSecretKey("Shipping address"));
+		assertFalse(EnpassFieldClassifier.isSecretKey("Expiry date"));
+		assertFalse(EnpassFieldClassifier.isSecretKey("Passwords changed on"));
+	}
+
+}
@@ -2,7 +2,13 @@ package com.brandenfung.enpass2keepassxml;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
@@ -91,6 +97,97 @@ public class EnpassFileParserTest {
 		}
 	}
 
+	@Test
+	public void testParseEnpassFileParallel() throws Exception {
+		String[] filepaths = { "resource/sample_enpass_export.txt", "resource/test_sample1.txt" };
+		for (String filepath : filepaths) {
+			assertSameEntries(EnpassFileParser.parseEnpassFileParallel(filepath), 
+					EnpassFileParser.parseEnpassFile(filepath));
+		}
+
+		// Large enough to be split into several chunks
+		byte[] sample = Files.readAllBytes(Paths.get("resource/test_sample1.txt"));
+		File large = File.createTempFile("enpass_large", ".txt");
+		large.deleteOnExit();
+		try (FileOutputStream out = new FileOutputStream(large)) {
+			out.write("Orphan : field\n".getBytes("UTF-8"));
+			for (int i = 0; i < 8 * 1024 * 1024 / sample.length; i++) {
+				out.write(sample);
+			}
+		}
+		ArrayList<EnpassEntry> parallel = EnpassFileParser.parseEnpassFileParallel(large.getAbsolutePath());
+		ArrayList<EnpassEntry> sequential = EnpassFileParser.parseEnpassFile(large.getAbsolutePath());
+		assertSameEntries(parallel, sequential);
+		assertEquals(parallel.get(0).customFields.get("Orphan"), "field");
+	}
+
+	@Test
+	public void testParseLargeRecord() throws Exception {
+		// A record larger than the chunks, among records that fit
+		byte[] sample = Files.readAllBytes(Paths.get("resource/test_sample1.txt"));
+		File large = File.createTempFile("enpass_record", ".txt");
+		large.deleteOnExit();
+		// Few long lines, since notes are joined by copying
+		char[] line = new char[64 * 1024];
+		Arrays.fill(line, 'a');
+		StringBuilder note = new StringBuilder("Title : Large\nNote : ");
+		while (note.length() < 3 << 20) {
+			note.append(line).append('\n');
+		}
+		try (FileOutputStream out = new FileOutputStream(large)) {
+			for (int i = 0; i < 1024 * 1024 / sample.length; i++) {
+				out.write(sample);
+			}
+			out.write(note.toString().getBytes("UTF-8"));
+			out.write(sample);
+		}
+		ArrayList<EnpassEntry> parallel = MappedEnpassFileParser.parse(large.toPath(), 
+				ForkJoinPool.commonPool(), 256 * 1024);
+		assertSameEntries(parallel, EnpassFileParser.parseEnpassFile(large.getAbsolutePath()));
+	}
+
+	@Test
+	public void testParseEncodings() throws Exception {
+		String filepath = "resource/sample_enpass_export.txt";
+		String text = new String(Files.readAllBytes(Paths.get(filepath)), "UTF-8") + "Note : caf\u00e9 \ud83d\udd11";
+		File utf8 = File.createTempFile("enpass_utf8", ".txt");
+		utf8.deleteOnExit();
+		Files.write(utf8.toPath(), text.getBytes("UTF-8"));
+		ArrayList<EnpassEntry> expected = EnpassFileParser.parseEnpassFile(utf8.getAbsolutePath());
+		assertEquals(expected.get(expected.size() - 1).note, "caf\u00e9 \ud83d\udd11");
+
+		byte[][] encodings = {
+				concat(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF }, text.getBytes("UTF-8")),
+				concat(new byte[] { (byte) 0xFF, (byte) 0xFE }, text.getBytes("UTF-16LE")),
+				concat(new byte[] { (byte) 0xFE, (byte) 0xFF }, text.getBytes("UTF-16BE")),
+				text.getBytes("UTF-16LE") };
+		for (byte[] encoded : encodings) {
+			File file = File.createTempFile("enpass_encoded", ".txt");
+			file.deleteOnExit();
+			Files.write(file.toPath(), encoded);
+			assertSameEntries(EnpassFileParser.parseEnpassFile(file.getAbsolutePath()), expected);
+			assertSameEntries(EnpassFileParser.parseEnpassFileParallel(file.getAbsolutePath()), expected);
+		}
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] c = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+
+	private static void assertSameEntries(ArrayList<EnpassEntry> actual, ArrayList<EnpassEntry> expected) {
+		assertEquals(actual.size(), expected.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(actual.get(i).title, expected.get(i).title);
+			assertEquals(actual.get(i).username, expected.get(i).username);
+			assertEquals(actual.get(i).password, expected.get(i).password);
+			assertEquals(actual.get(i).url, expected.get(i).url);
+			assertEquals(actual.get(i).note, expected.get(i).note);
+			assertEquals(actual.get(i).customFields, expected.get(i).customFields);
+		}
+	}
+
 	@Test
 	public void testContainsKey() {
 		assertTrue(EnpassFileParser.containsKey("^(Title : )", "Title : Library"));
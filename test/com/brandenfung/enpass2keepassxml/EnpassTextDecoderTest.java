@@ -0,0 +1,72 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EnpassTextDecoderTest {
+
+	@Test
+	public void testDecodeAcrossBuffers() throws Exception {
+		// Mostly ASCII with multi-byte chars and surrogate pairs cut by every block boundary
+		StringBuilder text = new StringBuilder();
+		Random random = new Random(42);
+		String[] pieces = { "Title : ", "Login", "\r\n", "é", "中文", "🔑", " : " };
+		while (text.length() < 300 * 1024) {
+			text.append(pieces[random.nextInt(pieces.length)]);
+		}
+		String expected = text.toString();
+
+		for (String charset : new String[] { "UTF-8", "UTF-16LE", "UTF-16BE" }) {
+			byte[] bytes = expected.getBytes(charset);
+			assertEquals(read(new EnpassTextDecoder(new ByteArrayInputStream(bytes)), 8192), expected);
+			assertEquals(read(new EnpassTextDecoder(new ByteArrayInputStream(bytes)), 1), expected);
+			assertEquals(EnpassTextDecoder.decode(ByteBuffer.wrap(bytes), Charset.forName(charset))
+					.toString(), expected);
+		}
+	}
+
+	@Test
+	public void testDetectCharset() throws Exception {
+		assertEquals(charset(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'T' }), StandardCharsets.UTF_8);
+		assertEquals(charset(new byte[] { (byte) 0xFF, (byte) 0xFE, 'T', 0 }), StandardCharsets.UTF_16LE);
+		assertEquals(charset(new byte[] { (byte) 0xFE, (byte) 0xFF, 0, 'T' }), StandardCharsets.UTF_16BE);
+		assertEquals(charset(new byte[] { 'T', 0 }), StandardCharsets.UTF_16LE);
+		assertEquals(charset(new byte[] { 0, 'T' }), StandardCharsets.UTF_16BE);
+		assertEquals(charset(new byte[] { 'T', 'i' }), StandardCharsets.UTF_8);
+		assertEquals(charset(new byte[0]), StandardCharsets.UTF_8);
+
+		byte[] bom = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'O', 'K' };
+		assertEquals(read(new EnpassTextDecoder(new ByteArrayInputStream(bom)), 16), "OK");
+	}
+
+	@Test
+	public void testMalformedInput() throws Exception {
+		byte[] bytes = { 'a', (byte) 0xC3, 'b', (byte) 0xE2, (byte) 0x82 };
+		assertEquals(read(new EnpassTextDecoder(new ByteArrayInputStream(bytes)), 16), "a�b�");
+	}
+
+	private static Charset charset(byte[] bytes) throws IOException {
+		return new EnpassTextDecoder(new ByteArrayInputStream(bytes)).charset();
+	}
+
+	private static String read(Reader reader, int size) throws IOException {
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[size];
+		int n;
+		while ((n = reader.read(buffer, 0, size)) >= 0) {
+			text.append(buffer, 0, n);
+		}
+		reader.close();
+		return text.toString();
+	}
+
+}
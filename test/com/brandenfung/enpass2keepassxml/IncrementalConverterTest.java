@@ -0,0 +1,121 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IncrementalConverterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testConvertDelta() throws Exception {
+		String export = new String(Files.readAllBytes(Paths.get("resource/sample_enpass_export.txt")), "UTF-8");
+		File state = new File(folder.getRoot(), "state");
+
+		IncrementalConverter.Result first = convert(state, export, new ByteArrayOutputStream());
+		assertEquals(first.added, 60);
+		assertEquals(first.changed + first.removed + first.unchanged, 0);
+
+		ByteArrayOutputStream unchangedXml = new ByteArrayOutputStream();
+		IncrementalConverter.Result second = convert(state, export, unchangedXml);
+		assertEquals(second.unchanged, 60);
+		assertEquals(second.added + second.changed + second.removed, 0);
+		assertFalse(unchangedXml.toString("UTF-8").contains("<Entry>"));
+
+		// Change one entry, rename another (removed and added)
+		String modified = export
+				.replaceFirst("Title : Login1\r\n", "Title : Login1\r\nRecovery code : Pet\r\n")
+				.replaceFirst("Title : Password1\r\n", "Title : Password2\r\n");
+		ByteArrayOutputStream deltaXml = new ByteArrayOutputStream();
+		IncrementalConverter.Result third = convert(state, modified, deltaXml);
+		assertEquals(third.added, 1);
+		assertEquals(third.changed, 1);
+		assertEquals(third.removed, 1);
+		assertEquals(third.unchanged, 58);
+
+		String xml = deltaXml.toString("UTF-8");
+		assertTrue(xml.contains("<Value>Pet</Value>"));
+		assertTrue(xml.contains("<Value>Password2</Value>"));
+		assertTrue(xml.contains("<DeletedObjects><DeletedObject>"));
+	}
+
+	@Test
+	public void testSortByIds() {
+		Random random = new Random(42);
+		for (int count : new int[] { 0, 1, 2, 7, 1000 }) {
+			long[] ids = new long[count + 3];
+			long[] fingerprints = new long[count + 3];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = random.nextLong();
+				fingerprints[i] = ~ids[i];
+			}
+			long[] expected = Arrays.copyOf(ids, count);
+			Arrays.sort(expected);
+			long[] beyond = Arrays.copyOfRange(ids, count, ids.length);
+
+			IncrementalConverter.sortByIds(ids, fingerprints, count);
+			assertArrayEquals(Arrays.copyOf(ids, count), expected);
+			assertArrayEquals(Arrays.copyOfRange(ids, count, ids.length), beyond);
+			for (int i = 0; i < ids.length; i++) {
+				assertEquals(fingerprints[i], ~ids[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testCorruptStateFile() throws Exception {
+		File state = new File(folder.getRoot(), "state");
+		convert(state, "Title : a\r\nUsername : b\r\n", new ByteArrayOutputStream());
+
+		for (int count : new int[] { -1, Integer.MAX_VALUE, 2 }) {
+			try (RandomAccessFile file = new RandomAccessFile(state, "rw")) {
+				file.seek(8);
+				file.writeInt(count);
+			}
+			try {
+				new IncrementalConverter(state);
+				fail("Corrupt state file read");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("invalid entry count " + count));
+			}
+		}
+	}
+
+	@Test
+	public void testFailedRunDeletesOutput() throws Exception {
+		File input = folder.newFile("broken.txt");
+		Files.write(input.toPath(), "Title : a\r\nUsername : b\r\n\r\nUrl : c\r\n".getBytes("UTF-8"));
+		File outputDir = folder.newFolder("out");
+		File state = new File(folder.getRoot(), "state");
+		try {
+			Enpass2KeePass.incrementalKeePassXml(input, outputDir, state, ConversionOptions.DEFAULT);
+			fail("Broken export converted");
+		} catch (EnpassFileParser.EnpassFileParserException e) {
+			assertEquals(outputDir.list().length, 0);
+			assertFalse(state.exists());
+		}
+	}
+
+	private static IncrementalConverter.Result convert(File state, String export, 
+			ByteArrayOutputStream xml) throws Exception {
+		IncrementalConverter converter = new IncrementalConverter(state);
+		try (EnpassEntryReader reader = new EnpassEntryReader(new StringReader(export))) {
+			return converter.convert(reader, new KeePassXML2StreamWriter(xml, ContentUUIDGenerator.INSTANCE), "test");
+		}
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+public class KdbxOutputStreamTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteKdbx() throws Exception {
+		File keyFile = folder.newFile("key.hex");
+		Files.write(keyFile.toPath(), "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff"
+				.getBytes(StandardCharsets.US_ASCII));
+
+		KdbxKey.Builder builder = new KdbxKey.Builder();
+		builder.setPassword("pässword".toCharArray());
+		builder.setKeyFile(keyFile);
+		builder.setTransformRounds(1000);
+		KdbxKey key = builder.build();
+
+		// Large enough for the compressed payload to span several HMAC blocks
+		EnpassExportGenerator.Builder generator = new EnpassExportGenerator.Builder();
+		generator.setTargetBytes(4 << 20);
+		ByteArrayOutputStream export = new ByteArrayOutputStream();
+		generator.build().generate(export);
+
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		ByteArrayOutputStream kdbx = new ByteArrayOutputStream();
+		try (EnpassEntryReader reader = new EnpassEntryReader(new StringReader(export.toString("UTF-8")));
+				KeePassXML2StreamWriter xmlWriter = new KeePassXML2StreamWriter(xml);
+				KeePassXML2StreamWriter kdbxWriter = new KeePassXML2StreamWriter(new KdbxOutputStream(kdbx, key))) {
+			EnpassEntry entry;
+			while ((entry = reader.readEntry()) != null) {
+				kdbxWriter.writeEntry(entry);
+				xmlWriter.writeEntry(entry);
+			}
+		}
+		assertTrue(kdbx.size() > 2 * HmacBlockOutputStream.BLOCK_SIZE);
+
+		byte[] keyFileKey = new byte[32];
+		for (int i = 0; i < keyFileKey.length; i++) {
+			keyFileKey[i] = (byte) (0x11 * (i % 16));
+		}
+		byte[] expectedComposite = KdbxKey.digest("SHA-256").digest(
+				concat(KdbxKey.sha256("pässword".getBytes(StandardCharsets.UTF_8)), keyFileKey));
+		assertArrayEquals(key.compositeKey(), expectedComposite);
+
+		String decrypted = new String(decrypt(kdbx.toByteArray(), expectedComposite), StandardCharsets.UTF_8);
+		assertEquals(KeePassXML2StreamWriterTest.withoutUUIDs(toStream(decrypted)),
+				KeePassXML2StreamWriterTest.withoutUUIDs(xml));
+	}
+
+	@Test
+	public void testFailedConversionDeletesOutput() throws Exception {
+		File input = folder.newFile("broken.txt");
+		Files.write(input.toPath(), "Title : a\r\nUsername : b\r\n\r\nUrl : c\r\n".getBytes(StandardCharsets.UTF_8));
+
+		KdbxKey.Builder key = new KdbxKey.Builder();
+		key.setPassword("password".toCharArray());
+		key.setTransformRounds(1000);
+		ConversionOptions.Builder options = new ConversionOptions.Builder();
+		options.setKdbxKey(key.build());
+		for (boolean pipelined : new boolean[] { false, true }) {
+			options.setPipelined(pipelined);
+			File output = new File(folder.getRoot(), "broken-" + pipelined + ".kdbx");
+			try {
+				Enpass2KeePass.convert(input, output, options.build());
+				fail("Broken export converted");
+			} catch (EnpassFileParser.EnpassFileParserException e) {
+				assertFalse(output.exists());
+			}
+		}
+	}
+
+	@Test
+	public void testAbortLeavesDatabaseUnfinished() throws Exception {
+		KdbxKey.Builder builder = new KdbxKey.Builder();
+		builder.setPassword("password".toCharArray());
+		builder.setTransformRounds(1000);
+		KdbxKey key = builder.build();
+
+		boolean[] closed = new boolean[1];
+		ByteArrayOutputStream kdbx = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		KdbxOutputStream out = new KdbxOutputStream(kdbx, key);
+		out.write(new byte[3 * HmacBlockOutputStream.BLOCK_SIZE]);
+		out.abort();
+		assertTrue(closed[0]);
+		try {
+			out.write(0);
+			fail("Written after abort");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			decrypt(kdbx.toByteArray(), key.compositeKey());
+			fail("Aborted database is complete");
+		} catch (BufferUnderflowException e) {
+			// expected, the final block is missing
+		}
+	}
+
+	@Test
+	public void testKeyFileEntitiesNotResolved() throws Exception {
+		File data = folder.newFile("data.txt");
+		Files.write(data.toPath(), "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff"
+				.getBytes(StandardCharsets.US_ASCII));
+		byte[] contents = ("<?xml version=\"1.0\"?>\n"
+				+ "<!DOCTYPE KeyFile [<!ENTITY data SYSTEM \"" + data.toURI() + "\">]>\n"
+				+ "<KeyFile><Meta><Version>2.0</Version></Meta><Key><Data>&data;</Data></Key></KeyFile>")
+				.getBytes(StandardCharsets.UTF_8);
+		File keyFile = folder.newFile("key.keyx");
+		Files.write(keyFile.toPath(), contents);
+
+		KdbxKey.Builder builder = new KdbxKey.Builder();
+		builder.setKeyFile(keyFile);
+		// Not read as a key file, so hashed like any other file
+		assertArrayEquals(builder.build().compositeKey(), KdbxKey.sha256(KdbxKey.sha256(contents)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testKeyRequired() {
+		KdbxKey.Builder builder = new KdbxKey.Builder();
+		builder.setPassword(new char[0]);
+		builder.build();
+	}
+
+	/**
+	 * Reads a KDBX 4 file written with AES-KDF, AES-256 and gzip back to its inner XML,
+	 * checking every hash on the way.
+	 */
+	private static byte[] decrypt(byte[] file, byte[] compositeKey) throws Exception {
+		ByteBuffer in = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(in.getInt(), 0x9AA2D903);
+		assertEquals(in.getInt(), 0xB54BFB67);
+		assertEquals(in.getInt(), 0x00040000);
+
+		byte[] masterSeed = null;
+		byte[] iv = null;
+		byte[] kdfParameters = null;
+		int id;
+		do {
+			id = in.get();
+			byte[] data = new byte[in.getInt()];
+			in.get(data);
+			if (id == 3) {
+				assertEquals(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getInt(), 1);
+			} else if (id == 4) {
+				masterSeed = data;
+			} else if (id == 7) {
+				iv = data;
+			} else if (id == 11) {
+				kdfParameters = data;
+			}
+		} while (id != 0);
+		byte[] header = Arrays.copyOf(file, in.position());
+
+		ByteBuffer kdf = ByteBuffer.wrap(kdfParameters).order(ByteOrder.LITTLE_ENDIAN);
+		kdf.getShort();
+		long rounds = 0;
+		byte[] kdfSeed = null;
+		while (kdf.get() != 0) {
+			byte[] name = new byte[kdf.getInt()];
+			kdf.get(name);
+			byte[] value = new byte[kdf.getInt()];
+			kdf.get(value);
+			if (new String(name, StandardCharsets.UTF_8).equals("R")) {
+				rounds = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getLong();
+			} else if (new String(name, StandardCharsets.UTF_8).equals("S")) {
+				kdfSeed = value;
+			}
+		}
+		assertEquals(rounds, 1000);
+
+		byte[] transformedKey = KdbxOutputStream.transformKey(compositeKey, kdfSeed, rounds);
+		byte[] hmacKey = KdbxOutputStream.hmacKey(masterSeed, transformedKey);
+
+		byte[] hash = new byte[32];
+		in.get(hash);
+		assertArrayEquals(hash, KdbxKey.sha256(header));
+		in.get(hash);
+		assertArrayEquals(hash, hmac(HmacBlockOutputStream.blockKey(hmacKey, -1L), header));
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		for (long index = 0;; index++) {
+			in.get(hash);
+			int size = in.getInt();
+			byte[] block = new byte[size];
+			in.get(block);
+			ByteBuffer message = ByteBuffer.allocate(12 + size).order(ByteOrder.LITTLE_ENDIAN);
+			message.putLong(index).putInt(size).put(block);
+			assertArrayEquals(hash, hmac(HmacBlockOutputStream.blockKey(hmacKey, index), message.array()));
+			if (size == 0) {
+				break;
+			}
+			encrypted.write(block);
+		}
+		assertFalse(in.hasRemaining());
+
+		Cipher aes = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		aes.init(Cipher.DECRYPT_MODE, new SecretKeySpec(KdbxOutputStream.encryptionKey(masterSeed, transformedKey),
+				"AES"), new IvParameterSpec(iv));
+		InputStream payload = new GZIPInputStream(new ByteArrayInputStream(aes.doFinal(encrypted.toByteArray())));
+		ByteBuffer inner = ByteBuffer.wrap(readAll(payload)).order(ByteOrder.LITTLE_ENDIAN);
+		do {
+			id = inner.get();
+			byte[] data = new byte[inner.getInt()];
+			inner.get(data);
+			if (id == 1) {
+				assertEquals(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getInt(), 3);
+			} else if (id == 2) {
+				assertEquals(data.length, 64);
+			}
+		} while (id != 0);
+		return Arrays.copyOfRange(inner.array(), inner.position(), inner.limit());
+	}
+
+	private static byte[] hmac(byte[] key, byte[] message) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return mac.doFinal(message);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static byte[] readAll(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static ByteArrayOutputStream toStream(String s) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(s.getBytes(StandardCharsets.UTF_8));
+		return out;
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.KeePassEntry1;
+
+public class KeePassXML1StreamWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteEntries() throws Exception {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Bank & <Co>");
+		builder.setUsername("jöhn");
+		builder.setPassword("p🔑ss");
+		builder.setNote("line1\nline2");
+		builder.addCustomField("PIN", "1234");
+		EnpassEntry entry = builder.build();
+
+		KeePassEntry1.Builder entry1 = new KeePassEntry1.Builder();
+		entry1.setGroup("Other");
+		entry1.setTitle("Written as is");
+		entry1.setImage("1");
+		entry1.setTimes("2020-01-02T03:04:05");
+		entry1.setUuid("00112233445566778899aabbccddeeff");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		String time;
+		try (KeePassXML1StreamWriter writer = new KeePassXML1StreamWriter(bytes)) {
+			time = writer.time();
+			writer.writeEntry(entry);
+			writer.writeEntry(entry1.build());
+		}
+
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(doc.getDocumentElement().getTagName(), "pwlist");
+		NodeList entries = doc.getElementsByTagName("pwentry");
+		assertEquals(entries.getLength(), 2);
+
+		Element first = (Element) entries.item(0);
+		assertEquals(getText(first, "group"), "Enpass2KeePassImports");
+		assertEquals(getText(first, "title"), "Bank & <Co>");
+		assertEquals(getText(first, "username"), "jöhn");
+		assertEquals(getText(first, "password"), "p🔑ss");
+		assertEquals(getText(first, "url"), "");
+		assertEquals(getText(first, "notes"), "line1\nline2\nPIN: 1234");
+		assertTrue(getText(first, "uuid").matches("[0-9a-f]{32}"));
+		assertEquals(getText(first, "creationtime"), time);
+		assertEquals(getText(first, "lastmodtime"), time);
+		assertEquals(getText(first, "lastaccesstime"), time);
+		assertEquals(getText(first, "expiretime"), KeePassEntry1.NEVER_EXPIRES);
+
+		Element second = (Element) entries.item(1);
+		assertEquals(getText(second, "group"), "Other");
+		assertEquals(getText(second, "title"), "Written as is");
+		assertEquals(getText(second, "uuid"), "00112233445566778899aabbccddeeff");
+		assertEquals(getText(second, "image"), "1");
+		assertEquals(getText(second, "lastaccesstime"), "2020-01-02T03:04:05");
+	}
+
+	@Test
+	public void testConvert() throws Exception {
+		ConversionOptions.Builder options = new ConversionOptions.Builder();
+		options.setKeePass1(true);
+		options.setUUIDGenerator(ContentUUIDGenerator.INSTANCE);
+		File output = folder.newFile("out.xml");
+		Enpass2KeePass.convert(new File("resource/sample_enpass_export.txt"), output, options.build());
+
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(Files.newInputStream(output.toPath()));
+		NodeList entries = doc.getElementsByTagName("pwentry");
+		assertEquals(entries.getLength(), 60);
+
+		// Same entries as the 2.x writer, with hex instead of Base64 UUIDs
+		int i = 0;
+		for (EnpassEntry entry : EnpassFileParser.parseEnpassFile("resource/sample_enpass_export.txt")) {
+			Element element = (Element) entries.item(i++);
+			assertEquals(getText(element, "title"), entry.title);
+			assertEquals(getText(element, "uuid"), 
+					KeePassXML1StreamWriter.hexUUID(ContentUUIDGenerator.INSTANCE.entryUUID(entry)));
+		}
+	}
+
+	private static String getText(Element entry, String tag) {
+		return entry.getElementsByTagName(tag).item(0).getTextContent();
+	}
+
+}
@@ -0,0 +1,165 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
+
+public class KeePassXML2StreamWriterTest {
+
+	@Test
+	public void testWriteEntries() throws Exception {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Bank & <Co>");
+		builder.setUsername("jöhn");
+		builder.setPassword("p🔑ss");
+		builder.setNote("line1\nline2");
+		builder.addCustomField("PIN", "1234");
+		EnpassEntry entry1 = builder.build();
+
+		builder.setTitle("Empty");
+		EnpassEntry entry2 = builder.build();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(bytes)) {
+			writer.writeEntry(entry1);
+			writer.writeEntry(entry2);
+		}
+
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(doc.getDocumentElement().getTagName(), "KeePassFile");
+		assertEquals(doc.getElementsByTagName("Group").getLength(), 2);
+
+		NodeList entries = doc.getElementsByTagName("Entry");
+		assertEquals(entries.getLength(), 2);
+
+		Element first = (Element) entries.item(0);
+		assertEquals(getValue(first, "Title"), "Bank & <Co>");
+		assertEquals(getValue(first, "UserName"), "jöhn");
+		assertEquals(getValue(first, "Password"), "p🔑ss");
+		assertEquals(getValue(first, "Notes"), "line1\nline2");
+		assertEquals(getValue(first, "URL"), "");
+		assertEquals(getValue(first, "PIN"), "1234");
+
+		Element second = (Element) entries.item(1);
+		assertEquals(getValue(second, "Title"), "Empty");
+		assertEquals(second.getElementsByTagName("String").getLength(), 5);
+	}
+
+	@Test
+	public void testProtectSecrets() throws Exception {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(expected, ContentUUIDGenerator.INSTANCE)) {
+			for (EnpassEntry entry : EnpassFileParser.parseEnpassFile("resource/sample_enpass_export.txt")) {
+				writer.writeEntry(entry);
+			}
+		}
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		int secrets = 0;
+		try (EnpassEntryReader reader = EnpassFileParser.openEnpassFile("resource/sample_enpass_export.txt");
+				KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(actual, ContentUUIDGenerator.INSTANCE)) {
+			reader.setProtectSecrets(true);
+			EnpassEntry entry;
+			while ((entry = reader.readEntry()) != null) {
+				assertEquals(entry.password, "");
+				writer.writeEntry(entry);
+				if (entry.securePassword != null) {
+					assertTrue(entry.securePassword.isWiped());
+					secrets++;
+				}
+				for (int i = 0; i < entry.customFields.size(); i++) {
+					if (entry.customFieldMap().secret(i) != null) {
+						assertTrue(entry.customFieldMap().secret(i).isWiped());
+						secrets++;
+					}
+				}
+			}
+		}
+		// 27 passwords, and PIN and Login password fields among others
+		assertTrue(secrets >= 39);
+		assertEquals(actual.toString("UTF-8"), expected.toString("UTF-8"));
+	}
+
+	@Test
+	public void testWriteStoreEntries() throws Exception {
+		String filepath = "resource/sample_enpass_export.txt";
+
+		ByteArrayOutputStream fromEntries = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(fromEntries)) {
+			for (EnpassEntry entry : EnpassFileParser.parseEnpassFile(filepath)) {
+				writer.writeEntry(entry);
+			}
+		}
+
+		EnpassEntryStore store = EnpassFileParser.parseEnpassFileToStore(filepath);
+		ByteArrayOutputStream fromStore = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(fromStore)) {
+			for (int i = 0; i < store.size(); i++) {
+				writer.writeEntry(store.get(i));
+			}
+		}
+
+		assertEquals(withoutUUIDs(fromStore), withoutUUIDs(fromEntries));
+	}
+
+	@Test
+	public void testInvalidCharacters() throws Exception {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Bell\u0007 & null\u0000");
+		builder.setPassword("tab\there\r\n");
+		builder.setNote("lone \ud800 surrogate \uffff");
+		builder.addCustomField("Escape\u001b key", "v\u0001");
+		EnpassEntry entry = builder.build();
+
+		String[] expectedTitles = { "Bell\ufffd & null\ufffd", "Bell & null", "Bell\\u0007 & null\\u0000" };
+		String[] expectedNotes = { "lone \ufffd surrogate \ufffd", "lone  surrogate ", "lone \\ud800 surrogate \\uffff" };
+		String[] expectedKeys = { "Escape\ufffd key", "Escape key", "Escape\\u001b key" };
+		XmlEscaper.InvalidCharPolicy[] policies = XmlEscaper.InvalidCharPolicy.values();
+		for (int i = 0; i < policies.length; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(bytes, RandomUUIDGenerator.INSTANCE,
+					new XmlEscaper(policies[i]))) {
+				writer.writeEntry(entry);
+			}
+
+			// Must parse as XML 1.0
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(new ByteArrayInputStream(bytes.toByteArray()));
+			Element written = (Element) doc.getElementsByTagName("Entry").item(0);
+			assertEquals(getValue(written, "Title"), expectedTitles[i]);
+			assertEquals(getValue(written, "Password"), "tab\there\r\n");
+			assertEquals(getValue(written, "Notes"), expectedNotes[i]);
+			assertNotNull(getValue(written, expectedKeys[i]));
+			assertEquals(XmlEscaper.DEFAULT.sanitize("clean\ttext"), "clean\ttext");
+			assertEquals(new XmlEscaper(policies[i]).sanitize(entry.title), expectedTitles[i]);
+		}
+	}
+
+	static String withoutUUIDs(ByteArrayOutputStream xml) throws Exception {
+		return xml.toString("UTF-8").replaceAll("<UUID>[^<]*</UUID>", "<UUID/>");
+	}
+
+	private static String getValue(Element entry, String key) {
+		NodeList strings = entry.getElementsByTagName("String");
+		for (int i = 0; i < strings.getLength(); i++) {
+			Element string = (Element) strings.item(i);
+			if (string.getElementsByTagName("Key").item(0).getTextContent().equals(key)) {
+				return string.getElementsByTagName("Value").item(0).getTextContent();
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+public class KeePassXMLWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testProtectSecrets() throws Exception {
+		String filepath = "resource/sample_enpass_export.txt";
+		File expected = new File(folder.getRoot(), "expected.xml");
+		KeePassXMLWriter.writeKeePassXml2(EnpassFileParser.parseEnpassFile(filepath), expected.getPath());
+
+		ArrayList<EnpassEntry> entries = new ArrayList<>();
+		try (EnpassEntryReader reader = EnpassFileParser.openEnpassFile(filepath)) {
+			reader.setProtectSecrets(true);
+			EnpassEntry entry;
+			while ((entry = reader.readEntry()) != null) {
+				entries.add(entry);
+			}
+		}
+		File actual = new File(folder.getRoot(), "actual.xml");
+		KeePassXMLWriter.writeKeePassXml2(entries, actual.getPath());
+
+		List<String> expectedFields = fields(expected);
+		assertTrue(expectedFields.contains("Password=password1"));
+		assertTrue(expectedFields.contains("PIN=123456"));
+		assertEquals(fields(actual), expectedFields);
+	}
+
+	/**
+	 * @return Key=value of every String element, in order
+	 */
+	private static List<String> fields(File xml) throws Exception {
+		NodeList strings = DocumentBuilderFactory.newDefaultInstance().newDocumentBuilder().parse(xml)
+				.getElementsByTagName("String");
+		List<String> fields = new ArrayList<>();
+		for (int i = 0; i < strings.getLength(); i++) {
+			Element string = (Element) strings.item(i);
+			fields.add(string.getElementsByTagName("Key").item(0).getTextContent() + "=" +
+					string.getElementsByTagName("Value").item(0).getTextContent());
+		}
+		return fields;
+	}
+
+}
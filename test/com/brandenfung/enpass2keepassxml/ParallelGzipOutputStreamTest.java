@@ -0,0 +1,91 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+
+	@Test
+	public void testCompress() throws Exception {
+		EnpassExportGenerator.Builder generator = new EnpassExportGenerator.Builder();
+		generator.setTargetBytes(3 << 20);
+		ByteArrayOutputStream export = new ByteArrayOutputStream();
+		generator.build().generate(export);
+		byte[] data = export.toByteArray();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, executor,
+					Deflater.DEFAULT_COMPRESSION, 64 * 1024, 3)) {
+				// Uneven writes so blocks are filled across write calls
+				for (int off = 0; off < data.length; off += 7919) {
+					out.write(data, off, Math.min(7919, data.length - off));
+				}
+				out.write('\n');
+			}
+			byte[] decompressed = gunzip(compressed.toByteArray());
+			assertEquals(decompressed.length, data.length + 1);
+			for (int i = 0; i < data.length; i++) {
+				assertEquals(decompressed[i], data[i]);
+			}
+			assertTrue(compressed.size() < data.length / 2);
+
+			ByteArrayOutputStream empty = new ByteArrayOutputStream();
+			new ParallelGzipOutputStream(empty, executor, 1, 1024, 1).close();
+			assertEquals(gunzip(empty.toByteArray()).length, 0);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testAbort() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, executor,
+					Deflater.DEFAULT_COMPRESSION, 1024, 3);
+			out.write(new byte[16 * 1024]);
+			out.abort();
+			try {
+				out.write('\n');
+				fail("Written after abort");
+			} catch (IOException e) {
+				// expected
+			}
+			try {
+				gunzip(compressed.toByteArray());
+				fail("Aborted stream is complete");
+			} catch (EOFException e) {
+				// expected, the last block and the trailer are missing
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static byte[] gunzip(byte[] compressed) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,193 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
+import com.brandenfung.enpass2keepassxml.model.SecretValue;
+
+public class ParallelKeePassXML2WriterTest {
+
+	@Test
+	public void testSameOutputAsSerialWriter() throws Exception {
+		ArrayList<EnpassEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			entries.addAll(EnpassFileParser.parseEnpassFile("resource/sample_enpass_export.txt"));
+		}
+
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(serial)) {
+			for (EnpassEntry entry : entries) {
+				writer.writeEntry(entry);
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			// Small batches and a short queue so the writer has to wait on workers
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			try (ParallelKeePassXML2Writer writer = new ParallelKeePassXML2Writer(parallel, executor, 7, 3)) {
+				for (EnpassEntry entry : entries) {
+					writer.writeEntry(entry);
+				}
+			}
+			assertEquals(KeePassXML2StreamWriterTest.withoutUUIDs(parallel), 
+					KeePassXML2StreamWriterTest.withoutUUIDs(serial));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSameContentUUIDsAsSerialWriter() throws Exception {
+		ArrayList<EnpassEntry> entries = new ArrayList<>();
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		for (int i = 0; i < 64; i++) {
+			builder.setTitle(i % 2 == 0 ? "Login" : "Card");
+			builder.setPassword("secret");
+			entries.add(builder.build());
+		}
+
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(serial, ContentUUIDGenerator.INSTANCE)) {
+			for (EnpassEntry entry : entries) {
+				writer.writeEntry(entry);
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			// One entry per batch so batches finish in any order
+			for (int run = 0; run < 10; run++) {
+				ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+				try (ParallelKeePassXML2Writer writer = new ParallelKeePassXML2Writer(parallel,
+						ContentUUIDGenerator.INSTANCE, executor, 1, 8)) {
+					for (EnpassEntry entry : entries) {
+						writer.writeEntry(entry);
+					}
+				}
+				assertEquals(parallel.toString("UTF-8"), serial.toString("UTF-8"));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testInvalidCharPolicy() throws Exception {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Bell\u0007");
+		builder.addCustomField("Escape\u001b key", "v\u0001");
+		EnpassEntry entry = builder.build();
+
+		XmlEscaper escaper = new XmlEscaper(XmlEscaper.InvalidCharPolicy.ENCODE);
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(serial, RandomUUIDGenerator.INSTANCE,
+				escaper)) {
+			writer.writeEntry(entry);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			try (ParallelKeePassXML2Writer writer = new ParallelKeePassXML2Writer(parallel,
+					RandomUUIDGenerator.INSTANCE, escaper, executor, 1, 1)) {
+				writer.writeEntry(entry);
+			}
+			String xml = parallel.toString("UTF-8");
+			assertTrue(xml.contains("Bell\\u0007"));
+			assertTrue(xml.contains("Escape\\u001b key"));
+			assertEquals(KeePassXML2StreamWriterTest.withoutUUIDs(parallel),
+					KeePassXML2StreamWriterTest.withoutUUIDs(serial));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testNoClosingTagsAfterFailure() throws Exception {
+		ArrayList<EnpassEntry> entries = EnpassFileParser.parseEnpassFile("resource/sample_enpass_export.txt");
+		UUIDGenerator failing = new UUIDGenerator() {
+			@Override
+			public String groupUUID(String groupName) {
+				return RandomUUIDGenerator.INSTANCE.groupUUID(groupName);
+			}
+
+			@Override
+			public String entryUUID(EnpassEntry entry) {
+				if (entry == entries.get(30)) {
+					throw new IllegalStateException("Broken entry");
+				}
+				return RandomUUIDGenerator.INSTANCE.entryUUID(entry);
+			}
+
+			@Override
+			public String entryUUID(EnpassEntryStore.View entry) {
+				return RandomUUIDGenerator.INSTANCE.entryUUID(entry);
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			try (ParallelKeePassXML2Writer writer = new ParallelKeePassXML2Writer(parallel, failing, executor, 4, 2)) {
+				for (EnpassEntry entry : entries) {
+					writer.writeEntry(entry);
+				}
+				fail("Broken entry written");
+			} catch (IOException e) {
+				assertEquals(e.getCause().getMessage(), "Broken entry");
+			}
+			assertFalse(parallel.toString("UTF-8").contains("</KeePassFile>"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testWipesUnwrittenSecretsAfterFailure() throws Exception {
+		ArrayList<EnpassEntry> entries = new ArrayList<>();
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		for (int i = 0; i < 11; i++) {
+			builder.setTitle("Entry" + i);
+			SecretValue password = SecretValue.copyOf("secret" + i, 0, 7);
+			builder.setSecurePassword(password);
+			builder.addSecretField("PIN", SecretValue.copyOf("1234", 0, 4));
+			entries.add(builder.build());
+		}
+		// Reading a wiped value fails, so the third batch can not be encoded
+		entries.get(4).securePassword.wipe();
+
+		// Only the first three batches are ever encoded
+		ArrayList<Runnable> queued = new ArrayList<>();
+		Executor executor = task -> {
+			if (queued.size() < 3) {
+				task.run();
+			}
+			queued.add(task);
+		};
+		ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+		try (ParallelKeePassXML2Writer writer = new ParallelKeePassXML2Writer(parallel, 
+				RandomUUIDGenerator.INSTANCE, executor, 2, 100)) {
+			for (EnpassEntry entry : entries) {
+				writer.writeEntry(entry);
+			}
+		} catch (IOException e) {
+			// expected
+		}
+		for (EnpassEntry entry : entries) {
+			assertTrue(entry.securePassword.isWiped());
+			assertTrue(entry.customFieldMap().secret(0).isWiped());
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser.EnpassFileParserException;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+public class PipelinedConverterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMatchesSequential() throws Exception {
+		String filepath = "resource/sample_enpass_export.txt";
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(expected, ContentUUIDGenerator.INSTANCE)) {
+			for (EnpassEntry entry : EnpassFileParser.parseEnpassFile(filepath)) {
+				writer.writeEntry(entry);
+			}
+		}
+
+		// Tiny buffers and batches so every ring fills and wraps many times
+		PipelinedConverter[] converters = { PipelinedConverter.DEFAULT, new PipelinedConverter(7, 2, 3, 2),
+				new PipelinedConverter(1, 1, 1, 1) };
+		for (PipelinedConverter converter : converters) {
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			ConversionMetrics metrics = new ConversionMetrics(false);
+			try (FileChannel in = FileChannel.open(Paths.get(filepath));
+					KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(actual, 
+							ContentUUIDGenerator.INSTANCE)) {
+				converter.convert(in, writer, metrics, false);
+			}
+			assertEquals(actual.toString("UTF-8"), expected.toString("UTF-8"));
+			assertEquals(metrics.entries(), 60);
+		}
+	}
+
+	@Test
+	public void testOption() throws Exception {
+		ConversionOptions.Builder options = new ConversionOptions.Builder();
+		options.setPipelined(true);
+		options.setUUIDGenerator(ContentUUIDGenerator.INSTANCE);
+		File pipelined = folder.newFile("pipelined.xml");
+		ConversionMetrics metrics = Enpass2KeePass.convert(new File("resource/sample_enpass_export.txt"), 
+				pipelined, options.build());
+		assertEquals(metrics.entries(), 60);
+
+		options.setPipelined(false);
+		File sequential = folder.newFile("sequential.xml");
+		Enpass2KeePass.convert(new File("resource/sample_enpass_export.txt"), sequential, options.build());
+		assertArrayEquals(Files.readAllBytes(pipelined.toPath()), Files.readAllBytes(sequential.toPath()));
+	}
+
+	@Test
+	public void testParseError() throws Exception {
+		File input = folder.newFile("broken.txt");
+		Files.write(input.toPath(), "Title : a\r\nUsername : b\r\n\r\nUrl : c\r\n".getBytes("UTF-8"));
+		try (FileChannel in = FileChannel.open(input.toPath());
+				KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(new ByteArrayOutputStream())) {
+			new PipelinedConverter(4, 2, 1, 1).convert(in, writer, null, false);
+			fail("Parse error not thrown");
+		} catch (EnpassFileParserException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRingBuffer() throws Exception {
+		SpscRingBuffer<Integer> ring = new SpscRingBuffer<>(4);
+		Thread producer = new Thread(() -> {
+			try {
+				for (int i = 0; i < 100000; i++) {
+					ring.put(i);
+				}
+				ring.close();
+			} catch (Exception e) {
+				ring.abort();
+			}
+		});
+		producer.start();
+		Integer item;
+		int expected = 0;
+		while ((item = ring.take()) != null) {
+			assertEquals(item.intValue(), expected++);
+		}
+		assertEquals(expected, 100000);
+		producer.join();
+	}
+
+}
@@ -0,0 +1,159 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.SecretValue;
+
+public class SortedEntryWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSortInMemory() throws Exception {
+		ArrayList<EnpassEntry> entries = EnpassFileParser.parseEnpassFile("resource/sample_enpass_export.txt");
+		for (SortedEntryWriter.SortKey key : SortedEntryWriter.SortKey.values()) {
+			List<EnpassEntry> written = sort(entries, key, Long.MAX_VALUE, 0);
+			assertSorted(written, entries, key);
+		}
+	}
+
+	@Test
+	public void testSortSpilled() throws Exception {
+		ArrayList<EnpassEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			entries.addAll(EnpassFileParser.parseEnpassFile("resource/sample_enpass_export.txt"));
+		}
+
+		// A run per entry needs more than one merge pass
+		List<EnpassEntry> written = sort(entries, SortedEntryWriter.SortKey.URL, 1, entries.size());
+		assertSorted(written, entries, SortedEntryWriter.SortKey.URL);
+
+		written = sort(entries, SortedEntryWriter.SortKey.TITLE, 4096, -1);
+		assertSorted(written, entries, SortedEntryWriter.SortKey.TITLE);
+		assertEquals(folder.getRoot().list().length, 0);
+	}
+
+	@Test
+	public void testSpilledUnpairedSurrogates() throws Exception {
+		List<EnpassEntry> entries = new ArrayList<>();
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		for (int i = 0; i < 3; i++) {
+			builder.setTitle("Entry" + i);
+			builder.setPassword("lone\ud800high" + i);
+			builder.addCustomField("Key\udc00", "lone\udfff low \ud83d\ude00");
+			entries.add(builder.build());
+		}
+
+		List<EnpassEntry> written = sort(entries, SortedEntryWriter.SortKey.TITLE, 1, entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			assertEquals(written.get(i).password, entries.get(i).password);
+			assertEquals(written.get(i).customFields, entries.get(i).customFields);
+		}
+	}
+
+	@Test
+	public void testCustomFieldOrder() throws Exception {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Fields");
+		builder.addCustomField("Zip", "1");
+		builder.addCustomField("Answer", "2");
+		builder.addCustomField("Middle", "3");
+		EnpassEntry entry = SortedEntryWriter.withSortedFields(builder.build());
+		assertEquals(new ArrayList<>(entry.customFields.keySet()).toString(), "[Answer, Middle, Zip]");
+		assertEquals(entry.customFields.get("Zip"), "1");
+		assertSame(SortedEntryWriter.withSortedFields(entry), entry);
+	}
+
+	@Test
+	public void testOption() throws Exception {
+		ConversionOptions.Builder options = new ConversionOptions.Builder();
+		options.setSortKey(SortedEntryWriter.SortKey.TITLE);
+		options.setSortMemoryBytes(2048);
+		options.setUUIDGenerator(ContentUUIDGenerator.INSTANCE);
+		File first = folder.newFile("first.xml");
+		File second = folder.newFile("second.xml");
+		Enpass2KeePass.convert(new File("resource/sample_enpass_export.txt"), first, options.build());
+		options.setPipelined(true);
+		Enpass2KeePass.convert(new File("resource/sample_enpass_export.txt"), second, options.build());
+		assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRejectsKdbx() {
+		KdbxKey.Builder key = new KdbxKey.Builder();
+		key.setPassword("password".toCharArray());
+		ConversionOptions.Builder options = new ConversionOptions.Builder();
+		options.setKdbxKey(key.build());
+		options.setSortKey(SortedEntryWriter.SortKey.TITLE);
+		options.build();
+	}
+
+	@Test
+	public void testRejectsSecrets() throws Exception {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Secret");
+		builder.setSecurePassword(SecretValue.copyOf("hunter2", 0, 7));
+		try {
+			sort(Collections.singletonList(builder.build()), SortedEntryWriter.SortKey.TITLE, Long.MAX_VALUE, 0);
+			fail("Entry with a secret sorted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * @param expectedRuns Number of runs that must be spilled, -1 for at least one
+	 */
+	private List<EnpassEntry> sort(List<EnpassEntry> entries, SortedEntryWriter.SortKey key, long budget,
+			int expectedRuns) throws IOException {
+		List<EnpassEntry> written = new ArrayList<>();
+		SortedEntryWriter writer = new SortedEntryWriter(new KeePassEntryWriter() {
+			@Override
+			public void writeEntry(EnpassEntry item) {
+				written.add(item);
+			}
+
+			@Override
+			public void close() {
+			}
+		}, key, budget, folder.getRoot().toPath());
+		for (EnpassEntry entry : entries) {
+			writer.writeEntry(entry);
+		}
+		if (expectedRuns >= 0) {
+			assertEquals(writer.spilledRuns(), expectedRuns);
+		} else {
+			assertTrue(writer.spilledRuns() > 1);
+		}
+		writer.close();
+		assertEquals(folder.getRoot().list().length, 0);
+		return written;
+	}
+
+	private static void assertSorted(List<EnpassEntry> written, List<EnpassEntry> entries, 
+			SortedEntryWriter.SortKey key) {
+		// List.sort is stable, so equal entries must keep their order too
+		List<EnpassEntry> expected = new ArrayList<>(entries);
+		expected.sort(SortedEntryWriter.comparator(key));
+		assertEquals(written.size(), expected.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(written.get(i).title, expected.get(i).title);
+			assertEquals(written.get(i).url, expected.get(i).url);
+			assertEquals(written.get(i).customFields, expected.get(i).customFields);
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+import com.brandenfung.enpass2keepassxml.model.EnpassEntryStore;
+
+public class UUIDGeneratorTest {
+
+	@Test
+	public void testRandomUUIDs() {
+		HashSet<String> uuids = new HashSet<>();
+		for (int i = 0; i < 1000; i++) {
+			String uuid = RandomUUIDGenerator.INSTANCE.next();
+			byte[] bytes = Base64.getDecoder().decode(uuid);
+			assertEquals(bytes.length, 16);
+			assertEquals(bytes[6] & 0xf0, 0x40);
+			assertEquals(bytes[8] & 0xc0, 0x80);
+			uuids.add(uuid);
+		}
+		assertEquals(uuids.size(), 1000);
+	}
+
+	@Test
+	public void testContentUUIDs() {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Login");
+		builder.setPassword("secret");
+		builder.addCustomField("Email", "a@b.c");
+		builder.addCustomField("Phone", "123");
+		EnpassEntry entry1 = builder.build();
+
+		builder.setTitle("Login");
+		builder.setPassword("secret");
+		builder.addCustomField("Phone", "123");
+		builder.addCustomField("Email", "a@b.c");
+		EnpassEntry entry2 = builder.build();
+
+		builder.setTitle("Login");
+		builder.setPassword("secret2");
+		EnpassEntry entry3 = builder.build();
+
+		ContentUUIDGenerator uuids = ContentUUIDGenerator.INSTANCE;
+		assertEquals(uuids.entryUUID(entry1), uuids.entryUUID(entry2));
+		assertNotEquals(uuids.entryUUID(entry1), uuids.entryUUID(entry3));
+		assertEquals(uuids.groupUUID("Group"), uuids.groupUUID("Group"));
+		assertNotEquals(uuids.groupUUID("Group"), uuids.groupUUID("Group2"));
+		assertEquals(Base64.getDecoder().decode(uuids.entryUUID(entry1))[6] & 0xf0, 0x50);
+
+		EnpassEntryStore store = new EnpassEntryStore();
+		store.add(entry3);
+		store.add(entry1);
+		assertEquals(uuids.entryUUID(store.get(1)), uuids.entryUUID(entry1));
+		assertEquals(uuids.entryUUID(store.get(0)), uuids.entryUUID(entry3));
+	}
+
+	@Test
+	public void testRepeatedContentUUIDs() {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Login");
+		builder.setPassword("secret");
+		EnpassEntry entry = builder.build();
+		EnpassEntryStore store = new EnpassEntryStore();
+		store.add(entry);
+
+		UUIDGenerator uuids = ContentUUIDGenerator.INSTANCE.forConversion();
+		String first = uuids.entryUUID(entry);
+		String second = uuids.entryUUID(store.get(0));
+		String third = uuids.entryUUID(entry);
+		assertEquals(first, ContentUUIDGenerator.INSTANCE.entryUUID(entry));
+		assertNotEquals(second, first);
+		assertNotEquals(third, first);
+		assertNotEquals(third, second);
+		assertEquals(Base64.getDecoder().decode(second)[6] & 0xf0, 0x50);
+
+		// Counted again from the start in the next conversion
+		UUIDGenerator next = ContentUUIDGenerator.INSTANCE.forConversion();
+		assertEquals(next.entryUUID(store.get(0)), first);
+		assertEquals(next.entryUUID(entry), second);
+	}
+
+	@Test
+	public void testDeterministicOutput() throws Exception {
+		assertEquals(write(), write());
+	}
+
+	private static String write() throws Exception {
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(xml, ContentUUIDGenerator.INSTANCE)) {
+			for (EnpassEntry entry : EnpassFileParser.parseEnpassFile("resource/sample_enpass_export.txt")) {
+				writer.writeEntry(entry);
+			}
+		}
+		return xml.toString("UTF-8");
+	}
+
+}
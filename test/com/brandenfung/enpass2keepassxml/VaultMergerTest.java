@@ -0,0 +1,118 @@
+package com.brandenfung.enpass2keepassxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.brandenfung.enpass2keepassxml.model.EnpassEntry;
+
+public class VaultMergerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMerge() throws Exception {
+		String export = new String(Files.readAllBytes(Paths.get("resource/sample_enpass_export.txt")), "UTF-8");
+
+		// Change a password and add an entry
+		String modified = export
+				.replaceFirst("Password : password1\r\n", "Password : changed\r\n")
+				.concat("Title : Merged\r\nUsername : other\r\n");
+		File first = write("first.txt", export);
+		File second = write("second.txt", export);
+		File third = write("third.txt", modified);
+		List<File> inputs = Arrays.asList(first, second, third);
+
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		VaultMerger.Result result = new VaultMerger(false).merge(inputs,
+				new KeePassXML2StreamWriter(xml), "test");
+		assertArrayEquals(result.entries, new long[] { 60, 60, 61 });
+		assertEquals(result.written, 61);
+		assertEquals(result.duplicates, 120);
+		String merged = xml.toString("UTF-8");
+		assertTrue(merged.contains("<Value>Merged</Value>"));
+		// The first export wins
+		assertTrue(merged.contains("<Value>password1</Value>"));
+		assertFalse(merged.contains("<Value>changed</Value>"));
+
+		xml = new ByteArrayOutputStream();
+		result = new VaultMerger(true).merge(inputs, new KeePassXML2StreamWriter(xml), "test");
+		assertEquals(result.written, 62);
+		assertEquals(result.duplicates, 119);
+		assertTrue(xml.toString("UTF-8").contains("<Value>changed</Value>"));
+	}
+
+	@Test
+	public void testMergeSingleExport() throws Exception {
+		String filepath = "resource/sample_enpass_export.txt";
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		try (KeePassXML2StreamWriter writer = new KeePassXML2StreamWriter(expected)) {
+			for (EnpassEntry entry : EnpassFileParser.parseEnpassFile(filepath)) {
+				writer.writeEntry(entry);
+			}
+		}
+
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		VaultMerger.Result result = new VaultMerger(false).merge(Arrays.asList(new File(filepath)),
+				new KeePassXML2StreamWriter(xml), "test");
+		assertEquals(result.duplicates, 0);
+		assertEquals(KeePassXML2StreamWriterTest.withoutUUIDs(xml), KeePassXML2StreamWriterTest.withoutUUIDs(expected));
+	}
+
+	@Test
+	public void testKeepsRepeatsWithinExport() throws Exception {
+		// Identity Cards are exported in two halves with the same title, and two cards
+		// can look alike too
+		String export = "Title : Mr.\r\nFirst name : John\r\n"
+				+ "Title : Mr.\r\nPassport number : 123\r\n"
+				+ "Title : Visa\r\nNumber : 1111\r\n"
+				+ "Title : Visa\r\nNumber : 2222\r\n";
+		File first = write("first.txt", export);
+		File second = write("second.txt", export);
+
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		VaultMerger.Result result = new VaultMerger(false).merge(Arrays.asList(first),
+				new KeePassXML2StreamWriter(xml), "test");
+		assertEquals(result.written, 4);
+		assertEquals(result.duplicates, 0);
+		String merged = xml.toString("UTF-8");
+		assertTrue(merged.contains("<Value>123</Value>"));
+		assertTrue(merged.contains("<Value>2222</Value>"));
+
+		xml = new ByteArrayOutputStream();
+		result = new VaultMerger(false).merge(Arrays.asList(first, second), new KeePassXML2StreamWriter(xml),
+				"test");
+		assertEquals(result.written, 4);
+		assertEquals(result.duplicates, 4);
+	}
+
+	@Test
+	public void testFailedMergeDeletesOutput() throws Exception {
+		File good = write("good.txt", "Title : a\r\nUsername : b\r\n");
+		File broken = write("broken.txt", "Title : a\r\nUsername : b\r\n\r\nUrl : c\r\n");
+		File outputDir = folder.newFolder("out");
+		try {
+			Enpass2KeePass.mergeKeePassXml(Arrays.asList(good, broken), outputDir, false, ConversionOptions.DEFAULT);
+			fail("Broken export merged");
+		} catch (EnpassFileParser.EnpassFileParserException e) {
+			assertEquals(outputDir.list().length, 0);
+		}
+	}
+
+	private File write(String name, String content) throws Exception {
+		File file = folder.newFile(name);
+		Files.write(file.toPath(), content.getBytes("UTF-8"));
+		return file;
+	}
+
+}
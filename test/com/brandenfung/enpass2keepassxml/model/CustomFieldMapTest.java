@@ -0,0 +1,164 @@
+package com.brandenfung.enpass2keepassxml.model;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CustomFieldMapTest {
+
+	@Test
+	public void testMatchesHashMap() {
+		CustomFieldMap fields = new CustomFieldMap();
+		HashMap<String, String> expected = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			assertEquals(fields.put("Field" + i, "Value" + i), null);
+			expected.put("Field" + i, "Value" + i);
+		}
+		assertEquals(fields.put("Field7", "Replaced"), "Value7");
+		expected.put("Field7", "Replaced");
+
+		assertEquals(fields.size(), 100);
+		assertEquals(fields, expected);
+		assertEquals(fields.hashCode(), expected.hashCode());
+		assertEquals(fields.get("Field7"), "Replaced");
+		assertEquals(fields.get(FieldKeys.id("Field99")), "Value99");
+		assertNull(fields.get("Never used as a key"));
+		assertFalse(fields.containsKey("Never used as a key"));
+
+		// Insertion order
+		int i = 0;
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			assertEquals(field.getKey(), "Field" + i);
+			assertEquals(fields.keyId(i), FieldKeys.id("Field" + i));
+			i++;
+		}
+
+		fields.clear();
+		assertEquals(fields.size(), 0);
+		assertNull(fields.get("Field1"));
+	}
+
+	@Test
+	public void testRemove() {
+		CustomFieldMap fields = new CustomFieldMap();
+		HashMap<String, String> expected = new HashMap<>();
+		for (int i = 0; i < 10; i++) {
+			fields.put("Field" + i, "Value" + i);
+			expected.put("Field" + i, "Value" + i);
+		}
+		SecretValue pin = SecretValue.copyOf("1234", 0, 4);
+		fields.putSecret("PIN", pin);
+
+		assertEquals(fields.remove("Field3"), "Value3");
+		expected.remove("Field3");
+		assertNull(fields.remove("Field3"));
+		fields.keySet().removeIf(key -> key.equals("Field8"));
+		expected.remove("Field8");
+		assertEquals(fields.remove("PIN"), "");
+		assertTrue(pin.isWiped());
+
+		assertEquals(fields, expected);
+		assertEquals(fields.key(3), "Field4");
+		assertEquals(fields.get(FieldKeys.id("Field9")), "Value9");
+		assertFalse(fields.hasSecrets());
+		fields.put("Field3", "Again");
+		assertEquals(fields.key(fields.size() - 1), "Field3");
+
+		SecretValue cvc = SecretValue.copyOf("123", 0, 3);
+		fields.putSecret("CVC", cvc);
+		fields.clear();
+		assertTrue(cvc.isWiped());
+	}
+
+	@Test
+	public void testKeyOrder() {
+		CustomFieldMap fields = new CustomFieldMap();
+		assertEquals(fields.keyOrder().length, 0);
+		for (String key : new String[] { "Zip", "Answer", "Middle", "Answer key", "Beta" }) {
+			fields.put(key, key);
+		}
+		assertArrayEquals(fields.keyOrder(), new int[] { 1, 3, 4, 2, 0 });
+	}
+
+	@Test
+	public void testPutOverSecret() {
+		CustomFieldMap fields = new CustomFieldMap();
+		SecretValue pin = SecretValue.copyOf("1234", 0, 4);
+		fields.putSecret("PIN", pin);
+		assertEquals(fields.put("PIN", "plain"), "");
+		assertTrue(pin.isWiped());
+		assertFalse(fields.hasSecrets());
+		assertEquals(fields.get("PIN"), "plain");
+
+		SecretValue cvc = SecretValue.copyOf("123", 0, 3);
+		SecretValue newCvc = SecretValue.copyOf("456", 0, 3);
+		fields.putSecret("CVC", cvc);
+		fields.putSecret("CVC", newCvc);
+		assertTrue(cvc.isWiped());
+		assertFalse(newCvc.isWiped());
+		assertEquals(SecretValue.reveal(fields.chars(fields.size() - 1)), "456");
+	}
+
+	@Test
+	public void testLookup() {
+		FieldKeys.Lookup lookup = new FieldKeys.Lookup();
+		String line = "Security question : What is a dog?";
+		int id = lookup.id(line, 0, 17);
+		assertEquals(FieldKeys.key(id), "Security question");
+		assertEquals(FieldKeys.id("Security question"), id);
+		assertEquals(lookup.id("Security question", 0, 17), id);
+		assertNotEquals(lookup.id(line, 0, 8), id);
+
+		// Many keys force the cache to grow
+		for (int i = 0; i < 1000; i++) {
+			String key = "Key" + i + " : value";
+			assertEquals(FieldKeys.key(lookup.id(key, 0, key.indexOf(' '))), "Key" + i);
+		}
+		assertEquals(lookup.id(line, 0, 17), id);
+	}
+
+	@Test
+	public void testKeysWithoutId() {
+		StringBuilder longKey = new StringBuilder("Key");
+		while (longKey.length() <= FieldKeys.MAX_KEY_LENGTH) {
+			longKey.append(" and more");
+		}
+		String key = longKey.toString();
+		assertEquals(FieldKeys.id(key), FieldKeys.NO_ID);
+		assertEquals(new FieldKeys.Lookup().id(key, 0, key.length()), FieldKeys.NO_ID);
+
+		CustomFieldMap fields = new CustomFieldMap();
+		fields.put("Short", "1");
+		assertEquals(fields.put(key, "2"), null);
+		assertEquals(fields.put(key, "3"), "2");
+		assertEquals(fields.size(), 2);
+		assertEquals(fields.keyId(1), FieldKeys.NO_ID);
+		assertEquals(fields.key(1), key);
+		assertEquals(fields.get(key), "3");
+		assertTrue(fields.containsKey(key));
+		assertEquals(fields.get("Short"), "1");
+
+		HashMap<String, String> expected = new HashMap<>();
+		expected.put("Short", "1");
+		expected.put(key, "3");
+		assertEquals(fields, expected);
+
+		fields.putSecret(key, SecretValue.copyOf("secret", 0, 6));
+		assertEquals(SecretValue.reveal(fields.chars(1)), "secret");
+
+		// Kept as a String by the store too
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		EnpassEntryStore store = new EnpassEntryStore();
+		for (int i = 0; i < 2; i++) {
+			builder.addCustomField(key, "value");
+			store.add(builder.build());
+		}
+		assertEquals(store.get(0).customFieldKey(0), key);
+		assertEquals(store.keyCount(), 1);
+		assertEquals(store.get(1).toEntry().customFields.get(key), "value");
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.brandenfung.enpass2keepassxml.model;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.brandenfung.enpass2keepassxml.EnpassFileParser;
+
+public class EnpassEntryStoreTest {
+
+	@Test
+	public void testAdd() {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Title");
+		builder.setPassword("Password");
+		builder.addCustomField("PIN", "1234");
+		builder.addCustomField("Email", "a@b.c");
+
+		EnpassEntryStore store = new EnpassEntryStore();
+		assertEquals(store.add(builder.build()), 0);
+		builder.setTitle("Empty");
+		assertEquals(store.add(builder.build()), 1);
+		builder.setTitle("Title2");
+		builder.addCustomField("PIN", "5678");
+		store.add(builder.build());
+
+		assertEquals(store.size(), 3);
+		assertEquals(store.keyCount(), 2);
+
+		EnpassEntryStore.View view = store.get(0);
+		assertEquals(view.field(EnpassEntryStore.TITLE), "Title");
+		assertEquals(view.field(EnpassEntryStore.PASSWORD), "Password");
+		assertEquals(view.field(EnpassEntryStore.USERNAME), "");
+		assertEquals(view.customFieldCount(), 2);
+
+		assertEquals(store.get(1).customFieldCount(), 0);
+		assertEquals(store.get(2).customFieldKey(0), "PIN");
+		assertEquals(store.get(2).customFieldValue(0), "5678");
+		assertEquals(store.get(2).customFieldKeyId(0), store.get(0).customFieldKeyId(
+				store.get(0).customFieldKey(0).equals("PIN") ? 0 : 1));
+	}
+
+	@Test
+	public void testParsedStoreMatchesEntries() throws Exception {
+		String filepath = "resource/sample_enpass_export.txt";
+		ArrayList<EnpassEntry> entries = EnpassFileParser.parseEnpassFile(filepath);
+		EnpassEntryStore store = EnpassFileParser.parseEnpassFileToStore(filepath);
+
+		assertEquals(store.size(), entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			EnpassEntry copy = store.get(i).toEntry();
+			assertEquals(copy.title, entries.get(i).title);
+			assertEquals(copy.username, entries.get(i).username);
+			assertEquals(copy.password, entries.get(i).password);
+			assertEquals(copy.url, entries.get(i).url);
+			assertEquals(copy.note, entries.get(i).note);
+			assertEquals(copy.customFields, entries.get(i).customFields);
+		}
+	}
+
+	@Test
+	public void testRejectsSecrets() {
+		EnpassEntry.Builder builder = new EnpassEntry.Builder();
+		builder.setTitle("Title");
+		builder.setSecurePassword(SecretValue.copyOf("Password", 0, 8));
+		builder.addSecretField(FieldKeys.id("PIN"), SecretValue.copyOf("1234", 0, 4));
+		builder.addCustomField("Email", "a@b.c");
+		EnpassEntry entry = builder.build();
+		assertEquals(entry.password, "");
+
+		EnpassEntryStore store = new EnpassEntryStore();
+		try {
+			store.add(entry);
+			fail("Secrets copied into the store");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(store.size(), 0);
+		entry.wipeSecrets();
+	}
+
+}
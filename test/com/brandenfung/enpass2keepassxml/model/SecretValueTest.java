@@ -0,0 +1,51 @@
+package com.brandenfung.enpass2keepassxml.model;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SecretValueTest {
+
+	@Test
+	public void testCopyAndWipe() {
+		String line = "PIN : 1234 🔑";
+		SecretValue secret = SecretValue.copyOf(line, 6, line.length());
+		assertEquals(secret.length(), line.length() - 6);
+		assertEquals(secret.reveal(), "1234 🔑");
+		assertEquals(secret.subSequence(0, 4).toString(), "SecretValue[4 chars]");
+		assertFalse(secret.toString().contains("1234"));
+
+		secret.wipe();
+		assertTrue(secret.isWiped());
+		try {
+			secret.charAt(0);
+			fail("Wiped value was read");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testAllocator() {
+		SecretValue.Allocator allocator = new SecretValue.Allocator();
+		SecretValue[] secrets = new SecretValue[10000];
+		for (int i = 0; i < secrets.length; i++) {
+			String value = "secret" + i;
+			secrets[i] = allocator.copyOf(value, 0, value.length());
+		}
+		// Slices of the same slab must not overlap, wiping one leaves the others
+		secrets[5000].wipe();
+		for (int i = 0; i < secrets.length; i++) {
+			if (i != 5000) {
+				assertEquals(secrets[i].reveal(), "secret" + i);
+			}
+		}
+
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			large.append((char) ('a' + i % 26));
+		}
+		assertEquals(allocator.copyOf(large, 0, large.length()).reveal(), large.toString());
+	}
+
+}